@@ -0,0 +1,159 @@
+import java.util.Arrays;
+
+/**
+ * Учет кадров мультикаст-ленты по номерам: потери, повторы, перестановки и задержка доставки
+ *
+ * Помнит, какие из последних WINDOW номеров уже получены (битовая карта), поэтому отличает
+ * повтор от опоздавшего кадра: опоздавший закрывает ранее засчитанную потерю.
+ * Обновляется одним потоком приема, счетчики можно читать из любого потока.
+ */
+public class FeedStats {
+    private static final int WINDOW = 1024;
+    
+    private final long[] seen = new long[WINDOW / 64];
+    private long highest = -1;
+    private long highestTimestamp;
+    
+    private volatile long received;
+    private volatile long lost;
+    private volatile long duplicates;
+    private volatile long reordered;
+    private volatile long late;
+    private volatile long restarts;
+    private volatile long latencyCount;
+    private volatile long latencySumMicros;
+    private volatile long latencyMaxMicros;
+    
+    /**
+     * Учитывает кадр; false - кадр повторный или слишком старый и его нужно отбросить
+     * timestampMicros - время отправки из заголовка, nowMicros - время получения
+     */
+    public boolean onFrame(long sequence, long timestampMicros, long nowMicros) {
+        if (highest < 0 || (sequence <= highest && timestampMicros > highestTimestamp)) {
+            // Первый кадр или номера пошли заново с более поздним временем - сервер перезапущен
+            if (highest >= 0) restarts++;
+            Arrays.fill(seen, 0);
+            highest = sequence;
+            highestTimestamp = timestampMicros;
+            mark(sequence);
+        } else if (sequence > highest) {
+            lost += sequence - highest - 1;
+            // Номера между прежним и новым максимумом входят в окно еще не полученными
+            if (sequence - highest >= WINDOW) {
+                Arrays.fill(seen, 0);
+            } else {
+                for (long s = highest + 1; s < sequence; s++) {
+                    clear(s);
+                }
+            }
+            highest = sequence;
+            highestTimestamp = timestampMicros;
+            mark(sequence);
+        } else if (sequence <= highest - WINDOW) {
+            // Вне окна: нельзя отличить повтор от опоздавшего кадра
+            late++;
+            return false;
+        } else if (isMarked(sequence)) {
+            duplicates++;
+            return false;
+        } else {
+            mark(sequence);
+            lost--;
+            reordered++;
+        }
+        received++;
+        long latency = nowMicros - timestampMicros;
+        latencyCount++;
+        latencySumMicros += latency;
+        if (latency > latencyMaxMicros) latencyMaxMicros = latency;
+        return true;
+    }
+    
+    private void mark(long sequence) {
+        seen[index(sequence)] |= 1L << sequence;
+    }
+    
+    private void clear(long sequence) {
+        seen[index(sequence)] &= ~(1L << sequence);
+    }
+    
+    private boolean isMarked(long sequence) {
+        return (seen[index(sequence)] & (1L << sequence)) != 0;
+    }
+    
+    private static int index(long sequence) {
+        return (int) ((sequence >>> 6) & (WINDOW / 64 - 1));
+    }
+    
+    /**
+     * Принятые кадры, без повторов
+     */
+    public long getReceived() {
+        return received;
+    }
+    
+    /**
+     * Пропущенные номера, которые так и не пришли (опоздавшие кадры вычитаются)
+     */
+    public long getLost() {
+        return lost;
+    }
+    
+    public long getDuplicates() {
+        return duplicates;
+    }
+    
+    /**
+     * Кадры, пришедшие после кадра с большим номером
+     */
+    public long getReordered() {
+        return reordered;
+    }
+    
+    /**
+     * Кадры, опоздавшие больше чем на WINDOW номеров (отброшены)
+     */
+    public long getLate() {
+        return late;
+    }
+    
+    public long getRestarts() {
+        return restarts;
+    }
+    
+    /**
+     * Средняя задержка от отправки до получения; между разными машинами включает разницу их часов
+     */
+    public double getAverageLatencyMicros() {
+        long count = latencyCount;
+        return count == 0 ? 0 : (double) latencySumMicros / count;
+    }
+    
+    public long getMaxLatencyMicros() {
+        return latencyMaxMicros;
+    }
+    
+    /**
+     * Доля потерянных номеров среди ожидавшихся
+     */
+    public double getLossRate() {
+        long expected = received + lost;
+        return expected == 0 ? 0 : (double) lost / expected;
+    }
+    
+    /**
+     * Доля повторов среди всех пришедших кадров
+     */
+    public double getDuplicateRate() {
+        long total = received + duplicates;
+        return total == 0 ? 0 : (double) duplicates / total;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("принято %d, потеряно %d (%.3f%%), повторов %d (%.3f%%), переставлено %d, "
+                        + "опоздало %d, перезапусков %d, задержка средняя %.0f мкс, макс %d мкс",
+                received, lost, getLossRate() * 100, duplicates, getDuplicateRate() * 100, reordered,
+                late, restarts, getAverageLatencyMicros(), latencyMaxMicros);
+    }
+}
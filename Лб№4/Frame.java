@@ -0,0 +1,84 @@
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+/**
+ * Двоичный заголовок датаграммы мультикаст-ленты (20 байт, старший байт первым):
+ * магическое число (2), номер сообщения (8), время отправки в микросекундах от эпохи (8),
+ * длина данных (2). За заголовком идет текст сообщения в UTF-8.
+ *
+ * Номера идут подряд с 0 для каждого запуска сервера, по ним получатель находит
+ * потерянные, повторные и переставленные датаграммы.
+ *
+ * Пакетный кадр (BATCH_MAGIC) несет несколько сообщений с номерами подряд: в заголовке номер
+ * первого и время, когда первое было готово к отправке, в данных - записи вида
+ * длина (2) + текст в UTF-8.
+ */
+public final class Frame {
+    public static final short MAGIC = 0x4C34; // "L4"
+    public static final short BATCH_MAGIC = 0x4C42; // "LB"
+    public static final int HEADER_SIZE = 20;
+    public static final int RECORD_HEADER_SIZE = 2;
+    // Больше не помещается в одну датаграмму UDP по IPv4
+    public static final int MAX_PAYLOAD = 65507 - HEADER_SIZE;
+    
+    private Frame() {
+    }
+    
+    /**
+     * Записывает заголовок в начало header (позиция 0, длина HEADER_SIZE)
+     */
+    public static void writeHeader(ByteBuffer header, long sequence, long timestampMicros, int length) {
+        header.clear();
+        header.putShort(MAGIC).putLong(sequence).putLong(timestampMicros).putShort((short) length);
+        header.flip();
+    }
+    
+    /**
+     * Заполняет заголовок пакетного кадра, записанного в batch с позиции 0 до limit
+     * (место под заголовок оставлено в начале, записи идут за ним)
+     */
+    public static void writeBatchHeader(ByteBuffer batch, long firstSequence, long timestampMicros) {
+        batch.putShort(0, BATCH_MAGIC).putLong(2, firstSequence).putLong(10, timestampMicros)
+                .putShort(18, (short) (batch.limit() - HEADER_SIZE));
+    }
+    
+    /**
+     * Является ли датаграмма кадром с одним сообщением: есть заголовок и длина данных совпадает с заявленной
+     */
+    public static boolean isFrame(ByteBuffer datagram) {
+        return hasHeader(datagram, MAGIC);
+    }
+    
+    /**
+     * Является ли датаграмма пакетным кадром
+     */
+    public static boolean isBatch(ByteBuffer datagram) {
+        return hasHeader(datagram, BATCH_MAGIC);
+    }
+    
+    private static boolean hasHeader(ByteBuffer datagram, short magic) {
+        return datagram.remaining() >= HEADER_SIZE
+                && datagram.getShort(datagram.position()) == magic
+                && length(datagram) == datagram.remaining() - HEADER_SIZE;
+    }
+    
+    public static long sequence(ByteBuffer frame) {
+        return frame.getLong(frame.position() + 2);
+    }
+    
+    public static long timestampMicros(ByteBuffer frame) {
+        return frame.getLong(frame.position() + 10);
+    }
+    
+    public static int length(ByteBuffer frame) {
+        return Short.toUnsignedInt(frame.getShort(frame.position() + 18));
+    }
+    
+    /**
+     * Текущее время в микросекундах от эпохи
+     */
+    public static long epochMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+    }
+}
@@ -1,26 +1,89 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Промежуточный клиент
  * - Получает UDP multicast сообщения от сервера
+ * - Проверяет номера кадров: считает потери, повторы, перестановки и задержку доставки
+ * - Разбирает пакетные кадры (несколько сообщений в одной датаграмме)
  * - Фильтрует сообщения (показывает только если изменилось)
- * - Хранит последние 5 сообщений
- * - Работает как TCP сервер для конечных клиентов
+ * - Хранит последние сообщения (по умолчанию 5, параметр --history) в кольцевом буфере
+ *   без блокировок: прием UDP никогда не ждет конечных клиентов
+ * - Работает как TCP сервер для конечных клиентов: по умолчанию неблокирующий
+ *   на одном селекторе (SnapshotServer), --tcp=threads - прежний поток на соединение
  */
 public class IntermediateClient {
     private static final String MULTICAST_GROUP = "233.0.0.1";
     private static final int UDP_PORT = 1502;
     private static final int TCP_PORT = 1503;
-    private static final int MAX_MESSAGES = 5;
+    private static final int DEFAULT_MAX_MESSAGES = 5;
+    // Наибольшая датаграмма UDP
+    private static final int MAX_DATAGRAM = 65536;
+    // Чтобы кадры не терялись в ядре при частой отправке
+    private static final int RECEIVE_BUFFER = 4 << 20;
+    // Сколько строк о сообщениях выводится в секунду; при большем потоке остается сводка
+    private static final int LOG_LINES_PER_SECOND = 10;
+    private static final int STATS_INTERVAL_SECONDS = 5;
     
-    private List<String> lastMessages = new ArrayList<>();
+    private final MessageRing lastMessages;
+    // null - режим потока на соединение
+    private final SnapshotServer snapshotServer;
     private String lastReceivedMessage = "";
     private boolean running = true;
+    private final FeedStats feedStats = new FeedStats();
+    // Датаграммы без заголовка Frame (от сервера прежней версии)
+    private volatile long unframed;
+    private volatile long datagrams;
+    // Пакетные кадры с записью, выходящей за конец датаграммы
+    private volatile long malformed;
+    private long logWindowStart;
+    private int logLines;
+    private volatile long logSuppressed;
+    
+    /**
+     * maxMessages - сколько последних сообщений хранить и отдавать конечным клиентам,
+     * nio - неблокирующий TCP сервер вместо потока на соединение
+     */
+    public IntermediateClient(int maxMessages, boolean nio) {
+        this.lastMessages = new MessageRing(maxMessages);
+        this.snapshotServer = nio ? new SnapshotServer(TCP_PORT, lastMessages) : null;
+    }
     
     public static void main(String[] args) {
-        IntermediateClient client = new IntermediateClient();
+        int maxMessages = DEFAULT_MAX_MESSAGES;
+        boolean nio = true;
+        try {
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("Неизвестный параметр: " + arg);
+                }
+                String value = arg.substring(eq + 1);
+                switch (arg.substring(2, eq)) {
+                    case "history": maxMessages = Integer.parseInt(value); break;
+                    case "tcp":
+                        if (!value.equals("nio") && !value.equals("threads")) {
+                            throw new IllegalArgumentException("Режим TCP сервера: nio или threads");
+                        }
+                        nio = value.equals("nio");
+                        break;
+                    default: throw new IllegalArgumentException("Неизвестный параметр: " + arg);
+                }
+            }
+            if (maxMessages <= 0) {
+                throw new IllegalArgumentException("Число хранимых сообщений должно быть больше 0");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ошибка: " + e.getMessage());
+            System.err.println("Использование: java IntermediateClient [--history=" + DEFAULT_MAX_MESSAGES + "] [--tcp=nio|threads]");
+            System.exit(1);
+        }
+        
+        IntermediateClient client = new IntermediateClient(maxMessages, nio);
         client.start();
     }
     
@@ -33,8 +96,37 @@ public class IntermediateClient {
         System.out.println("Промежуточный клиент запущен");
         System.out.println("UDP Multicast: " + MULTICAST_GROUP + ":" + UDP_PORT);
         System.out.println("TCP Server: localhost:" + TCP_PORT);
+        System.out.println("Хранится последних сообщений: " + lastMessages.getCapacity());
         System.out.println("Ожидание сообщений...\n");
         
+        ScheduledExecutorService statsPrinter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "feed-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        statsPrinter.scheduleAtFixedRate(new Runnable() {
+            private long printed;
+            private long printedServed;
+            
+            @Override
+            public void run() {
+                long received = feedStats.getReceived() + unframed;
+                if (received != printed) {
+                    printed = received;
+                    System.out.println("[" + new Date() + "] Лента: " + feedStats + ", датаграмм " + datagrams
+                            + (unframed > 0 ? ", без заголовка " + unframed : "")
+                            + (malformed > 0 ? ", поврежденных пакетов " + malformed : "")
+                            + (logSuppressed > 0 ? ", строк не выведено " + logSuppressed : ""));
+                }
+                if (snapshotServer != null && snapshotServer.getServed() != printedServed) {
+                    printedServed = snapshotServer.getServed();
+                    System.out.println("[" + new Date() + "] Конечные клиенты: обслужено " + printedServed
+                            + ", ответ кодировался " + snapshotServer.getRebuilds() + " раз"
+                            + (snapshotServer.getFailed() > 0 ? ", обрывов " + snapshotServer.getFailed() : ""));
+                }
+            }
+        }, STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        
         // Получаем UDP multicast сообщения
         receiveUDPMessages();
     }
@@ -46,33 +138,30 @@ public class IntermediateClient {
         try {
             MulticastSocket socket = new MulticastSocket(UDP_PORT);
             InetAddress group = InetAddress.getByName(MULTICAST_GROUP);
+            socket.setReceiveBufferSize(RECEIVE_BUFFER);
             socket.joinGroup(group);
             
-            byte[] buffer = new byte[1024];
+            byte[] buffer = new byte[MAX_DATAGRAM];
+            ByteBuffer datagram = ByteBuffer.wrap(buffer);
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
             
             while (running) {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                packet.setLength(buffer.length);
                 socket.receive(packet);
+                long receivedMicros = Frame.epochMicros();
+                datagram.limit(packet.getLength()).position(0);
+                datagrams++;
                 
-                String message = new String(packet.getData(), 0, packet.getLength(), "UTF-8");
-                
-                // Фильтруем: показываем только если сообщение изменилось
-                if (!message.equals(lastReceivedMessage)) {
-                    lastReceivedMessage = message;
-                    
-                    // Добавляем в список последних сообщений
-                    synchronized (lastMessages) {
-                        lastMessages.add(message);
-                        // Оставляем только последние MAX_MESSAGES сообщений
-                        if (lastMessages.size() > MAX_MESSAGES) {
-                            lastMessages.remove(0);
-                        }
+                if (Frame.isFrame(datagram)) {
+                    // Повторные и слишком старые кадры отбрасываются до фильтра по содержимому
+                    if (feedStats.onFrame(Frame.sequence(datagram), Frame.timestampMicros(datagram), receivedMicros)) {
+                        onMessage(new String(buffer, Frame.HEADER_SIZE, Frame.length(datagram), StandardCharsets.UTF_8));
                     }
-                    
-                    System.out.println("[" + new Date() + "] Получено новое сообщение: " + message);
-                    System.out.println("Всего сохранено сообщений: " + lastMessages.size());
+                } else if (Frame.isBatch(datagram)) {
+                    receiveBatch(datagram, receivedMicros);
                 } else {
-                    System.out.println("[" + new Date() + "] Получено повторное сообщение (отфильтровано): " + message);
+                    unframed++;
+                    onMessage(new String(buffer, 0, packet.getLength(), StandardCharsets.UTF_8));
                 }
             }
             
@@ -85,10 +174,92 @@ public class IntermediateClient {
         }
     }
     
+    /**
+     * Разбирает пакетный кадр: записи "длина + текст" с номерами подряд от номера в заголовке
+     */
+    private void receiveBatch(ByteBuffer datagram, long receivedMicros) {
+        byte[] buffer = datagram.array();
+        long sequence = Frame.sequence(datagram);
+        long timestamp = Frame.timestampMicros(datagram);
+        int position = Frame.HEADER_SIZE;
+        int end = datagram.limit();
+        while (position < end) {
+            if (position + Frame.RECORD_HEADER_SIZE > end) {
+                malformed++;
+                return;
+            }
+            int length = Short.toUnsignedInt(datagram.getShort(position));
+            position += Frame.RECORD_HEADER_SIZE;
+            if (position + length > end) {
+                malformed++;
+                return;
+            }
+            if (feedStats.onFrame(sequence, timestamp, receivedMicros)) {
+                onMessage(new String(buffer, position, length, StandardCharsets.UTF_8));
+            }
+            position += length;
+            sequence++;
+        }
+    }
+    
+    /**
+     * Сохраняет принятое сообщение, если оно отличается от предыдущего
+     */
+    private void onMessage(String message) {
+        // Фильтруем: показываем только если сообщение изменилось
+        if (!message.equals(lastReceivedMessage)) {
+            lastReceivedMessage = message;
+            
+            // Добавляем в кольцо последних сообщений, самое старое вытесняется
+            lastMessages.add(message);
+            
+            if (logAllowed()) {
+                System.out.println("[" + new Date() + "] Получено новое сообщение: " + message);
+                System.out.println("Всего сохранено сообщений: " + lastMessages.size());
+            }
+        } else if (logAllowed()) {
+            System.out.println("[" + new Date() + "] Получено повторное сообщение (отфильтровано): " + message);
+        }
+    }
+    
+    /**
+     * Можно ли вывести еще одну строку о сообщении в текущую секунду
+     */
+    private boolean logAllowed() {
+        long now = System.nanoTime();
+        if (now - logWindowStart >= 1_000_000_000L) {
+            logWindowStart = now;
+            logLines = 0;
+        }
+        if (logLines < LOG_LINES_PER_SECOND) {
+            logLines++;
+            return true;
+        }
+        logSuppressed++;
+        return false;
+    }
+    
+    /**
+     * Счетчики потерь, повторов, перестановок и задержки по номерам кадров
+     */
+    public FeedStats getFeedStats() {
+        return feedStats;
+    }
+    
     /**
      * Запускает TCP сервер для конечных клиентов
      */
     private void startTCPServer() {
+        if (snapshotServer != null) {
+            try {
+                System.out.println("TCP сервер (NIO) запущен на порту " + TCP_PORT);
+                snapshotServer.run();
+            } catch (IOException e) {
+                System.err.println("Ошибка TCP сервера: " + e.getMessage());
+                e.printStackTrace();
+            }
+            return;
+        }
         try {
             ServerSocket serverSocket = new ServerSocket(TCP_PORT);
             System.out.println("TCP сервер запущен на порту " + TCP_PORT);
@@ -112,19 +283,20 @@ public class IntermediateClient {
      */
     private void handleEndClient(Socket clientSocket) {
         try {
-            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            // Конечный клиент читает UTF-8; вывод сбрасывается один раз в конце
+            PrintWriter out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8)));
             
-            // Отправляем последние 5 сообщений
-            synchronized (lastMessages) {
-                out.println(lastMessages.size()); // Количество сообщений
-                
-                for (String message : lastMessages) {
-                    out.println(message);
-                }
+            // Снимок берется без блокировки, запись в сокет не задерживает прием сообщений
+            List<String> messages = lastMessages.snapshot();
+            out.println(messages.size()); // Количество сообщений
+            
+            for (String message : messages) {
+                out.println(message);
             }
+            out.flush();
             
-            System.out.println("Отправлено " + lastMessages.size() + " сообщений конечному клиенту");
+            System.out.println("Отправлено " + messages.size() + " сообщений конечному клиенту");
             
             clientSocket.close();
             
@@ -0,0 +1,89 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Кольцевой буфер последних сообщений: один писатель (поток приема UDP), любое число читателей
+ *
+ * Без блокировок: писатель кладет сообщение в ячейку и затем увеличивает счетчик written,
+ * поэтому добавление - O(1) и никогда не ждет читателей. Читатель копирует ячейки
+ * по счетчику и перечитывает его: ячейки, которые писатель мог за это время перезаписать,
+ * отбрасываются, так что снимок - всегда непрерывная последовательность сообщений по порядку.
+ */
+public class MessageRing {
+    // Сколько раз читатель пробует снять полный снимок, прежде чем отдать укороченный
+    private static final int SNAPSHOT_ATTEMPTS = 4;
+    
+    // На одну ячейку больше емкости: в запасную пишется следующее сообщение,
+    // пока читатели копируют capacity последних
+    private final AtomicReferenceArray<String> slots;
+    private final int capacity;
+    // Сколько сообщений добавлено за все время; сообщение с номером k лежит в ячейке k % (capacity + 1)
+    private volatile long written;
+    
+    public MessageRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Емкость должна быть больше 0: " + capacity);
+        }
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(capacity + 1);
+    }
+    
+    /**
+     * Добавляет сообщение, вытесняя самое старое; вызывается только одним потоком
+     */
+    public void add(String message) {
+        long n = written;
+        slots.set(slot(n), message);
+        written = n + 1;
+    }
+    
+    /**
+     * Последние сообщения, от старых к новым (неизменяемый список)
+     * Если писатель очень быстр, может вернуть меньше сообщений, чем хранится
+     */
+    public List<String> snapshot() {
+        String[] copy = new String[0];
+        for (int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+            long end = written;
+            long start = Math.max(0, end - capacity);
+            copy = new String[(int) (end - start)];
+            for (long k = start; k < end; k++) {
+                copy[(int) (k - start)] = slots.get(slot(k));
+            }
+            // Сообщение k цело, если писатель еще не начал запись номера k + capacity + 1
+            long firstIntact = written - capacity;
+            if (firstIntact <= start) {
+                return List.of(copy);
+            }
+            if (firstIntact < end) {
+                copy = Arrays.copyOfRange(copy, (int) (firstIntact - start), copy.length);
+            } else {
+                copy = new String[0];
+            }
+        }
+        return List.of(copy);
+    }
+    
+    private int slot(long n) {
+        return (int) (n % (capacity + 1));
+    }
+    
+    /**
+     * Сколько сообщений хранится сейчас
+     */
+    public int size() {
+        return (int) Math.min(written, capacity);
+    }
+    
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Сколько сообщений добавлено за все время; растет при каждом add
+     */
+    public long getWritten() {
+        return written;
+    }
+}
@@ -1,62 +1,170 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * UDP Multicast Server
- * Отправляет сообщения о погоде каждые 10 секунд всем клиентам в группе 233.0.0.1:1502
+ * Отправляет сообщения из файла всем клиентам в группе 233.0.0.1:1502
+ * По умолчанию одно сообщение каждые 10 секунд, частота задается параметром --rate
+ *
+ * Сообщения кодируются в UTF-8 один раз при запуске и лежат в одном direct буфере,
+ * отправка идет через один подключенный к группе DatagramChannel без выделения памяти
+ * на сообщение. Отправку запускает ScheduledExecutorService: при высокой частоте за один
+ * такт (1 мс) отправляются все сообщения, срок которых наступил, поэтому частота
+ * не ограничена точностью таймера. Каждая датаграмма - кадр: заголовок Frame с номером
+ * и временем отправки, за ним текст.
+ *
+ * В пакетном режиме (--batch=байт) сообщения, срок которых наступил, собираются в один
+ * пакетный кадр размером до заданного (по умолчанию в пределах MTU Ethernet), и пакет уходит
+ * в конце такта или, с --flush-ms, когда первое сообщение в нем прождет заданное время.
+ * Так число вызовов send растет медленнее частоты сообщений.
  */
 public class Server {
     private static final String MULTICAST_GROUP = "233.0.0.1";
     private static final int PORT = 1502;
-    private static final int INTERVAL = 10000; // 10 секунд
+    private static final double DEFAULT_RATE = 0.1; // одно сообщение в 10 секунд
     private static final String FILE = "text.txt";
+    // Самый короткий такт отправки
+    private static final long MIN_TICK_NANOS = 1_000_000;
+    // При большей частоте сообщения не печатаются по одному, только сводка раз в секунду
+    private static final double LOG_EACH_MAX_RATE = 10;
+    // Отставание больше этого (например, после паузы процесса) не догоняется, а пропускается
+    private static final long MAX_CATCH_UP_NANOS = 1_000_000_000;
+    // 1500 (MTU Ethernet) - 20 (IP) - 8 (UDP) - запас на туннели и опции IP
+    public static final int MTU_SAFE_DATAGRAM = 1400;
+    
+    private final List<String> messages;
+    private final ByteBuffer[] encoded;
+    private final double rate;
+    private final long limit;
+    private final boolean logEach;
+    private final long tickNanos;
+    private final DatagramChannel channel;
+    // Заголовок и данные кадра отправляются одной датаграммой из двух буферов
+    private final ByteBuffer header = ByteBuffer.allocateDirect(Frame.HEADER_SIZE);
+    private final ByteBuffer[] frame = new ByteBuffer[] {header, null};
+    // Собираемый пакетный кадр; null - пакетный режим выключен
+    private final ByteBuffer batch;
+    private final long flushNanos;
+    private final ScheduledExecutorService scheduler;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    
+    // Изменяются только потоком отправки, счетчики читаются сводкой при остановке
+    private long startNanos;
+    private long slots;
+    private volatile long sent;
+    private volatile long errors;
+    private volatile long skipped;
+    private volatile long datagrams;
+    private int messageIndex;
+    private long sequence;
+    private int batchCount;
+    private long batchFirstSequence;
+    private long batchTimestamp;
+    private long batchStartNanos;
+    private long reportNanos;
+    private long reportSent;
+    private long reportDatagrams;
+    
+    /**
+     * rate - сообщений в секунду, limit - сколько отправить (0 - без ограничения)
+     * batchBytes - наибольший размер пакетного кадра (0 - каждое сообщение отдельной датаграммой),
+     * flushNanos - сколько сообщение может ждать в пакете (0 - до конца такта)
+     */
+    public Server(List<String> messages, double rate, long limit, int batchBytes, long flushNanos) throws IOException {
+        this.messages = messages;
+        this.encoded = encode(messages);
+        this.rate = rate;
+        this.limit = limit;
+        this.logEach = rate <= LOG_EACH_MAX_RATE;
+        this.batch = batchBytes > 0 ? ByteBuffer.allocateDirect(batchBytes) : null;
+        this.flushNanos = flushNanos;
+        long period = (long) (1_000_000_000L / rate);
+        if (batch != null && flushNanos > 0) {
+            // Пакет проверяется каждый такт, поэтому такт не длиннее срока ожидания
+            period = Math.min(period, flushNanos);
+        }
+        this.tickNanos = Math.max(MIN_TICK_NANOS, period);
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.connect(new InetSocketAddress(InetAddress.getByName(MULTICAST_GROUP), PORT));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "publisher"));
+    }
     
     public static void main(String[] args) {
+        double rate = DEFAULT_RATE;
+        long limit = 0;
+        int batchBytes = 0;
+        long flushMillis = 0;
+        String file = FILE;
+        try {
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Неизвестный параметр: " + arg);
+                }
+                int eq = arg.indexOf('=');
+                String value = eq < 0 ? "" : arg.substring(eq + 1);
+                switch (eq < 0 ? arg.substring(2) : arg.substring(2, eq)) {
+                    case "rate": rate = Double.parseDouble(value); break;
+                    case "count": limit = Long.parseLong(value); break;
+                    case "batch": batchBytes = value.isEmpty() ? MTU_SAFE_DATAGRAM : Integer.parseInt(value); break;
+                    case "flush-ms": flushMillis = Long.parseLong(value); break;
+                    case "file": file = value; break;
+                    default: throw new IllegalArgumentException("Неизвестный параметр: " + arg);
+                }
+            }
+            if (!(rate > 0) || limit < 0) {
+                throw new IllegalArgumentException("Частота должна быть больше 0, количество - не меньше 0");
+            }
+            if (batchBytes != 0 && (batchBytes < Frame.HEADER_SIZE + Frame.RECORD_HEADER_SIZE + 1
+                    || batchBytes > Frame.HEADER_SIZE + Frame.MAX_PAYLOAD)) {
+                throw new IllegalArgumentException("Размер пакета должен быть от "
+                        + (Frame.HEADER_SIZE + Frame.RECORD_HEADER_SIZE + 1) + " до "
+                        + (Frame.HEADER_SIZE + Frame.MAX_PAYLOAD) + " байт");
+            }
+            if (flushMillis < 0) {
+                throw new IllegalArgumentException("Срок ожидания пакета не может быть меньше 0");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ошибка: " + e.getMessage());
+            System.err.println("Использование: java Server [--rate=сообщений/с] [--count=N] [--batch=" + MTU_SAFE_DATAGRAM
+                    + "] [--flush-ms=0] [--file=" + FILE + "]");
+            System.exit(1);
+        }
+        
         try {
-            // Создаем multicast socket
-            MulticastSocket socket = new MulticastSocket();
-            InetAddress group = InetAddress.getByName(MULTICAST_GROUP);
-            
             System.out.println("Сервер запущен. Группа: " + MULTICAST_GROUP + ":" + PORT);
-            System.out.println("Чтение сообщений из файла: " + FILE);
+            System.out.println("Чтение сообщений из файла: " + file);
             
             // Читаем сообщения из файла
-            List<String> messages = readMessagesFromFile(FILE);
+            List<String> messages = readMessagesFromFile(file);
             if (messages.isEmpty()) {
-                System.out.println("Ошибка: файл " + FILE + " пуст или не найден!");
+                System.out.println("Ошибка: файл " + file + " пуст или не найден!");
                 System.exit(1);
             }
             
             System.out.println("Загружено " + messages.size() + " сообщений");
-            System.out.println("Начинаю отправку сообщений каждые 10 секунд...\n");
-            
-            int messageIndex = 0;
+            if (rate < 1) {
+                System.out.printf("Начинаю отправку сообщений каждые %.0f секунд...%n%n", 1 / rate);
+            } else {
+                System.out.printf("Начинаю отправку сообщений с частотой %.0f в секунду...%n%n", rate);
+            }
             
-            // Отправляем сообщения в цикле
-            while (true) {
-                String message = messages.get(messageIndex);
-                byte[] buffer = message.getBytes("UTF-8");
-                
-                DatagramPacket packet = new DatagramPacket(
-                    buffer, 
-                    buffer.length, 
-                    group, 
-                    PORT
-                );
-                
-                socket.send(packet);
-                
-                System.out.println("[" + new Date() + "] Отправлено: " + message);
-                
-                // Переходим к следующему сообщению (циклически)
-                messageIndex = (messageIndex + 1) % messages.size();
-                
-                // Ждем 10 секунд
-                Thread.sleep(INTERVAL);
+            if (batchBytes > 0) {
+                System.out.println("Пакетный режим: до " + batchBytes + " байт в датаграмме"
+                        + (flushMillis > 0 ? ", ожидание до " + flushMillis + " мс" : ""));
             }
+            Server server = new Server(messages, rate, limit, batchBytes, TimeUnit.MILLISECONDS.toNanos(flushMillis));
+            Runtime.getRuntime().addShutdownHook(new Thread(server::printSummary));
+            server.run();
             
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ошибка: " + e.getMessage());
+            System.exit(1);
         } catch (IOException e) {
             System.err.println("Ошибка ввода-вывода: " + e.getMessage());
             e.printStackTrace();
@@ -65,6 +173,161 @@ public class Server {
         }
     }
     
+    /**
+     * Отправляет сообщения до достижения limit (без limit - до остановки процесса)
+     */
+    public void run() throws InterruptedException, IOException {
+        startNanos = System.nanoTime();
+        reportNanos = startNanos;
+        scheduler.scheduleAtFixedRate(this::tick, 0, tickNanos, TimeUnit.NANOSECONDS);
+        if (!logEach) {
+            scheduler.scheduleAtFixedRate(this::report, 1, 1, TimeUnit.SECONDS);
+        }
+        finished.await();
+        scheduler.shutdown();
+        scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        channel.close();
+    }
+    
+    /**
+     * Такт отправки: все сообщения, срок которых наступил к этому моменту
+     * Срок сообщения n - startNanos + n / rate; половина такта в запас, чтобы
+     * при редкой отправке округление не переносило сообщение на следующий такт
+     */
+    private void tick() {
+        long elapsed = System.nanoTime() - startNanos + tickNanos / 2;
+        long due = (long) (elapsed / 1e9 * rate) + 1;
+        if (limit > 0) {
+            due = Math.min(due, limit);
+        }
+        long behind = due - slots;
+        long maxBatch = Math.max(1, (long) (MAX_CATCH_UP_NANOS / 1e9 * rate));
+        if (behind > maxBatch) {
+            skipped += behind - maxBatch;
+            slots += behind - maxBatch;
+        }
+        while (slots < due) {
+            send();
+            slots++;
+        }
+        // Тот же запас в полтакта: иначе пакет, которому осталось ждать микросекунды, ждал бы лишний такт
+        if (batchCount > 0 && (System.nanoTime() - batchStartNanos + tickNanos / 2 >= flushNanos
+                || (limit > 0 && slots >= limit))) {
+            flush();
+        }
+        if (limit > 0 && slots >= limit) {
+            finished.countDown();
+        }
+    }
+    
+    private void send() {
+        ByteBuffer payload = encoded[messageIndex];
+        payload.clear();
+        int size = Frame.RECORD_HEADER_SIZE + payload.remaining();
+        if (batch != null && Frame.HEADER_SIZE + size <= batch.capacity()) {
+            if (batchCount > 0 && batch.remaining() < size) {
+                flush();
+            }
+            if (batchCount == 0) {
+                batch.clear().position(Frame.HEADER_SIZE);
+                batchFirstSequence = sequence;
+                batchTimestamp = Frame.epochMicros();
+                batchStartNanos = System.nanoTime();
+            }
+            batch.putShort((short) payload.remaining()).put(payload);
+            batchCount++;
+        } else {
+            // Сообщение больше пакета уходит отдельным кадром, после уже собранных
+            if (batchCount > 0) {
+                flush();
+            }
+            Frame.writeHeader(header, sequence, Frame.epochMicros(), payload.remaining());
+            frame[1] = payload;
+            try {
+                channel.write(frame);
+                datagrams++;
+                sent++;
+            } catch (IOException e) {
+                failed(e, 1);
+            }
+        }
+        if (logEach) {
+            System.out.println("[" + new Date() + "] Отправлено #" + sequence + ": " + messages.get(messageIndex));
+        }
+        // Номер расходуется и при ошибке: для получателя это потеря
+        sequence++;
+        // Переходим к следующему сообщению (циклически)
+        messageIndex = (messageIndex + 1) % encoded.length;
+    }
+    
+    /**
+     * Отправляет собранный пакетный кадр
+     */
+    private void flush() {
+        batch.flip();
+        Frame.writeBatchHeader(batch, batchFirstSequence, batchTimestamp);
+        int count = batchCount;
+        batchCount = 0;
+        try {
+            channel.write(batch);
+            datagrams++;
+            sent += count;
+        } catch (IOException e) {
+            failed(e, count);
+        }
+    }
+    
+    private void failed(IOException e, int count) {
+        // Одна и та же ошибка на каждом сообщении заполнила бы вывод
+        if (errors == 0 || logEach) {
+            System.err.println("Ошибка при отправке: " + e.getMessage());
+        }
+        errors += count;
+    }
+    
+    private void report() {
+        long now = System.nanoTime();
+        long total = sent;
+        long totalDatagrams = datagrams;
+        double seconds = (now - reportNanos) / 1e9;
+        System.out.printf("[%tT] Отправлено %d сообщ/с в %d датаграммах/с (всего %d, ошибок %d, пропущено %d)%n",
+                new Date(), Math.round((total - reportSent) / seconds),
+                Math.round((totalDatagrams - reportDatagrams) / seconds), total, errors, skipped);
+        reportNanos = now;
+        reportSent = total;
+        reportDatagrams = totalDatagrams;
+    }
+    
+    private void printSummary() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("Итого: отправлено %d сообщений в %d датаграммах за %.1f с (%.0f сообщ/с при заданных %s), "
+                + "ошибок %d, пропущено %d%n", sent, datagrams, seconds, sent / seconds, rate, errors, skipped);
+    }
+    
+    /**
+     * Кодирует сообщения в UTF-8 в один direct буфер; для каждого сообщения - свой срез
+     */
+    private static ByteBuffer[] encode(List<String> messages) {
+        byte[][] bytes = new byte[messages.size()][];
+        int total = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = messages.get(i).getBytes(StandardCharsets.UTF_8);
+            if (bytes[i].length > Frame.MAX_PAYLOAD) {
+                throw new IllegalArgumentException("Сообщение " + (i + 1) + " длиннее " + Frame.MAX_PAYLOAD
+                        + " байт и не помещается в датаграмму");
+            }
+            total += bytes[i].length;
+        }
+        ByteBuffer all = ByteBuffer.allocateDirect(total);
+        ByteBuffer[] slices = new ByteBuffer[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            int start = all.position();
+            all.put(bytes[i]);
+            slices[i] = all.duplicate().position(start).limit(all.position()).slice();
+        }
+        return slices;
+    }
+    
     /**
      * Читает сообщения из файла
      * Каждая строка - отдельное сообщение
@@ -88,4 +351,3 @@ public class Server {
         return messages;
     }
 }
-
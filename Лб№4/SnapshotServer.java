@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Неблокирующий TCP сервер последних сообщений для конечных клиентов на одном селекторе
+ *
+ * Ответ тот же, что у прежнего сервера: число сообщений, затем сообщения по строке в UTF-8,
+ * после чего соединение закрывается. Ответ кодируется заново, только если в кольце появились
+ * новые сообщения; до тех пор все клиенты получают один и тот же готовый буфер (каждый через
+ * свой duplicate со своей позицией), без кодирования и копирования. Поток на соединение
+ * не создается: тысячи одновременных клиентов обслуживает один поток.
+ */
+public class SnapshotServer {
+    // Очередь еще не принятых соединений, чтобы всплеск подключений не получал отказ
+    private static final int BACKLOG = 1024;
+    
+    private final int port;
+    private final MessageRing messages;
+    private ByteBuffer encoded;
+    private long encodedVersion = -1;
+    private volatile long served;
+    private volatile long rebuilds;
+    private volatile long failed;
+    
+    public SnapshotServer(int port, MessageRing messages) {
+        this.port = port;
+        this.messages = messages;
+    }
+    
+    /**
+     * Принимает соединения и отправляет ответы до ошибки селектора или серверного сокета
+     */
+    public void run() throws IOException {
+        try (Selector selector = Selector.open(); ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), BACKLOG);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept(server, selector);
+                    } else if (key.isWritable()) {
+                        SocketChannel client = (SocketChannel) key.channel();
+                        send(client, (ByteBuffer) key.attachment());
+                    }
+                }
+            }
+        }
+    }
+    
+    private void accept(ServerSocketChannel server, Selector selector) {
+        while (true) {
+            SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                // Например, кончились дескрипторы: соединение останется в очереди до следующего select
+                System.err.println("Ошибка при приеме соединения: " + e.getMessage());
+                return;
+            }
+            if (client == null) return;
+            try {
+                client.configureBlocking(false);
+                ByteBuffer response = snapshot().duplicate();
+                // Обычно ответ целиком помещается в буфер сокета и уходит сразу
+                if (!send(client, response)) {
+                    client.register(selector, SelectionKey.OP_WRITE, response);
+                }
+            } catch (IOException e) {
+                failed++;
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+    
+    /**
+     * Пишет остаток ответа; true - соединение завершено (ответ отправлен или ошибка)
+     */
+    private boolean send(SocketChannel client, ByteBuffer response) {
+        try {
+            client.write(response);
+            if (response.hasRemaining()) return false;
+            served++;
+        } catch (IOException e) {
+            // Клиент закрыл соединение, не дочитав
+            failed++;
+        }
+        try {
+            client.close();
+        } catch (IOException ignored) {
+        }
+        return true;
+    }
+    
+    /**
+     * Готовый ответ для текущего содержимого кольца; кодируется при первом запросе после изменения
+     */
+    private ByteBuffer snapshot() {
+        long version = messages.getWritten();
+        if (version != encodedVersion) {
+            List<String> list = messages.snapshot();
+            StringBuilder text = new StringBuilder();
+            text.append(list.size()).append('\n');
+            for (String message : list) {
+                text.append(message).append('\n');
+            }
+            encoded = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+            encodedVersion = version;
+            rebuilds++;
+        }
+        return encoded;
+    }
+    
+    /**
+     * Клиенты, получившие ответ полностью
+     */
+    public long getServed() {
+        return served;
+    }
+    
+    /**
+     * Сколько раз ответ кодировался заново
+     */
+    public long getRebuilds() {
+        return rebuilds;
+    }
+    
+    /**
+     * Клиенты, закрывшие соединение до конца ответа
+     */
+    public long getFailed() {
+        return failed;
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Общее ограничение числа одновременно обрабатываемых запросов, не зависящее от режима
+ * выполнения и HTTP сервера
+ *
+ * Запрос занимает разрешение на время обработки. Если свободных нет, он ждет освобождения
+ * не дольше maxWaitNanos (0 - не ждет) и иначе отклоняется: при перегрузке сервер быстро
+ * отвечает 503 вместо того, чтобы копить запросы, которые клиенты уже не дождутся.
+ */
+public class AdmissionLimiter {
+    private final Semaphore permits;
+    private final long maxWaitNanos;
+    private final LongAdder rejected = new LongAdder();
+    
+    public AdmissionLimiter(int maxInFlight, long maxWaitNanos) {
+        this.permits = new Semaphore(maxInFlight);
+        this.maxWaitNanos = maxWaitNanos;
+    }
+    
+    /**
+     * true - запрос принят, после обработки нужно вызвать release()
+     */
+    public boolean tryAcquire() {
+        boolean acquired = permits.tryAcquire();
+        if (!acquired && maxWaitNanos > 0) {
+            try {
+                acquired = permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!acquired) {
+            rejected.increment();
+        }
+        return acquired;
+    }
+    
+    public void release() {
+        permits.release();
+    }
+    
+    /**
+     * Сколько запросов отклонено с 503, потому что все разрешения были заняты
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+}
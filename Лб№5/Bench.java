@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Минимальный измерительный стенд для микробенчмарков
+ * Прогрев, затем замер пропускной способности в одном или нескольких потоках.
+ * Результат операции сохраняется в volatile поле, чтобы JIT не удалил вычисления.
+ */
+public class Bench {
+    private static volatile Object sink;
+    
+    /**
+     * Измеряемая операция
+     */
+    public interface Operation {
+        Object run() throws Exception;
+    }
+    
+    private Bench() {
+    }
+    
+    /**
+     * Замер в одном потоке: прогрев warmupMillis, затем замер measureMillis
+     * Возвращает число операций в секунду
+     */
+    public static double run(String name, long warmupMillis, long measureMillis, Operation operation) throws Exception {
+        return run(name, 1, warmupMillis, measureMillis, operation);
+    }
+    
+    /**
+     * Замер в нескольких потоках, каждый поток выполняет операцию в цикле
+     */
+    public static double run(String name, int threads, long warmupMillis, long measureMillis,
+                             Operation operation) throws Exception {
+        loop(threads, warmupMillis, operation);
+        long start = System.nanoTime();
+        long operations = loop(threads, measureMillis, operation);
+        long elapsed = System.nanoTime() - start;
+        
+        double opsPerSecond = operations * 1e9 / elapsed;
+        double nanosPerOp = (double) elapsed * threads / operations;
+        System.out.printf("%-45s %3d поток(ов) %,15.0f оп/с %,12.1f нс/оп%n",
+                name, threads, opsPerSecond, nanosPerOp);
+        return opsPerSecond;
+    }
+    
+    private static long loop(int threads, long millis, Operation operation) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder operations = new LongAdder();
+        CountDownLatch startSignal = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        Exception[] failure = new Exception[1];
+        
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                long count = 0;
+                try {
+                    startSignal.await();
+                    while (running.get()) {
+                        sink = operation.run();
+                        count++;
+                    }
+                } catch (Exception e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                } finally {
+                    operations.add(count);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        
+        startSignal.countDown();
+        Thread.sleep(millis);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        synchronized (failure) {
+            if (failure[0] != null) throw failure[0];
+        }
+        return operations.sum();
+    }
+    
+    /**
+     * Объем занятой кучи после сборки мусора, в байтах
+     */
+    public static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Одна операция пакетного запроса POST /api/tasks/_bulk
+ *
+ * Формат элемента: {"op":"create|update|delete","id":N,"version":N,"title":...,"description":...,"completed":...}
+ * op по умолчанию - create; version - необязательное условие на текущую версию задачи (как If-Match).
+ * После выполнения в операции сохраняется результат: outcome, итоговая задача или текст ошибки.
+ */
+public class BulkOperation {
+    public enum Type {
+        CREATE, UPDATE, DELETE
+    }
+    
+    public enum Outcome {
+        CREATED, UPDATED, DELETED, NOT_FOUND, VERSION_MISMATCH, INVALID
+    }
+    
+    private Type type = Type.CREATE;
+    private final Task task = new Task();
+    private long expectedVersion;
+    private Outcome outcome;
+    private Task result;
+    private String error;
+    
+    public Type getType() {
+        return type;
+    }
+    
+    public void setType(Type type) {
+        this.type = type;
+    }
+    
+    /**
+     * Данные задачи из запроса (для delete используется только id)
+     */
+    public Task getTask() {
+        return task;
+    }
+    
+    public int getId() {
+        return task.getId();
+    }
+    
+    /**
+     * Ожидаемая версия задачи, 0 - без условия
+     */
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+    
+    public void setExpectedVersion(long expectedVersion) {
+        this.expectedVersion = expectedVersion;
+    }
+    
+    public Outcome getOutcome() {
+        return outcome;
+    }
+    
+    /**
+     * Задача после выполнения операции (для удаления и ошибок - текущая задача или null)
+     */
+    public Task getResult() {
+        return result;
+    }
+    
+    public String getError() {
+        return error;
+    }
+    
+    public void complete(Outcome outcome, Task result) {
+        this.outcome = outcome;
+        this.result = result;
+    }
+    
+    public void fail(Outcome outcome, String error) {
+        this.outcome = outcome;
+        this.error = error;
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Потоковое чтение тела пакетного запроса: JSON массив объектов или NDJSON
+ * (объекты, разделенные переводами строк). Формат определяется по первому символу.
+ *
+ * Тело не читается целиком: в буфере держится только текущий элемент,
+ * размер одного элемента ограничен maxElementBytes.
+ */
+public class BulkRequestReader {
+    private static final int BUFFER_BYTES = 64 * 1024;
+    
+    private final InputStream in;
+    private final int maxElementBytes;
+    private byte[] buffer = new byte[BUFFER_BYTES];
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private boolean started;
+    private boolean array;
+    private boolean finished;
+    private int count;
+    
+    public BulkRequestReader(InputStream in, int maxElementBytes) {
+        this.in = in;
+        this.maxElementBytes = maxElementBytes;
+    }
+    
+    /**
+     * true - тело является JSON массивом (известно после первого вызова next)
+     */
+    public boolean isArray() {
+        return array;
+    }
+    
+    /**
+     * Следующая операция или null, если тело закончилось
+     * Нарушение структуры (разделителей, скобок) - IllegalArgumentException, дальше читать нельзя;
+     * ошибка внутри элемента возвращается как операция с outcome INVALID
+     */
+    public BulkOperation next() throws IOException {
+        if (finished) return null;
+        int c = skipWhitespace();
+        if (!started) {
+            started = true;
+            if (c == '[') {
+                array = true;
+                pos++;
+                c = skipWhitespace();
+            }
+        }
+        
+        if (array) {
+            if (c == ']') {
+                pos++;
+                if (skipWhitespace() != -1) throw error("Unexpected data after JSON array");
+                finished = true;
+                return null;
+            }
+            if (count > 0) {
+                if (c != ',') throw error("Expected ',' or ']'");
+                pos++;
+                c = skipWhitespace();
+            }
+            if (c == -1) throw error("Unterminated JSON array");
+        } else if (c == -1) {
+            finished = true;
+            return null;
+        }
+        if (c != '{') throw error("Expected JSON object");
+        
+        int length = scanObject();
+        int start = pos;
+        pos += length;
+        count++;
+        try {
+            return JsonTaskParser.parseOperation(buffer, start, length);
+        } catch (IllegalArgumentException e) {
+            BulkOperation invalid = new BulkOperation();
+            invalid.fail(BulkOperation.Outcome.INVALID, "Invalid JSON: " + e.getMessage());
+            return invalid;
+        }
+    }
+    
+    /**
+     * Находит конец объекта, начинающегося в pos, с учетом строк и вложенности;
+     * при необходимости дочитывает поток. Возвращает длину объекта в байтах
+     */
+    private int scanObject() throws IOException {
+        int depth = 0;
+        boolean inString = false;
+        int i = pos;
+        while (true) {
+            if (i == limit) {
+                int offset = i - pos;
+                if (!fill()) throw error("Unterminated JSON object");
+                i = pos + offset;
+            }
+            byte b = buffer[i++];
+            if (inString) {
+                if (b == '\\') {
+                    if (i == limit) {
+                        int offset = i - pos;
+                        if (!fill()) throw error("Unterminated JSON object");
+                        i = pos + offset;
+                    }
+                    i++;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (--depth == 0) return i - pos;
+            }
+        }
+    }
+    
+    /**
+     * Первый непробельный символ (не потребляя его) или -1 в конце потока
+     */
+    private int skipWhitespace() throws IOException {
+        while (true) {
+            while (pos < limit) {
+                byte b = buffer[pos];
+                if (b != ' ' && b != '\t' && b != '\n' && b != '\r') return b & 0xFF;
+                pos++;
+            }
+            if (!fill()) return -1;
+        }
+    }
+    
+    /**
+     * Дочитывает данные в буфер, сохраняя байты начиная с pos
+     * Возвращает false, если поток закончился
+     */
+    private boolean fill() throws IOException {
+        if (eof) return false;
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buffer.length) {
+            if (buffer.length >= maxElementBytes) {
+                throw new JsonTaskParser.BodyTooLargeException(maxElementBytes);
+            }
+            buffer = Arrays.copyOf(buffer, (int) Math.min(maxElementBytes, buffer.length * 2L));
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read == -1) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+    
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " after " + count + " operations");
+    }
+}
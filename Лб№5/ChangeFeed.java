@@ -0,0 +1,217 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Лента изменений задач для подписчиков (GET /api/tasks/_changes)
+ *
+ * Изменения получают возрастающие номера и хранятся в кольцевом буфере последних capacity штук.
+ * Запись в ленту без блокировок: номер берется из AtomicLong, ячейка буфера записывается
+ * с release-семантикой, поэтому писатели с разных полос TaskService не ждут друг друга.
+ * Подписчики не будятся из publish: писатель вызывает signal() после того, как отпустил
+ * свои блокировки, и signal будит только уснувших подписчиков, каждого один раз.
+ * Каждый подписчик читает буфер со своей позиции, поэтому медленный клиент не задерживает
+ * ни запись задач, ни других подписчиков. Отставший больше чем на размер буфера подписчик
+ * получает OVERRUN и должен заново загрузить список задач.
+ *
+ * Номера начинаются заново в каждом запуске, поэтому id события для клиента - "эпоха-номер":
+ * id из другого запуска (или другой ленты) не совпадает по эпохе, и продолжить с него нельзя.
+ */
+public class ChangeFeed {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int MAX_SUBSCRIBERS = 256;
+    /** Результат poll: запрошенные изменения уже вытеснены из буфера */
+    public static final int OVERRUN = -1;
+    // Эпохи лент: время запуска в миллисекундах, дальше по одной на каждую ленту процесса
+    private static final AtomicLong EPOCHS = new AtomicLong(System.currentTimeMillis());
+    
+    public enum Type {
+        CREATE, UPDATE, DELETE
+    }
+    
+    /**
+     * Одно изменение; для удаления task - последняя версия удаленной задачи
+     * Задачи в хранилище не изменяются после записи, поэтому ссылку можно хранить без копирования
+     */
+    public static final class Change {
+        private final long seq;
+        private final Type type;
+        private final Task task;
+        
+        Change(long seq, Type type, Task task) {
+            this.seq = seq;
+            this.type = type;
+            this.task = task;
+        }
+        
+        public long getSeq() {
+            return seq;
+        }
+        
+        public Type getType() {
+            return type;
+        }
+        
+        public Task getTask() {
+            return task;
+        }
+    }
+    
+    private final AtomicReferenceArray<Change> ring;
+    private final int mask;
+    private final String epoch = Long.toHexString(EPOCHS.incrementAndGet());
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private final CopyOnWriteArrayList<Consumer<Change>> listeners = new CopyOnWriteArrayList<>();
+    // Номер последнего выданного изменения; ячейка с ним может быть еще не записана
+    private final AtomicLong lastSeq = new AtomicLong();
+    // Подписчики, которые уснули в poll и еще не разбужены
+    private final Set<Thread> waiters = ConcurrentHashMap.newKeySet();
+    
+    public ChangeFeed() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * capacity округляется вверх до степени двойки
+     */
+    public ChangeFeed(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        ring = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+    
+    /**
+     * Добавляет изменение и возвращает его номер; подписчиков будит signal()
+     * Изменения одной задачи должны публиковаться в порядке их применения (под блокировкой ее id)
+     */
+    public long publish(Type type, Task task) {
+        long seq = lastSeq.incrementAndGet();
+        Change change = new Change(seq, type, task);
+        ring.setRelease((int) (seq & mask), change);
+        for (Consumer<Change> listener : listeners) {
+            listener.accept(change);
+        }
+        return seq;
+    }
+    
+    /**
+     * Будит подписчиков, ждущих в poll; вызывается после publish вне блокировок писателя,
+     * для пакета изменений - один раз на пакет
+     */
+    public void signal() {
+        for (Thread waiter : waiters) {
+            // Разбудить должен только один сигнал, остальные не трогают уже проснувшегося
+            if (waiters.remove(waiter)) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+    
+    /**
+     * Слушатель, которого publish вызывает сразу, в потоке писателя (например, сброс кеша)
+     * Должен работать быстро и не обращаться к ленте
+     */
+    public void addListener(Consumer<Change> listener) {
+        listeners.add(listener);
+    }
+    
+    public long getLastSeq() {
+        return lastSeq.get();
+    }
+    
+    /**
+     * id события для клиента (SSE id, Last-Event-ID) по номеру изменения
+     */
+    public String eventId(long seq) {
+        return epoch + "-" + seq;
+    }
+    
+    /**
+     * Номер изменения из id события или -1, если id из другого запуска, другой ленты или испорчен
+     */
+    public long parseEventId(String eventId) {
+        int dash = eventId.lastIndexOf('-');
+        if (dash != epoch.length() || !eventId.startsWith(epoch)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(eventId.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Можно ли продолжить чтение после изменения с номером after
+     * (оно не из будущего и следующее за ним еще в буфере)
+     */
+    public boolean canResume(long after) {
+        long last = lastSeq.get();
+        return after >= 0 && after <= last && last - after <= ring.length();
+    }
+    
+    /**
+     * Копирует в batch изменения с номерами больше after, ожидая их не дольше timeoutMillis
+     * Возвращает их число (0 - за время ожидания изменений не было) или OVERRUN
+     */
+    public int poll(long after, Change[] batch, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Thread current = Thread.currentThread();
+        try {
+            while (true) {
+                // Сначала в список ждущих, потом проверка буфера: сигнал после записи не потеряется
+                waiters.add(current);
+                int count = read(after, batch);
+                if (count != 0) return count;
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return 0;
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        } finally {
+            waiters.remove(current);
+        }
+    }
+    
+    /**
+     * Изменения подряд после after, уже записанные в буфер, или OVERRUN
+     * Чтение останавливается на первой еще не записанной ячейке, чтобы не пропустить изменение
+     */
+    private int read(long after, Change[] batch) {
+        if (lastSeq.get() - after > ring.length()) return OVERRUN;
+        int count = 0;
+        while (count < batch.length) {
+            long seq = after + 1 + count;
+            Change change = ring.getAcquire((int) (seq & mask));
+            if (change == null || change.seq < seq) break;
+            if (change.seq > seq) return OVERRUN;
+            batch[count++] = change;
+        }
+        return count;
+    }
+    
+    /**
+     * Регистрирует подписчика; false - достигнут предел MAX_SUBSCRIBERS
+     */
+    public boolean subscribe() {
+        while (true) {
+            int current = subscribers.get();
+            if (current >= MAX_SUBSCRIBERS) return false;
+            if (subscribers.compareAndSet(current, current + 1)) return true;
+        }
+    }
+    
+    public void unsubscribe() {
+        subscribers.decrementAndGet();
+    }
+    
+    public int getSubscriberCount() {
+        return subscribers.get();
+    }
+}
@@ -0,0 +1,334 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Маршрутизатор кластера из нескольких RestApiServer (--cluster=host:port,...)
+ *
+ * Задачи распределены по узлам консистентным хешированием id (HashRing), сам маршрутизатор
+ * задач не хранит. Запросы /api/tasks/{id} пересылаются узлу-владельцу как есть, список
+ * и поиск (GET /api/tasks) запрашиваются у всех узлов параллельно, и их упорядоченные по id
+ * ответы сливаются потоком. Id новым задачам назначает маршрутизатор, чтобы сразу знать узел;
+ * счетчик продолжается с наибольшего X-Next-Id узлов. Поэтому задачи создаются только через один
+ * маршрутизатор, а пакетные операции и лента изменений доступны только на самих узлах.
+ */
+public class ClusterRouter {
+    /** Заголовок ответа узла на GET /api/tasks: следующий id, который узел выдал бы сам */
+    static final String NEXT_ID_HEADER = "X-Next-Id";
+    private static final String CONTEXT = "/api/tasks";
+    private static final String METRICS_PATH = "/metrics";
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final String[] REQUEST_HEADERS = {"Content-Type", "If-Match", "If-None-Match", "Accept-Encoding"};
+    private static final String[] RESPONSE_HEADERS = {"Content-Type", "Content-Encoding", "Vary", "ETag",
+            "X-Next-Cursor", "Retry-After", "Access-Control-Allow-Origin", "Access-Control-Allow-Methods",
+            "Access-Control-Allow-Headers", "Access-Control-Max-Age", "Access-Control-Expose-Headers"};
+    
+    private final ServerConfig config;
+    private final List<URI> nodes = new ArrayList<>();
+    private final HashRing ring;
+    private final HttpClient client;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private volatile boolean nextIdLoaded;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private HttpServer server;
+    
+    public ClusterRouter(ServerConfig config) {
+        this.config = config;
+        for (String node : config.getClusterNodes()) {
+            nodes.add(URI.create(node));
+        }
+        this.ring = new HashRing(nodes.size());
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(2))
+                .build();
+    }
+    
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(config.getPort()), config.getBacklog());
+        Filter metricsFilter = metrics.filter(RestApiServer::routeOf);
+        server.createContext(CONTEXT, this::handleRequest).getFilters().add(metricsFilter);
+        server.createContext(METRICS_PATH, this::handleMetrics).getFilters().add(metricsFilter);
+        server.setExecutor(ServerExecutors.create(config));
+        server.start();
+        
+        System.out.println("========================================");
+        System.out.println("  Маршрутизатор кластера запущен");
+        System.out.println("========================================");
+        System.out.println("URL: http://localhost:" + config.getPort() + CONTEXT);
+        System.out.println("Узлы: " + nodes);
+        System.out.println("Обработка запросов: " + config);
+        System.out.println("========================================\n");
+    }
+    
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(1);
+            server = null;
+        }
+    }
+    
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        try {
+            if (path.equals(CONTEXT) || path.equals(CONTEXT + "/")) {
+                if ("GET".equals(method)) {
+                    handleList(exchange);
+                } else if ("POST".equals(method)) {
+                    handleCreate(exchange);
+                } else {
+                    // OPTIONS и неподдерживаемые методы узел обработает так же, как без маршрутизатора
+                    forward(exchange, nodes.get(0), readBody(exchange));
+                }
+                return;
+            }
+            
+            String[] pathParts = path.split("/");
+            int id;
+            try {
+                id = Integer.parseInt(pathParts[3]);
+            } catch (RuntimeException e) {
+                if (pathParts.length > 3 && pathParts[3].startsWith("_")) {
+                    sendError(exchange, 501, "Not supported by the cluster router, send this request to a node");
+                } else {
+                    forward(exchange, nodes.get(0), readBody(exchange));
+                }
+                return;
+            }
+            forward(exchange, nodes.get(ring.ownerOf(id)), readBody(exchange));
+        } catch (JsonTaskParser.BodyTooLargeException e) {
+            sendError(exchange, 413, e.getMessage());
+        } catch (IOException | UncheckedIOException e) {
+            sendError(exchange, 502, "Cluster node unavailable: " + (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendError(exchange, 503, "Interrupted");
+        } catch (Exception e) {
+            e.printStackTrace();
+            sendError(exchange, 500, "Internal Server Error: " + e.getMessage());
+        }
+    }
+    
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        ResponseBody.send(exchange, 200, body, config.getCompressMinBytes());
+    }
+    
+    /**
+     * POST /api/tasks: назначает id (если он не задан) и пересылает задачу узлу-владельцу
+     */
+    private void handleCreate(HttpExchange exchange) throws IOException, InterruptedException {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        Task task;
+        try {
+            task = JsonTaskParser.parse(exchange.getRequestBody(),
+                    contentLength != null ? Long.parseLong(contentLength.trim()) : -1, config.getMaxBodyBytes());
+        } catch (RuntimeException e) {
+            sendError(exchange, 400, "Invalid JSON: " + e.getMessage());
+            return;
+        }
+        loadNextId();
+        if (task.getId() > 0) {
+            reserveId(task.getId());
+        } else {
+            task.setId(nextId.getAndIncrement());
+        }
+        forward(exchange, nodes.get(ring.ownerOf(task.getId())), JsonStreamWriter.toJson(task));
+    }
+    
+    /**
+     * GET /api/tasks: тот же запрос ко всем узлам и слияние ответов по id
+     * Каждый узел возвращает не больше limit своих задач после cursor, поэтому
+     * первые limit задач слияния - ровно нужная страница
+     */
+    private void handleList(HttpExchange exchange) throws IOException, InterruptedException {
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        String suffix = CONTEXT + (rawQuery != null ? "?" + rawQuery : "");
+        List<CompletableFuture<HttpResponse<InputStream>>> futures = new ArrayList<>(nodes.size());
+        for (URI node : nodes) {
+            HttpRequest request = HttpRequest.newBuilder(node.resolve(suffix)).timeout(TIMEOUT).GET().build();
+            futures.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()));
+        }
+        
+        List<HttpResponse<InputStream>> responses = new ArrayList<>(nodes.size());
+        try {
+            IOException failure = null;
+            for (CompletableFuture<HttpResponse<InputStream>> future : futures) {
+                try {
+                    responses.add(future.join());
+                } catch (CompletionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+            }
+            if (failure != null) throw failure;
+            
+            List<Iterable<Task>> sources = new ArrayList<>(responses.size());
+            for (HttpResponse<InputStream> response : responses) {
+                if (response.statusCode() != 200) {
+                    // Ошибка запроса (например, неверный параметр) одинакова на всех узлах
+                    relay(exchange, response.statusCode(), response.headers(), response.body().readAllBytes());
+                    return;
+                }
+                response.headers().firstValue(NEXT_ID_HEADER).ifPresent(value -> reserveId(Integer.parseInt(value) - 1));
+                sources.add(taskStream(response.body()));
+            }
+            Iterable<Task> merged = ShardedTaskService.mergeById(sources);
+            
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            exchange.getResponseHeaders().set("Access-Control-Expose-Headers", "X-Next-Cursor");
+            Integer limit = parseLimit(rawQuery);
+            if (limit != null) {
+                List<Task> page = TaskService.firstPage(merged, Math.min(limit, MAX_PAGE_SIZE));
+                if (page.size() == Math.min(limit, MAX_PAGE_SIZE)) {
+                    exchange.getResponseHeaders().set("X-Next-Cursor", String.valueOf(page.get(page.size() - 1).getId()));
+                }
+                merged = page;
+            }
+            try (OutputStream os = ResponseBody.open(exchange, 200, config.getCompressMinBytes())) {
+                JsonStreamWriter.writeTaskArray(os, merged);
+            }
+        } finally {
+            for (HttpResponse<InputStream> response : responses) {
+                response.body().close();
+            }
+        }
+    }
+    
+    /**
+     * Пересылает запрос узлу и передает клиенту его ответ (тело не разбирается)
+     */
+    private void forward(HttpExchange exchange, URI node, byte[] body) throws IOException, InterruptedException {
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        URI target = node.resolve(exchange.getRequestURI().getRawPath() + (rawQuery != null ? "?" + rawQuery : ""));
+        HttpRequest.Builder request = HttpRequest.newBuilder(target).timeout(TIMEOUT)
+                .method(exchange.getRequestMethod(), body.length > 0
+                        ? HttpRequest.BodyPublishers.ofByteArray(body) : HttpRequest.BodyPublishers.noBody());
+        for (String header : REQUEST_HEADERS) {
+            String value = exchange.getRequestHeaders().getFirst(header);
+            if (value != null) request.header(header, value);
+        }
+        HttpResponse<byte[]> response = client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+        relay(exchange, response.statusCode(), response.headers(), response.body());
+    }
+    
+    private static void relay(HttpExchange exchange, int status, HttpHeaders headers, byte[] body)
+            throws IOException {
+        for (String header : RESPONSE_HEADERS) {
+            headers.firstValue(header).ifPresent(value -> exchange.getResponseHeaders().set(header, value));
+        }
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+    
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(config.getMaxBodyBytes() + 1);
+            if (body.length > config.getMaxBodyBytes()) {
+                throw new JsonTaskParser.BodyTooLargeException(config.getMaxBodyBytes());
+            }
+            return body;
+        }
+    }
+    
+    /**
+     * Ленивый разбор JSON массива задач из ответа узла
+     */
+    private Iterable<Task> taskStream(InputStream body) {
+        BulkRequestReader reader = new BulkRequestReader(body, config.getMaxBodyBytes());
+        return () -> new Iterator<Task>() {
+            private Task next;
+            private boolean done;
+            
+            @Override
+            public boolean hasNext() {
+                if (next == null && !done) {
+                    try {
+                        BulkOperation element = reader.next();
+                        if (element == null) {
+                            done = true;
+                        } else if (element.getOutcome() != null) {
+                            throw new IllegalStateException("Invalid task from cluster node: " + element.getError());
+                        } else {
+                            next = element.getTask();
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return next != null;
+            }
+            
+            @Override
+            public Task next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Task result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+    
+    /**
+     * Счетчик id продолжается с наибольшего следующего id узлов; читается один раз
+     */
+    private void loadNextId() throws IOException, InterruptedException {
+        if (nextIdLoaded) return;
+        synchronized (this) {
+            if (nextIdLoaded) return;
+            for (URI node : nodes) {
+                HttpRequest request = HttpRequest.newBuilder(node.resolve(CONTEXT + "?limit=1")).timeout(TIMEOUT).GET().build();
+                HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                String value = response.headers().firstValue(NEXT_ID_HEADER)
+                        .orElseThrow(() -> new IOException("Node " + node + " did not report " + NEXT_ID_HEADER));
+                reserveId(Integer.parseInt(value) - 1);
+            }
+            nextIdLoaded = true;
+        }
+    }
+    
+    private void reserveId(int id) {
+        if (id < Integer.MAX_VALUE) {
+            nextId.accumulateAndGet(id + 1, Math::max);
+        }
+    }
+    
+    private static Integer parseLimit(String rawQuery) {
+        // Разбор как на узлах: значение уже проверено ими, ответ с ошибкой до сюда не доходит
+        String limit = RestApiServer.parseQuery(rawQuery).get("limit");
+        return limit != null ? Integer.valueOf(limit) : null;
+    }
+    
+    private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        ResponseBody.send(exchange, status, JsonUtils.errorJson(message).getBytes(StandardCharsets.UTF_8),
+                config.getCompressMinBytes());
+    }
+}
@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Колоночный снапшот задач, читаемый через отображение файла в память
+ *
+ * Формат файла:
+ * заголовок - magic, версия, поколение журнала, число задач, смещения секций,
+ * versionFloor - наибольшая версия удаленных задач (long);
+ * ids - отсортированные id задач (int);
+ * flags - флаги задач (byte): completed, title == null, description == null;
+ * versions - версии задач (long);
+ * offsets - смещения строк в секции data (long, 2 * count + 1 значений):
+ * title задачи i - [offsets[2i], offsets[2i+1]), description - [offsets[2i+1], offsets[2i+2]);
+ * data - байты UTF-8 всех строк подряд.
+ *
+ * Файл не загружается в кучу: задачи создаются по запросу из отображенных страниц,
+ * поэтому запуск мгновенный, а объем данных может превышать размер кучи.
+ */
+public class ColumnarSnapshot {
+    private static final int MAGIC = 0x54434F4C; // "TCOL"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 72;
+    private static final long CHUNK_BYTES = 1L << 30;
+    private static final int WRITE_BUFFER_BYTES = 256 * 1024;
+    
+    private static final byte COMPLETED = 1;
+    private static final byte TITLE_NULL = 2;
+    private static final byte DESCRIPTION_NULL = 4;
+    
+    private final Path file;
+    private final long generation;
+    private final long versionFloor;
+    private final int count;
+    private final long idsOffset;
+    private final long flagsOffset;
+    private final long versionsOffset;
+    private final long offsetsOffset;
+    private final long dataOffset;
+    private final MappedByteBuffer[] chunks;
+    
+    private ColumnarSnapshot(Path file, long generation, long versionFloor, int count, long idsOffset, long flagsOffset,
+                             long versionsOffset, long offsetsOffset, long dataOffset, MappedByteBuffer[] chunks) {
+        this.file = file;
+        this.generation = generation;
+        this.versionFloor = versionFloor;
+        this.count = count;
+        this.idsOffset = idsOffset;
+        this.flagsOffset = flagsOffset;
+        this.versionsOffset = versionsOffset;
+        this.offsetsOffset = offsetsOffset;
+        this.dataOffset = dataOffset;
+        this.chunks = chunks;
+    }
+    
+    /**
+     * Отображает файл снапшота в память; данные читаются лениво при обращении
+     */
+    public static ColumnarSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException("Неверный формат снапшота: " + file);
+            }
+            int chunkCount = (int) ((size + CHUNK_BYTES - 1) / CHUNK_BYTES);
+            MappedByteBuffer[] chunks = new MappedByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                long start = i * CHUNK_BYTES;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_BYTES, size - start));
+            }
+            // Отображение остается действительным после закрытия канала
+            ByteBuffer header = chunks[0].duplicate();
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Неверный формат снапшота: " + file);
+            }
+            return new ColumnarSnapshot(file, header.getLong(8), header.getLong(64), header.getInt(16), header.getLong(24),
+                    header.getLong(32), header.getLong(56), header.getLong(40), header.getLong(48), chunks);
+        }
+    }
+    
+    /**
+     * Записывает задачи (строго по возрастанию id) в новый файл снапшота
+     * Колонки сначала пишутся во временные файлы, затем склеиваются за одно копирование
+     * versionFloor - наибольшая версия удаленных задач, ее продолжат задачи, созданные заново
+     */
+    public static int write(Path file, long generation, long versionFloor, Iterable<Task> tasksById) throws IOException {
+        Path idsFile = Paths.get(file + ".ids");
+        Path flagsFile = Paths.get(file + ".flags");
+        Path versionsFile = Paths.get(file + ".versions");
+        Path offsetsFile = Paths.get(file + ".offsets");
+        int count = 0;
+        long dataBytes = 0;
+        try (FileChannel out = createFile(file);
+             FileChannel ids = createFile(idsFile);
+             FileChannel flags = createFile(flagsFile);
+             FileChannel versions = createFile(versionsFile);
+             FileChannel offsets = createFile(offsetsFile)) {
+            ByteBuffer data = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+            ByteBuffer idBuffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+            ByteBuffer flagBuffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+            ByteBuffer versionBuffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+            ByteBuffer offsetBuffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+            
+            // Данные строк идут сразу после заголовка, колонки дописываются в конец
+            out.position(HEADER_BYTES);
+            int previousId = Integer.MIN_VALUE;
+            for (Task task : tasksById) {
+                if (count > 0 && task.getId() <= previousId) {
+                    throw new IllegalStateException("Tasks must be ordered by id");
+                }
+                previousId = task.getId();
+                byte[] title = task.getTitle() == null ? null : task.getTitle().getBytes(StandardCharsets.UTF_8);
+                byte[] description = task.getDescription() == null ? null : task.getDescription().getBytes(StandardCharsets.UTF_8);
+                byte flag = (byte) ((task.isCompleted() ? COMPLETED : 0)
+                        | (title == null ? TITLE_NULL : 0) | (description == null ? DESCRIPTION_NULL : 0));
+                
+                idBuffer = put(ids, idBuffer, 4).putInt(task.getId());
+                flagBuffer = put(flags, flagBuffer, 1).put(flag);
+                versionBuffer = put(versions, versionBuffer, 8).putLong(task.getVersion());
+                offsetBuffer = put(offsets, offsetBuffer, 16).putLong(dataBytes);
+                if (title != null) {
+                    data = put(out, data, title.length).put(title);
+                    dataBytes += title.length;
+                }
+                offsetBuffer.putLong(dataBytes);
+                if (description != null) {
+                    data = put(out, data, description.length).put(description);
+                    dataBytes += description.length;
+                }
+                count++;
+            }
+            put(offsets, offsetBuffer, 8).putLong(dataBytes);
+            drain(out, data);
+            drain(ids, idBuffer);
+            drain(flags, flagBuffer);
+            drain(versions, versionBuffer);
+            drain(offsets, offsetBuffer);
+            
+            long idsOffset = align(HEADER_BYTES + dataBytes, 8);
+            long flagsOffset = idsOffset + 4L * count;
+            long versionsOffset = align(flagsOffset + count, 8);
+            long offsetsOffset = versionsOffset + 8L * count;
+            transfer(ids, out, idsOffset);
+            transfer(flags, out, flagsOffset);
+            transfer(versions, out, versionsOffset);
+            transfer(offsets, out, offsetsOffset);
+            
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(generation).putInt(count).putInt(0)
+                    .putLong(idsOffset).putLong(flagsOffset).putLong(offsetsOffset).putLong(HEADER_BYTES)
+                    .putLong(versionsOffset).putLong(versionFloor);
+            header.clear();
+            out.position(0);
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            out.force(true);
+        } finally {
+            Files.deleteIfExists(idsFile);
+            Files.deleteIfExists(flagsFile);
+            Files.deleteIfExists(versionsFile);
+            Files.deleteIfExists(offsetsFile);
+        }
+        return count;
+    }
+    
+    public Path getFile() {
+        return file;
+    }
+    
+    public long getGeneration() {
+        return generation;
+    }
+    
+    /**
+     * Наибольшая версия задач, удаленных до снапшота
+     */
+    public long getVersionFloor() {
+        return versionFloor;
+    }
+    
+    public int size() {
+        return count;
+    }
+    
+    public int idAt(int index) {
+        return getInt(idsOffset + 4L * index);
+    }
+    
+    /**
+     * Позиция задачи с данным id или -1, если ее нет (двоичный поиск по колонке ids)
+     */
+    public int indexOf(int id) {
+        int index = lowerBound(id);
+        return index < count && idAt(index) == id ? index : -1;
+    }
+    
+    /**
+     * Позиция первой задачи с id >= id (count, если таких нет)
+     */
+    public int lowerBound(int id) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (idAt(middle) < id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    public boolean contains(int id) {
+        return indexOf(id) >= 0;
+    }
+    
+    /**
+     * Создает объект задачи из колонок по позиции
+     */
+    public Task taskAt(int index) {
+        byte flag = getByte(flagsOffset + index);
+        long offsets = offsetsOffset + 16L * index;
+        long titleStart = getLong(offsets);
+        long descriptionStart = getLong(offsets + 8);
+        long end = getLong(offsets + 16);
+        String title = (flag & TITLE_NULL) != 0 ? null : getString(titleStart, descriptionStart);
+        String description = (flag & DESCRIPTION_NULL) != 0 ? null : getString(descriptionStart, end);
+        Task task = new Task(idAt(index), title, description, (flag & COMPLETED) != 0);
+        task.setVersion(versionAt(index));
+        return task;
+    }
+    
+    public long versionAt(int index) {
+        return getLong(versionsOffset + 8L * index);
+    }
+    
+    public Task find(int id) {
+        int index = indexOf(id);
+        return index >= 0 ? taskAt(index) : null;
+    }
+    
+    private String getString(long start, long end) {
+        long position = dataOffset + start;
+        int length = (int) (end - start);
+        int chunk = (int) (position / CHUNK_BYTES);
+        int offset = (int) (position % CHUNK_BYTES);
+        byte[] bytes = new byte[length];
+        if (offset + length <= CHUNK_BYTES) {
+            chunks[chunk].get(offset, bytes, 0, length);
+        } else {
+            // Строка пересекает границу отображенных фрагментов
+            int first = (int) (CHUNK_BYTES - offset);
+            chunks[chunk].get(offset, bytes, 0, first);
+            chunks[chunk + 1].get(0, bytes, first, length - first);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    // Колонки выровнены по размеру элемента, поэтому числа не пересекают границы фрагментов
+    private int getInt(long position) {
+        return chunks[(int) (position / CHUNK_BYTES)].getInt((int) (position % CHUNK_BYTES));
+    }
+    
+    private long getLong(long position) {
+        return chunks[(int) (position / CHUNK_BYTES)].getLong((int) (position % CHUNK_BYTES));
+    }
+    
+    private byte getByte(long position) {
+        return chunks[(int) (position / CHUNK_BYTES)].get((int) (position % CHUNK_BYTES));
+    }
+    
+    private static FileChannel createFile(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    
+    /**
+     * Возвращает буфер, в котором есть место для bytes байт, при необходимости сбросив его в канал
+     */
+    private static ByteBuffer put(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) return buffer;
+        drain(channel, buffer);
+        return bytes <= buffer.capacity() ? buffer : ByteBuffer.allocate(bytes);
+    }
+    
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    private static void transfer(FileChannel source, FileChannel target, long position) throws IOException {
+        long size = source.size();
+        long done = 0;
+        while (done < size) {
+            done += source.transferTo(done, size - done, target.position(position + done));
+        }
+    }
+    
+    private static long align(long value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+}
@@ -0,0 +1,304 @@
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Потокобезопасная хеш-таблица с ключами int без упаковки в Integer
+ *
+ * Таблица разбита на сегменты, в каждом - открытая адресация с линейным
+ * пробированием: ключи в int[], значения в Object[]. Запись идет под
+ * блокировкой сегмента, чтение - оптимистичное (StampedLock) и обычно
+ * не берет блокировку вовсе. Удаление сдвигает следующие элементы цепочки
+ * назад, поэтому "надгробий" в таблице нет.
+ *
+ * На запись приходится 4 байта ключа и ссылка на значение (с запасом
+ * на коэффициент заполнения), против узла, Integer и ссылки в ConcurrentHashMap.
+ */
+public class ConcurrentIntMap<V> {
+    private static final int DEFAULT_SEGMENTS = 64;
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+    
+    /**
+     * Функция пересчета значения для compute
+     * На вход - текущее значение или null, результат null означает удаление
+     */
+    public interface Remapping<V> {
+        V apply(int key, V current);
+    }
+    
+    /**
+     * Получатель пар ключ-значение при обходе
+     */
+    public interface Visitor<V> {
+        void visit(int key, V value);
+    }
+    
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+    
+    public ConcurrentIntMap() {
+        this(DEFAULT_SEGMENTS);
+    }
+    
+    @SuppressWarnings("unchecked")
+    public ConcurrentIntMap(int segmentCount) {
+        int count = Integer.highestOneBit(Math.max(1, segmentCount - 1) << 1);
+        segments = (Segment<V>[]) new Segment<?>[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>();
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+    
+    public V get(int key) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+        StampedLock lock = segment.lock;
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            V value = segment.find(key, hash);
+            if (lock.validate(stamp)) return value;
+        }
+        stamp = lock.readLock();
+        try {
+            return segment.find(key, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+    
+    /**
+     * Записывает значение, возвращает предыдущее (или null)
+     */
+    public V put(int key, V value) {
+        if (value == null) throw new NullPointerException("value");
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            return segment.put(key, hash, value);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+    
+    public V remove(int key) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            return segment.remove(key, hash, null);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Удаляет ключ, только если с ним связано именно это значение (сравнение по ссылке)
+     */
+    public boolean remove(int key, V expected) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            return segment.remove(key, hash, expected) != null;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Атомарно пересчитывает значение ключа под блокировкой сегмента
+     * Функция не должна обращаться к этой же таблице
+     */
+    public V compute(int key, Remapping<V> remapping) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            V current = segment.find(key, hash);
+            V updated = remapping.apply(key, current);
+            if (updated == null) {
+                if (current != null) segment.remove(key, hash, null);
+            } else if (updated != current) {
+                segment.put(key, hash, updated);
+            }
+            return updated;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+    
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+    
+    /**
+     * Обходит таблицу посегментно: каждый сегмент копируется под блокировкой чтения,
+     * а visitor вызывается уже без блокировки (и может менять таблицу)
+     */
+    public void forEach(Visitor<V> visitor) {
+        for (Segment<V> segment : segments) {
+            int[] keys;
+            Object[] values;
+            int count = 0;
+            long stamp = segment.lock.readLock();
+            try {
+                keys = new int[segment.size];
+                values = new Object[segment.size];
+                int[] tableKeys = segment.keys;
+                Object[] tableValues = segment.values;
+                for (int i = 0; i < tableValues.length; i++) {
+                    if (tableValues[i] != null) {
+                        keys[count] = tableKeys[i];
+                        values[count++] = tableValues[i];
+                    }
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+            for (int i = 0; i < count; i++) {
+                @SuppressWarnings("unchecked")
+                V value = (V) values[i];
+                visitor.visit(keys[i], value);
+            }
+        }
+    }
+    
+    private Segment<V> segmentFor(int hash) {
+        return segments[segmentShift == 32 ? 0 : hash >>> segmentShift];
+    }
+    
+    /**
+     * Перемешивание битов (финализатор MurmurHash3), чтобы последовательные id
+     * равномерно распределялись по сегментам и ячейкам
+     */
+    private static int hash(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+    
+    private static final class Segment<V> {
+        final StampedLock lock = new StampedLock();
+        int[] keys = new int[MIN_SEGMENT_CAPACITY];
+        Object[] values = new Object[MIN_SEGMENT_CAPACITY];
+        int size;
+        
+        /**
+         * Поиск работает и при оптимистичном чтении: массивы читаются один раз,
+         * число проб ограничено длиной таблицы, результат проверяется validate
+         */
+        @SuppressWarnings("unchecked")
+        V find(int key, int hash) {
+            int[] k = keys;
+            Object[] v = values;
+            int length = Math.min(k.length, v.length);
+            int mask = length - 1;
+            int index = hash & mask;
+            for (int probes = 0; probes < length; probes++) {
+                Object value = v[index];
+                if (value == null) return null;
+                if (k[index] == key) return (V) value;
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+        
+        @SuppressWarnings("unchecked")
+        V put(int key, int hash, V value) {
+            int mask = values.length - 1;
+            int index = hash & mask;
+            while (values[index] != null) {
+                if (keys[index] == key) {
+                    V previous = (V) values[index];
+                    values[index] = value;
+                    return previous;
+                }
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = value;
+            if (++size > values.length * LOAD_FACTOR) {
+                resize();
+            }
+            return null;
+        }
+        
+        /**
+         * Удаление со сдвигом назад следующих элементов той же цепочки
+         * expected != null - удалять, только если значение совпадает по ссылке
+         */
+        @SuppressWarnings("unchecked")
+        V remove(int key, int hash, V expected) {
+            int mask = values.length - 1;
+            int index = hash & mask;
+            while (values[index] != null) {
+                if (keys[index] == key) {
+                    V previous = (V) values[index];
+                    if (expected != null && previous != expected) return null;
+                    shiftBack(index, mask);
+                    size--;
+                    return previous;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+        
+        private void shiftBack(int hole, int mask) {
+            int index = hole;
+            while (true) {
+                index = (index + 1) & mask;
+                Object value = values[index];
+                if (value == null) break;
+                int home = hash(keys[index]) & mask;
+                // Элемент можно перенести в дыру, если его домашняя ячейка не лежит между дырой и им
+                boolean movable = hole <= index ? (home <= hole || home > index) : (home <= hole && home > index);
+                if (movable) {
+                    keys[hole] = keys[index];
+                    values[hole] = value;
+                    hole = index;
+                }
+            }
+            values[hole] = null;
+        }
+        
+        private void resize() {
+            int[] oldKeys = keys;
+            Object[] oldValues = values;
+            int[] newKeys = new int[oldKeys.length * 2];
+            Object[] newValues = new Object[oldValues.length * 2];
+            int mask = newValues.length - 1;
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    int index = hash(oldKeys[i]) & mask;
+                    while (newValues[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    newKeys[index] = oldKeys[i];
+                    newValues[index] = oldValues[i];
+                }
+            }
+            // Сначала ключи, затем значения: оптимистичный читатель сверит длины массивов
+            keys = newKeys;
+            values = newValues;
+        }
+    }
+}
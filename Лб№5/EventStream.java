@@ -0,0 +1,132 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Поток Server-Sent Events одного подписчика ленты изменений
+ *
+ * Работает в общем исполнителе подписчиков (виртуальный поток на подписчика, если JVM их
+ * поддерживает), чтобы обработчик запроса сразу освобождался:
+ * ждет изменений в ChangeFeed, кодирует их пачкой и отправляет одним chunk.
+ * Каждое событие:
+ *   id: эпоха ленты и номер изменения (ChangeFeed.eventId)
+ *   event: create | update | delete
+ *   data: {"id":..,"version":..,"task":{...}}   (для delete без task)
+ * Раз в HEARTBEAT_MILLIS без изменений отправляется комментарий, чтобы обнаружить
+ * закрытое клиентом соединение и не дать прокси его закрыть.
+ */
+public class EventStream implements Runnable {
+    private static final long HEARTBEAT_MILLIS = 15_000;
+    private static final int BATCH = 256;
+    private static final byte[] HEARTBEAT = ": ping\n\n".getBytes(StandardCharsets.US_ASCII);
+    // Подписчик почти все время ждет в poll, поэтому виртуальный поток ему подходит лучше всего
+    private static final ExecutorService SUBSCRIBERS = ServerExecutors.newVirtualThreadExecutor();
+    
+    private final HttpExchange exchange;
+    private final ChangeFeed feed;
+    private long position;
+    private final boolean reset;
+    
+    /**
+     * lastEventId - номер последнего полученного клиентом изменения, null - только новые изменения
+     * Если продолжить с него нельзя, клиент первым получает событие reset
+     */
+    private EventStream(HttpExchange exchange, ChangeFeed feed, Long lastEventId) {
+        this.exchange = exchange;
+        this.feed = feed;
+        this.reset = lastEventId != null && !feed.canResume(lastEventId);
+        this.position = lastEventId != null && !reset ? lastEventId : feed.getLastSeq();
+    }
+    
+    /**
+     * Отправляет заголовки ответа и передает подписчика в исполнитель
+     * Возвращает false, если подписчиков слишком много (ответ не отправлен)
+     */
+    public static boolean start(HttpExchange exchange, ChangeFeed feed, Long lastEventId) throws IOException {
+        if (!feed.subscribe()) return false;
+        EventStream stream;
+        try {
+            stream = new EventStream(exchange, feed, lastEventId);
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            exchange.sendResponseHeaders(200, 0);
+        } catch (IOException | RuntimeException e) {
+            feed.unsubscribe();
+            throw e;
+        }
+        SUBSCRIBERS.execute(stream);
+        return true;
+    }
+    
+    @Override
+    public void run() {
+        ChangeFeed.Change[] batch = new ChangeFeed.Change[BATCH];
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+        try (OutputStream out = exchange.getResponseBody()) {
+            // Интервал переподключения EventSource и, при необходимости, сброс состояния клиента
+            writeAscii(buffer, "retry: 2000\n\n");
+            if (reset) {
+                writeReset(buffer);
+            }
+            send(out, buffer);
+            
+            while (!Thread.currentThread().isInterrupted()) {
+                int count = feed.poll(position, batch, HEARTBEAT_MILLIS);
+                if (count == ChangeFeed.OVERRUN) {
+                    // Клиент отстал больше чем на размер буфера - пропущенные изменения потеряны
+                    position = feed.getLastSeq();
+                    writeReset(buffer);
+                } else if (count == 0) {
+                    buffer.write(HEARTBEAT);
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        writeChange(buffer, batch[i]);
+                        batch[i] = null;
+                    }
+                    position += count;
+                }
+                send(out, buffer);
+            }
+        } catch (IOException e) {
+            // Клиент закрыл соединение
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            feed.unsubscribe();
+            exchange.close();
+        }
+    }
+    
+    private void writeReset(ByteArrayOutputStream buffer) {
+        writeAscii(buffer, "id: " + feed.eventId(position) + "\nevent: reset\ndata: {\"seq\":" + position + "}\n\n");
+    }
+    
+    private void writeChange(ByteArrayOutputStream buffer, ChangeFeed.Change change) {
+        Task task = change.getTask();
+        writeAscii(buffer, "id: " + feed.eventId(change.getSeq()) + "\nevent: " + change.getType().name().toLowerCase(Locale.ROOT)
+                + "\ndata: {\"id\":" + task.getId() + ",\"version\":" + task.getVersion());
+        if (change.getType() != ChangeFeed.Type.DELETE) {
+            // JSON задачи без переводов строк (они экранируются), поэтому помещается в одну строку data
+            writeAscii(buffer, ",\"task\":");
+            byte[] json = JsonStreamWriter.toJson(task);
+            buffer.write(json, 0, json.length);
+        }
+        writeAscii(buffer, "}\n\n");
+    }
+    
+    private static void send(OutputStream out, ByteArrayOutputStream buffer) throws IOException {
+        buffer.writeTo(out);
+        out.flush();
+        buffer.reset();
+    }
+    
+    private static void writeAscii(ByteArrayOutputStream buffer, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        buffer.write(bytes, 0, bytes.length);
+    }
+}
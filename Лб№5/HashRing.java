@@ -0,0 +1,65 @@
+import java.util.Arrays;
+
+/**
+ * Консистентное хеширование id задач по узлам (шардам)
+ *
+ * Каждый узел занимает VIRTUAL_NODES точек на кольце 32-битных хешей; задача принадлежит узлу
+ * первой точки не меньше хеша ее id. Точки узла зависят только от его номера, поэтому при
+ * добавлении узла к нему переходит около 1/N задач, а остальные остаются на месте.
+ */
+public class HashRing {
+    private static final int VIRTUAL_NODES = 128;
+    
+    private final int[] points;
+    private final int[] owners;
+    private final int nodeCount;
+    
+    public HashRing(int nodeCount) {
+        if (nodeCount <= 0) {
+            throw new IllegalArgumentException("nodeCount must be positive");
+        }
+        this.nodeCount = nodeCount;
+        // Точка и владелец упакованы в long, чтобы отсортировать их вместе
+        long[] packed = new long[nodeCount * VIRTUAL_NODES];
+        for (int node = 0; node < nodeCount; node++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                int point = mix(node * VIRTUAL_NODES + v + 0x5bd1e995);
+                packed[node * VIRTUAL_NODES + v] = (long) point << 32 | node;
+            }
+        }
+        Arrays.sort(packed);
+        points = new int[packed.length];
+        owners = new int[packed.length];
+        for (int i = 0; i < packed.length; i++) {
+            points[i] = (int) (packed[i] >> 32);
+            owners[i] = (int) packed[i];
+        }
+    }
+    
+    /**
+     * Номер узла, которому принадлежит задача с данным id
+     */
+    public int ownerOf(int id) {
+        if (nodeCount == 1) return 0;
+        int index = Arrays.binarySearch(points, mix(id));
+        if (index < 0) index = -index - 1;
+        // За последней точкой кольцо замыкается на первую
+        return owners[index == points.length ? 0 : index];
+    }
+    
+    public int getNodeCount() {
+        return nodeCount;
+    }
+    
+    /**
+     * Финальное перемешивание MurmurHash3: соседние id попадают в далекие точки кольца
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
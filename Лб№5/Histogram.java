@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма неотрицательных значений с логарифмически-линейными корзинами (как в HdrHistogram)
+ *
+ * Значения до 32 хранятся точно, дальше каждый диапазон [2^k, 2^(k+1)) делится на 16 корзин,
+ * поэтому относительная погрешность квантилей не больше 1/16. Корзины - LongAdder:
+ * запись из многих потоков идет без блокировок и почти без конкуренции за кеш-линии.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+    
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts[bucketOf(value)].increment();
+        total.increment();
+        sum.add(value);
+    }
+    
+    /**
+     * Добавляет к гистограмме все значения другой (например, сводка по нескольким операциям)
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts[i].sum();
+            if (count != 0) counts[i].add(count);
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+    }
+    
+    public long getCount() {
+        return total.sum();
+    }
+    
+    public long getSum() {
+        return sum.sum();
+    }
+    
+    /**
+     * Квантили (верхние границы корзин) по одному снимку счетчиков
+     * Снимок слабо согласован: записи, идущие во время подсчета, могут быть учтены частично
+     */
+    public long[] quantiles(double... quantiles) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        long[] result = new long[quantiles.length];
+        if (count == 0) return result;
+        for (int q = 0; q < quantiles.length; q++) {
+            long rank = Math.max(1, (long) Math.ceil(quantiles[q] * count));
+            long seen = 0;
+            int bucket = 0;
+            while (bucket < BUCKETS - 1 && (seen += snapshot[bucket]) < rank) {
+                bucket++;
+            }
+            result[q] = upperBound(bucket);
+        }
+        return result;
+    }
+    
+    /**
+     * Номер корзины: для значений меньше 2 * SUB_BUCKETS - само значение,
+     * иначе сдвиг (порядок) * SUB_BUCKETS + старшие биты значения
+     */
+    static int bucketOf(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS + 1));
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+    
+    static long upperBound(int bucket) {
+        int shift = Math.max(0, (bucket >> SUB_BUCKET_BITS) - 1);
+        long sub = bucket - ((long) shift << SUB_BUCKET_BITS);
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Набор замеров горячего пути REST API: JSON, хранилище задач и HTTP целиком
+ *
+ * Запуск: java HotPathBenchmark [--only=json,store,http] [--threads=1,4] [--warmup=1000] [--measure=2000]
+ *                               [--frontends=jdk,nio] [--save=results.properties] [--baseline=results.properties]
+ *                               [--tolerance=0.15]
+ * HTTP замеры выполняются для каждого из --frontends; у замеров NIO сервера в имени есть [nio].
+ * С --save результаты (операций в секунду) сохраняются в файл, с --baseline сравниваются с сохраненными:
+ * если какой-то замер медленнее базового больше чем на tolerance, программа завершается с кодом 1.
+ */
+public class HotPathBenchmark {
+    private static final int TASKS = 100_000;
+    private static final int HTTP_TASKS = 10_000;
+    private static final int PAGE = 100;
+    
+    private final Map<String, Double> results = new LinkedHashMap<>();
+    private long warmupMillis = 1000;
+    private long measureMillis = 2000;
+    private int[] threadCounts = {1, Runtime.getRuntime().availableProcessors()};
+    private List<String> frontEnds = List.of("jdk", "nio");
+    
+    public static void main(String[] args) throws Exception {
+        HotPathBenchmark benchmark = new HotPathBenchmark();
+        List<String> groups = List.of("json", "store", "http");
+        Path save = null;
+        Path baseline = null;
+        double tolerance = 0.15;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Неверный аргумент: " + arg + " (ожидается --ключ=значение)");
+            }
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (key) {
+                case "only": groups = List.of(value.split(",")); break;
+                case "threads": benchmark.threadCounts = parseInts(value); break;
+                case "warmup": benchmark.warmupMillis = Long.parseLong(value); break;
+                case "measure": benchmark.measureMillis = Long.parseLong(value); break;
+                case "frontends": benchmark.frontEnds = List.of(value.split(",")); break;
+                case "save": save = Paths.get(value); break;
+                case "baseline": baseline = Paths.get(value); break;
+                case "tolerance": tolerance = Double.parseDouble(value); break;
+                default: throw new IllegalArgumentException("Неизвестный параметр: --" + key);
+            }
+        }
+        benchmark.threadCounts = Arrays.stream(benchmark.threadCounts).distinct().toArray();
+        
+        if (groups.contains("json")) benchmark.json();
+        if (groups.contains("store")) benchmark.store();
+        if (groups.contains("http")) benchmark.http();
+        
+        if (save != null) {
+            benchmark.save(save);
+        }
+        if (baseline != null && !benchmark.compare(baseline, tolerance)) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Кодирование и разбор JSON: прежние строковые JsonUtils и потоковые JsonStreamWriter/JsonTaskParser
+     */
+    private void json() throws Exception {
+        System.out.println("== JSON ==");
+        Task task = new Task(42, "Изучить REST API", "Изучить основы REST API и HTTP методы", false);
+        String json = JsonUtils.toJson(task);
+        List<Task> page = new ArrayList<>();
+        for (int i = 1; i <= PAGE; i++) {
+            page.add(new Task(i, "Задача " + i, "Описание задачи номер " + i, i % 3 == 0));
+        }
+        NullOutputStream out = new NullOutputStream();
+        
+        measure("JsonUtils.toJson", 1, () -> JsonUtils.toJson(task));
+        // Новая задача на каждой итерации: замер кодирования, а не кеша в задаче
+        measure("JsonStreamWriter.toJson (без кеша)", 1, () -> JsonStreamWriter.toJson(
+                new Task(42, "Изучить REST API", "Изучить основы REST API и HTTP методы", false)));
+        measure("JsonUtils.toJsonArray (" + PAGE + ")", 1, () -> JsonUtils.toJsonArray(page));
+        measure("JsonStreamWriter.writeTaskArray (" + PAGE + ")", 1, () -> {
+            JsonStreamWriter.writeTaskArray(out, page);
+            return out;
+        });
+        measure("JsonUtils.fromJson", 1, () -> JsonUtils.fromJson(json));
+        System.out.println();
+    }
+    
+    /**
+     * Операции TaskService в памяти при разном числе потоков
+     */
+    private void store() throws Exception {
+        System.out.println("== TaskService ==");
+        for (int threads : threadCounts) {
+            TaskService service = TaskService.inMemory(new ChangeFeed());
+            for (int i = 1; i <= TASKS; i++) {
+                service.addTask(new Task(0, "Задача " + i, "alpha beta " + (i % 100), i % 3 == 0));
+            }
+            measure("getTaskById", threads, () -> service.getTaskById(randomId(TASKS)));
+            measure("updateTask", threads, () -> {
+                int id = randomId(TASKS);
+                return service.updateTask(id, new Task(id, "Обновлено " + id, "alpha beta", false));
+            });
+            measure("tasks page (" + PAGE + ")", threads,
+                    () -> TaskService.firstPage(service.tasks(randomId(TASKS - PAGE), null), PAGE));
+            measure("search page (" + PAGE + ")", threads,
+                    () -> TaskService.firstPage(service.search("alpha", randomId(TASKS - PAGE), null), PAGE));
+            // Добавление с удалением, чтобы размер хранилища не рос во время замера
+            measure("addTask + deleteTask", threads, () -> {
+                Task added = service.addTask(new Task(0, "Новая задача", "gamma", false));
+                return service.deleteTask(added.getId());
+            });
+        }
+        System.out.println();
+    }
+    
+    /**
+     * Запросы к RestApiServer, запущенному в этом же процессе, через HttpClient с keep-alive
+     */
+    private void http() throws Exception {
+        for (String frontEnd : frontEnds) {
+            http(frontEnd.trim().toLowerCase());
+        }
+    }
+    
+    private void http(String frontEnd) throws Exception {
+        System.out.println("== HTTP (" + frontEnd + ") ==");
+        // Имена замеров сервера по умолчанию без суффикса, чтобы прежние базовые результаты оставались сравнимыми
+        String suffix = "jdk".equals(frontEnd) ? "" : " [" + frontEnd + "]";
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        // Свое хранилище для каждого сервера, чтобы замеры не зависели от предыдущих
+        TaskService service = TaskService.inMemory(new ChangeFeed());
+        RestApiServer server = new RestApiServer(ServerConfig.fromArgs(
+                new String[] {"--port=" + port, "--mode=pool", "--frontend=" + frontEnd}), service);
+        server.start();
+        try {
+            int first = service.getNextId();
+            for (int i = 0; i < HTTP_TASKS; i++) {
+                service.addTask(new Task(0, "Задача " + i, "Описание задачи номер " + i, false));
+            }
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            String base = "http://localhost:" + port + "/api/tasks";
+            byte[] body = "{\"title\":\"Нагрузочная задача\",\"description\":\"HotPathBenchmark\",\"completed\":false}"
+                    .getBytes(StandardCharsets.UTF_8);
+            
+            for (int threads : threadCounts) {
+                measure("GET /api/tasks/{id}" + suffix, threads, () -> send(client, HttpRequest.newBuilder(
+                        URI.create(base + "/" + (first + randomId(HTTP_TASKS) - 1))).GET()));
+                measure("GET /api/tasks?limit=" + PAGE + suffix, threads, () -> send(client, HttpRequest.newBuilder(
+                        URI.create(base + "?limit=" + PAGE + "&cursor=" + randomId(HTTP_TASKS - PAGE))).GET()));
+                measure("PUT /api/tasks/{id}" + suffix, threads, () -> send(client, HttpRequest.newBuilder(
+                        URI.create(base + "/" + (first + randomId(HTTP_TASKS) - 1)))
+                        .PUT(HttpRequest.BodyPublishers.ofByteArray(body))));
+                measure("POST /api/tasks" + suffix, threads, () -> send(client, HttpRequest.newBuilder(URI.create(base))
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(body))));
+            }
+        } finally {
+            server.stop();
+        }
+        System.out.println();
+    }
+    
+    private static int send(HttpClient client, HttpRequest.Builder request) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream in = response.body()) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        if (response.statusCode() >= 400) {
+            throw new IOException("HTTP " + response.statusCode() + " for " + response.request().uri());
+        }
+        return response.statusCode();
+    }
+    
+    private void measure(String name, int threads, Bench.Operation operation) throws Exception {
+        double opsPerSecond = Bench.run(name, threads, warmupMillis, measureMillis, operation);
+        results.put(name + " @" + threads, opsPerSecond);
+    }
+    
+    private void save(Path file) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Double> entry : results.entrySet()) {
+            properties.setProperty(entry.getKey(), String.valueOf(Math.round(entry.getValue())));
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            properties.store(out, "HotPathBenchmark, operations per second");
+        }
+        System.out.println("Результаты сохранены в " + file.toAbsolutePath());
+    }
+    
+    /**
+     * Сравнение с сохраненными результатами; false - есть замедление больше tolerance
+     */
+    private boolean compare(Path file, double tolerance) throws IOException {
+        Properties baseline = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            baseline.load(in);
+        }
+        boolean ok = true;
+        System.out.println("== Сравнение с " + file + " (допуск " + Math.round(tolerance * 100) + "%) ==");
+        for (Map.Entry<String, Double> entry : results.entrySet()) {
+            String saved = baseline.getProperty(entry.getKey());
+            if (saved == null) continue;
+            double before = Double.parseDouble(saved);
+            double change = (entry.getValue() - before) / before;
+            boolean regression = change < -tolerance;
+            ok &= !regression;
+            System.out.printf("%-55s %,15.0f -> %,15.0f оп/с %+7.1f%%%s%n", entry.getKey(), before, entry.getValue(),
+                    change * 100, regression ? "  ЗАМЕДЛЕНИЕ" : "");
+        }
+        return ok;
+    }
+    
+    private static int randomId(int count) {
+        return ThreadLocalRandom.current().nextInt(count) + 1;
+    }
+    
+    private static int[] parseInts(String value) {
+        String[] parts = value.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+    
+    /**
+     * Поток, отбрасывающий данные, без синхронизации (OutputStream.nullOutputStream проверяет закрытие)
+     */
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Упорядоченный индекс id задач
+ * Битовая карта неотрицательных int, разбитая на страницы по 65536 id.
+ * Страницы создаются по мере необходимости, изменения битов выполняются через CAS,
+ * поэтому индекс потокобезопасен без блокировок.
+ * Перебор по возрастанию id начиная с курсора стоит O(размер страницы выдачи + пропуски).
+ */
+public class IdIndex {
+    private static final int PAGE_SHIFT = 16;
+    private static final int WORDS_PER_PAGE = 1 << (PAGE_SHIFT - 6);
+    private static final int PAGE_COUNT = 1 << (31 - PAGE_SHIFT);
+    
+    private final AtomicReferenceArray<AtomicLongArray> pages = new AtomicReferenceArray<>(PAGE_COUNT);
+    // Номер самой старшей созданной страницы: перебор дальше нее не идет
+    private final AtomicInteger highestPage = new AtomicInteger(-1);
+    
+    /**
+     * Добавляет id в индекс, возвращает false, если он уже был
+     */
+    public boolean add(int id) {
+        checkId(id);
+        AtomicLongArray page = pageFor(id, true);
+        int word = wordIndex(id);
+        long bit = 1L << id;
+        long previous = page.getAndAccumulate(word, bit, (current, mask) -> current | mask);
+        return (previous & bit) == 0;
+    }
+    
+    /**
+     * Удаляет id из индекса, возвращает false, если его не было
+     */
+    public boolean remove(int id) {
+        checkId(id);
+        AtomicLongArray page = pageFor(id, false);
+        if (page == null) return false;
+        int word = wordIndex(id);
+        long bit = 1L << id;
+        long previous = page.getAndAccumulate(word, ~bit, (current, mask) -> current & mask);
+        return (previous & bit) != 0;
+    }
+    
+    public boolean contains(int id) {
+        if (id < 0) return false;
+        AtomicLongArray page = pageFor(id, false);
+        return page != null && (page.get(wordIndex(id)) & (1L << id)) != 0;
+    }
+    
+    /**
+     * Наименьший id >= fromId, присутствующий в индексе, или -1
+     */
+    public int nextId(int fromId) {
+        if (fromId < 0) fromId = 0;
+        int pageIndex = fromId >>> PAGE_SHIFT;
+        int word = wordIndex(fromId);
+        long mask = -1L << fromId;
+        
+        int lastPage = highestPage.get();
+        while (pageIndex <= lastPage) {
+            AtomicLongArray page = pages.get(pageIndex);
+            if (page != null) {
+                for (; word < WORDS_PER_PAGE; word++) {
+                    long bits = page.get(word) & mask;
+                    if (bits != 0) {
+                        return (pageIndex << PAGE_SHIFT) | (word << 6) | Long.numberOfTrailingZeros(bits);
+                    }
+                    mask = -1L;
+                }
+            }
+            pageIndex++;
+            word = 0;
+            mask = -1L;
+        }
+        return -1;
+    }
+    
+    private AtomicLongArray pageFor(int id, boolean create) {
+        int pageIndex = id >>> PAGE_SHIFT;
+        AtomicLongArray page = pages.get(pageIndex);
+        if (page == null && create) {
+            pages.compareAndSet(pageIndex, null, new AtomicLongArray(WORDS_PER_PAGE));
+            page = pages.get(pageIndex);
+            highestPage.accumulateAndGet(pageIndex, Math::max);
+        }
+        return page;
+    }
+    
+    private static int wordIndex(int id) {
+        return (id >>> 6) & (WORDS_PER_PAGE - 1);
+    }
+    
+    private static void checkId(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Task id must not be negative: " + id);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Сравнение прежнего строкового парсера JSON и JsonTaskParser
+ * Запуск: java JsonBenchmark
+ */
+public class JsonBenchmark {
+    private static final long WARMUP_MILLIS = 2000;
+    private static final long MEASURE_MILLIS = 3000;
+    
+    public static void main(String[] args) throws Exception {
+        String simple = "{\"title\":\"Изучить REST API\",\"description\":\"Изучить основы REST API и HTTP методы\",\"completed\":false}";
+        String escaped = "{\"id\":42,\"title\":\"Строка с \\\"кавычками\\\", запятыми\\tи\\nпереносами\","
+                + "\"description\":\"Путь C:\\\\temp\\\\file, \\u00e9\\u00e8 и emoji \\ud83d\\ude00\",\"completed\":true}";
+        
+        for (String json : new String[] {simple, escaped}) {
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            System.out.println("JSON (" + bytes.length + " байт): " + json);
+            System.out.println("  прежний парсер:  " + legacyFromJson(json));
+            System.out.println("  JsonTaskParser:  " + JsonTaskParser.parse(json));
+            
+            // Прежний путь: чтение построчно в String, затем разбор подстроками
+            Bench.run("legacy fromJson (String)", WARMUP_MILLIS, MEASURE_MILLIS,
+                    () -> legacyFromJson(json));
+            Bench.run("JsonTaskParser.parse (String)", WARMUP_MILLIS, MEASURE_MILLIS,
+                    () -> JsonTaskParser.parse(json));
+            Bench.run("JsonTaskParser.parse (InputStream)", WARMUP_MILLIS, MEASURE_MILLIS,
+                    () -> JsonTaskParser.parse(new ByteArrayInputStream(bytes), bytes.length, JsonTaskParser.DEFAULT_MAX_BODY));
+            System.out.println();
+        }
+    }
+    
+    /**
+     * Прежняя реализация JsonUtils.fromJson, сохранена для сравнения
+     */
+    static Task legacyFromJson(String json) {
+        Task task = new Task();
+        
+        json = json.trim();
+        if (!json.startsWith("{") || !json.endsWith("}")) {
+            throw new IllegalArgumentException("Invalid JSON format");
+        }
+        
+        json = json.substring(1, json.length() - 1).trim();
+        
+        int pos = 0;
+        while (pos < json.length()) {
+            int keyStart = json.indexOf('"', pos);
+            if (keyStart == -1) break;
+            int keyEnd = json.indexOf('"', keyStart + 1);
+            if (keyEnd == -1) break;
+            String key = json.substring(keyStart + 1, keyEnd);
+            
+            int colonPos = json.indexOf(':', keyEnd);
+            if (colonPos == -1) break;
+            
+            int valueStart = colonPos + 1;
+            while (valueStart < json.length() && Character.isWhitespace(json.charAt(valueStart))) {
+                valueStart++;
+            }
+            
+            String value;
+            if (valueStart < json.length() && json.charAt(valueStart) == '"') {
+                int valueEnd = valueStart + 1;
+                while (valueEnd < json.length()) {
+                    if (json.charAt(valueEnd) == '"' && json.charAt(valueEnd - 1) != '\\') {
+                        break;
+                    }
+                    valueEnd++;
+                }
+                value = legacyUnescape(json.substring(valueStart + 1, valueEnd));
+            } else {
+                int valueEnd = valueStart;
+                while (valueEnd < json.length() && json.charAt(valueEnd) != ',' && json.charAt(valueEnd) != '}') {
+                    valueEnd++;
+                }
+                value = json.substring(valueStart, valueEnd).trim();
+            }
+            
+            if (key.equals("id")) {
+                try {
+                    task.setId(Integer.parseInt(value));
+                } catch (NumberFormatException e) {
+                    // Игнорируем, если не число
+                }
+            } else if (key.equals("title")) {
+                task.setTitle(value);
+            } else if (key.equals("description")) {
+                task.setDescription(value);
+            } else if (key.equals("completed")) {
+                task.setCompleted(Boolean.parseBoolean(value));
+            }
+            
+            pos = json.indexOf(',', valueStart);
+            if (pos == -1) break;
+            pos++;
+        }
+        
+        return task;
+    }
+    
+    private static String legacyUnescape(String str) {
+        return str.replace("\\\"", "\"")
+                  .replace("\\\\", "\\")
+                  .replace("\\n", "\n")
+                  .replace("\\r", "\r")
+                  .replace("\\t", "\t");
+    }
+}
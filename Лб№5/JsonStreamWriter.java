@@ -0,0 +1,210 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Потоковая запись задач в JSON
+ * Кодирует задачи сразу в байты UTF-8 без промежуточных строк
+ * и пишет их в выходной поток через буфер из небольшого общего пула
+ *
+ * Пул, а не ThreadLocal: в режиме виртуальных потоков каждый запрос выполняется в новом потоке,
+ * и буфер потока создавался бы и выбрасывался на каждый запрос. Если пул пуст, создается
+ * новый писатель; лишние писатели при возврате не сохраняются.
+ */
+public class JsonStreamWriter {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final ArrayBlockingQueue<JsonStreamWriter> POOL =
+            new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2);
+    
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private OutputStream out;
+    
+    private JsonStreamWriter() {
+    }
+    
+    /**
+     * Записывает массив задач в поток (поток не закрывается)
+     */
+    public static void writeTaskArray(OutputStream out, Iterable<Task> tasks) throws IOException {
+        JsonStreamWriter writer = acquire(out);
+        try {
+            writer.writeByte('[');
+            boolean first = true;
+            for (Task task : tasks) {
+                if (!first) writer.writeByte(',');
+                writer.writeTask(task);
+                first = false;
+            }
+            writer.writeByte(']');
+            writer.flush();
+        } finally {
+            writer.release();
+        }
+    }
+    
+    /**
+     * JSON одной задачи в UTF-8; результат запоминается в задаче,
+     * повторный вызов для неизмененной задачи не кодирует ее заново
+     */
+    public static byte[] toJson(Task task) {
+        byte[] json = task.getCachedJson();
+        if (json != null) return json;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        JsonStreamWriter writer = acquire(bytes);
+        try {
+            writer.writeTask(task);
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            writer.release();
+        }
+        json = bytes.toByteArray();
+        task.setCachedJson(json);
+        return json;
+    }
+    
+    private static JsonStreamWriter acquire(OutputStream out) {
+        JsonStreamWriter writer = POOL.poll();
+        if (writer == null) {
+            writer = new JsonStreamWriter();
+        }
+        writer.out = out;
+        writer.position = 0;
+        return writer;
+    }
+    
+    private void release() {
+        out = null;
+        POOL.offer(this);
+    }
+    
+    private void writeTask(Task task) throws IOException {
+        byte[] cached = task.getCachedJson();
+        if (cached != null) {
+            writeBytes(cached);
+            return;
+        }
+        writeAscii("{\"id\":");
+        writeInt(task.getId());
+        writeAscii(",\"title\":");
+        writeString(task.getTitle());
+        writeAscii(",\"description\":");
+        writeString(task.getDescription());
+        writeAscii(",\"completed\":");
+        writeAscii(task.isCompleted() ? "true" : "false");
+        writeByte('}');
+    }
+    
+    private void writeByte(int b) throws IOException {
+        if (position == buffer.length) flush();
+        buffer[position++] = (byte) b;
+    }
+    
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - position) {
+            flush();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+    
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+    
+    private void writeInt(int value) throws IOException {
+        if (value == Integer.MIN_VALUE) {
+            writeAscii("-2147483648");
+            return;
+        }
+        ensure(11);
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) digits++;
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position = end;
+    }
+    
+    /**
+     * Пишет строку в кавычках, экранируя так же, как JsonUtils.escapeJson,
+     * и дополнительно управляющие символы 0x00-0x1F
+     */
+    private void writeString(String s) throws IOException {
+        writeByte('"');
+        if (s != null) {
+            int length = s.length();
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                // Самый длинный вариант - управляющий символ, 6 байт
+                ensure(6);
+                if (c < 0x80) {
+                    switch (c) {
+                        case '"': buffer[position++] = '\\'; buffer[position++] = '"'; break;
+                        case '\\': buffer[position++] = '\\'; buffer[position++] = '\\'; break;
+                        case '\n': buffer[position++] = '\\'; buffer[position++] = 'n'; break;
+                        case '\r': buffer[position++] = '\\'; buffer[position++] = 'r'; break;
+                        case '\t': buffer[position++] = '\\'; buffer[position++] = 't'; break;
+                        default:
+                            if (c < 0x20) {
+                                buffer[position++] = '\\';
+                                buffer[position++] = 'u';
+                                buffer[position++] = '0';
+                                buffer[position++] = '0';
+                                buffer[position++] = HEX[c >> 4];
+                                buffer[position++] = HEX[c & 0xF];
+                            } else {
+                                buffer[position++] = (byte) c;
+                            }
+                    }
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xC0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Одиночный суррогат кодируем как '?', как это делает String.getBytes
+                    buffer[position++] = '?';
+                } else {
+                    buffer[position++] = (byte) (0xE0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+        writeByte('"');
+    }
+    
+    private void ensure(int bytes) throws IOException {
+        if (position + bytes > buffer.length) flush();
+    }
+    
+    private void flush() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
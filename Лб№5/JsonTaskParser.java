@@ -0,0 +1,480 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Однопроходный парсер JSON объекта задачи
+ * Разбирает байты UTF-8 напрямую, без промежуточных подстрок,
+ * корректно обрабатывает экранирование (включая коды символов uXXXX)
+ * и запятые внутри строковых значений
+ */
+public class JsonTaskParser {
+    public static final int DEFAULT_MAX_BODY = 1024 * 1024;
+    
+    private static final byte[] KEY_ID = ascii("id");
+    private static final byte[] KEY_TITLE = ascii("title");
+    private static final byte[] KEY_DESCRIPTION = ascii("description");
+    private static final byte[] KEY_COMPLETED = ascii("completed");
+    private static final byte[] KEY_OP = ascii("op");
+    private static final byte[] KEY_VERSION = ascii("version");
+    
+    private final byte[] data;
+    private final int end;
+    private int pos;
+    private byte[] scratch;
+    
+    private JsonTaskParser(byte[] data, int offset, int length) {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+    
+    /**
+     * Тело запроса превышает допустимый размер
+     */
+    public static class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        public BodyTooLargeException(int maxBytes) {
+            super("Request body exceeds " + maxBytes + " bytes");
+        }
+    }
+    
+    /**
+     * Читает тело запроса из потока и разбирает задачу
+     * contentLength - значение заголовка Content-Length или -1, если он не задан
+     */
+    public static Task parse(InputStream in, long contentLength, int maxBytes) throws IOException {
+        if (contentLength > maxBytes) {
+            throw new BodyTooLargeException(maxBytes);
+        }
+        byte[] buffer = new byte[contentLength > 0 ? (int) contentLength : Math.min(1024, maxBytes)];
+        int length = 0;
+        while (true) {
+            if (length == buffer.length) {
+                if (length >= maxBytes) {
+                    if (in.read() == -1) break;
+                    throw new BodyTooLargeException(maxBytes);
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.min(maxBytes, buffer.length * 2L));
+            }
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read == -1) break;
+            length += read;
+        }
+        return parse(buffer, 0, length);
+    }
+    
+    public static Task parse(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return parse(bytes, 0, bytes.length);
+    }
+    
+    public static Task parse(byte[] data, int offset, int length) {
+        Task task = new Task();
+        JsonTaskParser parser = new JsonTaskParser(data, offset, length);
+        parser.readTask(task, null);
+        parser.checkEnd();
+        return task;
+    }
+    
+    /**
+     * Разбирает один элемент пакетного запроса: поля задачи плюс "op" и "version"
+     */
+    public static BulkOperation parseOperation(byte[] data, int offset, int length) {
+        BulkOperation operation = new BulkOperation();
+        JsonTaskParser parser = new JsonTaskParser(data, offset, length);
+        parser.readTask(operation.getTask(), operation);
+        parser.checkEnd();
+        return operation;
+    }
+    
+    private void checkEnd() {
+        skipWhitespace();
+        if (pos != end) {
+            throw error("Unexpected data after JSON object");
+        }
+    }
+    
+    /**
+     * Читает объект в task; ключи op и version учитываются, только если задана операция
+     */
+    private void readTask(Task task, BulkOperation operation) {
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            byte[] key = readKey();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            
+            if (key == KEY_ID) {
+                readId(task);
+            } else if (key == KEY_TITLE) {
+                task.setTitle(readNullableString());
+            } else if (key == KEY_DESCRIPTION) {
+                task.setDescription(readNullableString());
+            } else if (key == KEY_COMPLETED) {
+                task.setCompleted(readBoolean());
+            } else if (key == KEY_OP && operation != null) {
+                operation.setType(readOperationType());
+            } else if (key == KEY_VERSION && operation != null) {
+                operation.setExpectedVersion(readVersion());
+            } else {
+                skipValue();
+            }
+            
+            skipWhitespace();
+            int c = next();
+            if (c == '}') return;
+            if (c != ',') throw error("Expected ',' or '}'");
+        }
+    }
+    
+    /**
+     * Читает ключ и возвращает одну из констант KEY_*, либо null для неизвестного ключа
+     * Ключ без экранирования сравнивается прямо с байтами запроса
+     */
+    private byte[] readKey() {
+        expect('"');
+        int start = pos;
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '"') {
+                int length = pos - start;
+                pos++;
+                return matchKey(data, start, length);
+            }
+            if (b == '\\') {
+                pos = start - 1;
+                byte[] decoded = readString().getBytes(StandardCharsets.UTF_8);
+                return matchKey(decoded, 0, decoded.length);
+            }
+            pos++;
+        }
+        throw error("Unterminated string");
+    }
+    
+    private static byte[] matchKey(byte[] bytes, int offset, int length) {
+        if (regionEquals(bytes, offset, length, KEY_ID)) return KEY_ID;
+        if (regionEquals(bytes, offset, length, KEY_TITLE)) return KEY_TITLE;
+        if (regionEquals(bytes, offset, length, KEY_DESCRIPTION)) return KEY_DESCRIPTION;
+        if (regionEquals(bytes, offset, length, KEY_COMPLETED)) return KEY_COMPLETED;
+        if (regionEquals(bytes, offset, length, KEY_OP)) return KEY_OP;
+        if (regionEquals(bytes, offset, length, KEY_VERSION)) return KEY_VERSION;
+        return null;
+    }
+    
+    private static boolean regionEquals(byte[] bytes, int offset, int length, byte[] key) {
+        return length == key.length && Arrays.equals(bytes, offset, offset + length, key, 0, key.length);
+    }
+    
+    /**
+     * id принимается только целым числом, как и раньше нечисловые значения игнорируются
+     */
+    private void readId(Task task) {
+        if (peek() != '-' && (peek() < '0' || peek() > '9')) {
+            skipValue();
+            return;
+        }
+        int start = pos;
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            pos++;
+        }
+        long value = 0;
+        boolean integer = true;
+        while (pos < end) {
+            byte b = data[pos];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                if (value > Integer.MAX_VALUE + 1L) integer = false;
+                pos++;
+            } else if (b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-') {
+                integer = false;
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (pos == start + (negative ? 1 : 0)) throw error("Invalid number");
+        if (negative) value = -value;
+        if (integer && value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            task.setId((int) value);
+        }
+    }
+    
+    private BulkOperation.Type readOperationType() {
+        String op = readString();
+        switch (op) {
+            case "create": return BulkOperation.Type.CREATE;
+            case "update": return BulkOperation.Type.UPDATE;
+            case "delete": return BulkOperation.Type.DELETE;
+            default: throw error("Unknown op '" + op + "'");
+        }
+    }
+    
+    /**
+     * Версия - положительное целое число или строка ETag в кавычках ("\"3\"")
+     */
+    private long readVersion() {
+        String text;
+        if (peek() == '"') {
+            text = readString();
+            if (text.length() >= 2 && text.startsWith("\"") && text.endsWith("\"")) {
+                text = text.substring(1, text.length() - 1);
+            }
+        } else {
+            int start = pos;
+            while (pos < end && data[pos] >= '0' && data[pos] <= '9') pos++;
+            text = new String(data, start, pos - start, StandardCharsets.US_ASCII);
+        }
+        try {
+            long version = Long.parseLong(text);
+            if (version > 0) return version;
+        } catch (NumberFormatException e) {
+            // Ниже - общая ошибка
+        }
+        throw error("Invalid version");
+    }
+    
+    private boolean readBoolean() {
+        int c = peek();
+        if (c == 't') {
+            expectLiteral("true");
+            return true;
+        }
+        if (c == 'f') {
+            expectLiteral("false");
+            return false;
+        }
+        if (c == '"') {
+            // Строка "true" тоже считается истиной, как Boolean.parseBoolean
+            return Boolean.parseBoolean(readString());
+        }
+        skipValue();
+        return false;
+    }
+    
+    private String readNullableString() {
+        if (peek() == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+        return readString();
+    }
+    
+    private String readString() {
+        expect('"');
+        int start = pos;
+        // Быстрый путь: строка без экранирования превращается в String за одно копирование
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '"') {
+                pos++;
+                return new String(data, start, pos - 1 - start, StandardCharsets.UTF_8);
+            }
+            if (b == '\\') break;
+            if ((b & 0xFF) < 0x20) throw error("Control character in string");
+            pos++;
+        }
+        if (pos >= end) throw error("Unterminated string");
+        
+        // Медленный путь: раскрываем экранирование в переиспользуемый буфер байтов
+        int length = pos - start;
+        ensureScratch(length + (end - pos));
+        System.arraycopy(data, start, scratch, 0, length);
+        while (pos < end) {
+            byte b = data[pos++];
+            if (b == '"') {
+                return new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+            if ((b & 0xFF) < 0x20) throw error("Control character in string");
+            if (b != '\\') {
+                scratch[length++] = b;
+                continue;
+            }
+            if (pos >= end) break;
+            byte escaped = data[pos++];
+            switch (escaped) {
+                case '"': scratch[length++] = '"'; break;
+                case '\\': scratch[length++] = '\\'; break;
+                case '/': scratch[length++] = '/'; break;
+                case 'b': scratch[length++] = '\b'; break;
+                case 'f': scratch[length++] = '\f'; break;
+                case 'n': scratch[length++] = '\n'; break;
+                case 'r': scratch[length++] = '\r'; break;
+                case 't': scratch[length++] = '\t'; break;
+                case 'u':
+                    length = writeCodePoint(readUnicodeEscape(), length);
+                    break;
+                default:
+                    throw error("Invalid escape sequence");
+            }
+        }
+        throw error("Unterminated string");
+    }
+    
+    /**
+     * Читает код символа из 4 шестнадцатеричных цифр и склеивает суррогатную пару,
+     * если за старшим суррогатом сразу следует младший
+     */
+    private int readUnicodeEscape() {
+        int c = readHex4();
+        if (Character.isHighSurrogate((char) c) && pos + 6 <= end
+                && data[pos] == '\\' && data[pos + 1] == 'u') {
+            int save = pos;
+            pos += 2;
+            int low = readHex4();
+            if (Character.isLowSurrogate((char) low)) {
+                return Character.toCodePoint((char) c, (char) low);
+            }
+            pos = save;
+        }
+        // Одиночный суррогат нельзя закодировать в UTF-8
+        return Character.isSurrogate((char) c) ? '?' : c;
+    }
+    
+    private int readHex4() {
+        if (pos + 4 > end) throw error("Invalid unicode escape");
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(data[pos++], 16);
+            if (digit < 0) throw error("Invalid unicode escape");
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+    
+    private int writeCodePoint(int codePoint, int length) {
+        // Экранирование uXXXX (6 байт) не длиннее своего UTF-8 представления, места хватает
+        if (codePoint < 0x80) {
+            scratch[length++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            scratch[length++] = (byte) (0xC0 | (codePoint >> 6));
+            scratch[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            scratch[length++] = (byte) (0xE0 | (codePoint >> 12));
+            scratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            scratch[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            scratch[length++] = (byte) (0xF0 | (codePoint >> 18));
+            scratch[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            scratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            scratch[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        return length;
+    }
+    
+    private void ensureScratch(int size) {
+        if (scratch == null || scratch.length < size) {
+            scratch = new byte[size];
+        }
+    }
+    
+    /**
+     * Пропускает значение неизвестного поля любого типа
+     */
+    private void skipValue() {
+        int c = peek();
+        switch (c) {
+            case '"':
+                skipString();
+                break;
+            case '{':
+            case '[':
+                skipContainer();
+                break;
+            case 't':
+                expectLiteral("true");
+                break;
+            case 'f':
+                expectLiteral("false");
+                break;
+            case 'n':
+                expectLiteral("null");
+                break;
+            default:
+                int start = pos;
+                while (pos < end && "+-.eE0123456789".indexOf(data[pos]) >= 0) pos++;
+                if (pos == start) throw error("Unexpected character");
+        }
+    }
+    
+    private void skipString() {
+        expect('"');
+        while (pos < end) {
+            byte b = data[pos++];
+            if (b == '"') return;
+            if (b == '\\') pos++;
+        }
+        throw error("Unterminated string");
+    }
+    
+    private void skipContainer() {
+        int depth = 0;
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '"') {
+                skipString();
+                continue;
+            }
+            pos++;
+            if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (--depth == 0) return;
+            }
+        }
+        throw error("Unterminated object or array");
+    }
+    
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte b = data[pos];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') return;
+            pos++;
+        }
+    }
+    
+    private int peek() {
+        if (pos >= end) throw error("Unexpected end of JSON");
+        return data[pos];
+    }
+    
+    private int next() {
+        int c = peek();
+        pos++;
+        return c;
+    }
+    
+    private void expect(char c) {
+        if (next() != c) {
+            pos--;
+            throw error("Expected '" + c + "'");
+        }
+    }
+    
+    private void expectLiteral(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (pos >= end || data[pos] != literal.charAt(i)) throw error("Invalid literal");
+            pos++;
+        }
+    }
+    
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos);
+    }
+    
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
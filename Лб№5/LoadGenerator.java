@@ -0,0 +1,443 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Генератор нагрузки для RestApiServer
+ *
+ * Запуск: java LoadGenerator [--url=http://localhost:8080/api/tasks] [--rate=1000] [--duration=30]
+ *                            [--connections=32] [--mix=get:70,post:10,put:15,delete:5] [--preload=1000] [--warmup=5]
+ *
+ * Каждое соединение - отдельный поток (виртуальный, если JVM их поддерживает) с постоянным
+ * HTTP/1.1 keep-alive соединением. С --rate задается открытая модель нагрузки: запросы
+ * планируются равномерно независимо от ответов сервера, и задержка считается от запланированного
+ * времени отправки, а не от фактического. Так задержки сервера не скрываются тем, что
+ * генератор, ожидая ответа, сам отправляет меньше запросов (coordinated omission).
+ * --rate=0 - закрытая модель: каждое соединение отправляет следующий запрос сразу после ответа.
+ */
+public class LoadGenerator {
+    private enum Operation {
+        GET, POST, PUT, DELETE
+    }
+    
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+    
+    private URI url = URI.create("http://localhost:8080/api/tasks");
+    private int rate = 1000;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private int connections = 32;
+    private int preload = 1000;
+    private final int[] mix = {70, 10, 15, 5};
+    
+    private int[] ids;
+    private final ConcurrentLinkedQueue<Integer> created = new ConcurrentLinkedQueue<>();
+    private final Histogram[] latency = new Histogram[Operation.values().length];
+    private final LongAdder[] counts = new LongAdder[Operation.values().length];
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private volatile boolean recording;
+    
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            for (String arg : args) {
+                generator.set(arg);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ошибка в параметрах: " + e.getMessage());
+            System.err.println("Использование: java LoadGenerator [--url=http://localhost:8080/api/tasks] [--rate=1000]"
+                    + " [--duration=30] [--connections=32] [--mix=get:70,post:10,put:15,delete:5] [--preload=1000] [--warmup=5]");
+            System.exit(2);
+        }
+        generator.run();
+    }
+    
+    private void set(String arg) {
+        int eq = arg.indexOf('=');
+        if (!arg.startsWith("--") || eq < 0) {
+            throw new IllegalArgumentException("Неверный аргумент: " + arg + " (ожидается --ключ=значение)");
+        }
+        String key = arg.substring(2, eq);
+        String value = arg.substring(eq + 1);
+        switch (key) {
+            case "url": url = URI.create(value); break;
+            case "rate": rate = Integer.parseInt(value); break;
+            case "duration": durationSeconds = Integer.parseInt(value); break;
+            case "warmup": warmupSeconds = Integer.parseInt(value); break;
+            case "connections": connections = Integer.parseInt(value); break;
+            case "preload": preload = Integer.parseInt(value); break;
+            case "mix":
+                Arrays.fill(mix, 0);
+                for (String part : value.split(",")) {
+                    String[] kv = part.split(":");
+                    mix[Operation.valueOf(kv[0].trim().toUpperCase(Locale.ROOT)).ordinal()] = Integer.parseInt(kv[1].trim());
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Неизвестный параметр: --" + key);
+        }
+        if (rate < 0 || durationSeconds <= 0 || warmupSeconds < 0 || connections <= 0 || preload < 0) {
+            throw new IllegalArgumentException("--" + key + ": недопустимое значение " + value);
+        }
+    }
+    
+    private void run() throws Exception {
+        int weight = 0;
+        for (int w : mix) weight += w;
+        if (weight <= 0) throw new IllegalArgumentException("Сумма весов --mix должна быть больше 0");
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new Histogram();
+            counts[i] = new LongAdder();
+        }
+        
+        System.out.println("Цель: " + url + ", соединений: " + connections + ", "
+                + (rate > 0 ? "темп " + rate + " запр/с (открытая модель)" : "без ограничения темпа (закрытая модель)"));
+        preload();
+        
+        ExecutorService executor = ServerExecutors.newVirtualThreadExecutor();
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            int connection = c;
+            workers.add(executor.submit(() -> {
+                worker(connection, start, end);
+                return null;
+            }));
+        }
+        
+        // Прогрев: ответы не учитываются, пока JIT сервера не скомпилирует горячий путь
+        LockSupport.parkNanos(measureStart - System.nanoTime());
+        recording = true;
+        long previous = 0;
+        for (int second = 1; second <= durationSeconds; second++) {
+            LockSupport.parkNanos(measureStart + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            long total = totalCount();
+            System.out.printf("%3d с: %,8d запр/с, ошибок %d%n", second, total - previous, errors.sum());
+            previous = total;
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        executor.shutdown();
+        report();
+    }
+    
+    /**
+     * Создает задачи, с которыми работают GET, PUT и DELETE
+     */
+    private void preload() throws IOException {
+        ids = new int[preload];
+        try (HttpConnection connection = new HttpConnection(url)) {
+            for (int i = 0; i < preload; i++) {
+                byte[] body = connection.request("POST", url.getRawPath(), taskJson("Нагрузочная задача " + i));
+                ids[i] = parseId(body);
+            }
+        }
+        if (preload > 0) {
+            System.out.println("Создано задач для теста: " + preload);
+        }
+    }
+    
+    /**
+     * Цикл одного соединения; при открытой модели соединение c отправляет запросы
+     * с номерами c, c + connections, ... в моменты start + номер / rate
+     */
+    private void worker(int connection, long start, long end) {
+        long intervalNanos = rate > 0 ? 1_000_000_000L * connections / rate : 0;
+        long intended = start + (rate > 0 ? 1_000_000_000L * connection / rate : 0);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        HttpConnection http = null;
+        try {
+            while (true) {
+                if (rate > 0) {
+                    long wait = intended - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                } else {
+                    intended = System.nanoTime();
+                }
+                if (intended >= end) break;
+                
+                Operation operation = pick(random);
+                boolean record = recording;
+                try {
+                    if (http == null) {
+                        http = new HttpConnection(url);
+                    }
+                    int status = execute(http, operation, random);
+                    if (!http.keepAlive) {
+                        http.close();
+                        http = null;
+                        reconnects.increment();
+                    }
+                    if (record) {
+                        // Время от запланированной отправки, включая ожидание, пока соединение было занято
+                        latency[operation.ordinal()].record(System.nanoTime() - intended);
+                        counts[operation.ordinal()].increment();
+                        if (status == 404) {
+                            notFound.increment();
+                        } else if (status >= 400) {
+                            errors.increment();
+                        }
+                    }
+                } catch (IOException e) {
+                    if (record) errors.increment();
+                    if (http != null) {
+                        http.close();
+                        http = null;
+                        reconnects.increment();
+                    }
+                }
+                intended += intervalNanos;
+            }
+        } finally {
+            if (http != null) http.close();
+        }
+    }
+    
+    private int execute(HttpConnection http, Operation operation, ThreadLocalRandom random) throws IOException {
+        String path = url.getRawPath();
+        switch (operation) {
+            case GET:
+                http.request("GET", path + "/" + randomId(random), null);
+                break;
+            case PUT:
+                int id = randomId(random);
+                http.request("PUT", path + "/" + id, taskJson("Обновленная задача " + id));
+                break;
+            case DELETE:
+                // Удаляются только задачи, созданные во время теста, чтобы GET и PUT находили свои;
+                // пока удалять нечего, вместо удаления выполняется создание
+                Integer victim = created.poll();
+                if (victim != null) {
+                    http.request("DELETE", path + "/" + victim, null);
+                } else {
+                    create(http, path);
+                }
+                break;
+            default:
+                create(http, path);
+        }
+        return http.status;
+    }
+    
+    private void create(HttpConnection http, String path) throws IOException {
+        byte[] body = http.request("POST", path, taskJson("Новая задача"));
+        if (http.status == 201) {
+            created.add(parseId(body));
+        }
+    }
+    
+    private Operation pick(ThreadLocalRandom random) {
+        int weight = 0;
+        for (int w : mix) weight += w;
+        int value = random.nextInt(weight);
+        for (int i = 0; i < mix.length; i++) {
+            value -= mix[i];
+            if (value < 0) return Operation.values()[i];
+        }
+        return Operation.GET;
+    }
+    
+    private int randomId(ThreadLocalRandom random) {
+        return ids.length > 0 ? ids[random.nextInt(ids.length)] : 1;
+    }
+    
+    private long totalCount() {
+        long total = 0;
+        for (LongAdder count : counts) total += count.sum();
+        return total;
+    }
+    
+    private void report() {
+        long total = totalCount();
+        System.out.println();
+        System.out.printf("Запросов: %,d за %d с - %,.0f запр/с%s%n", total, durationSeconds, (double) total / durationSeconds,
+                rate > 0 ? " (заданный темп " + rate + ")" : "");
+        System.out.printf("Ошибок: %,d, не найдено (404): %,d, переподключений: %,d%n", errors.sum(), notFound.sum(), reconnects.sum());
+        System.out.println();
+        System.out.printf("%-8s %10s %10s %10s %10s %10s %10s%n", "", "запросов", "p50, мс", "p90, мс", "p99, мс", "p99.9, мс", "max, мс");
+        Histogram all = new Histogram();
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = latency[operation.ordinal()];
+            all.add(histogram);
+            if (histogram.getCount() == 0) continue;
+            printRow(operation.name(), histogram);
+        }
+        if (all.getCount() > 0) {
+            printRow("всего", all);
+        }
+    }
+    
+    private static void printRow(String name, Histogram histogram) {
+        long[] values = histogram.quantiles(QUANTILES);
+        System.out.printf("%-8s %,10d", name, histogram.getCount());
+        for (long value : values) {
+            System.out.printf(" %10.2f", value / 1e6);
+        }
+        System.out.println();
+    }
+    
+    private static byte[] taskJson(String title) {
+        return ("{\"title\":\"" + title + "\",\"description\":\"LoadGenerator\",\"completed\":false}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Id из ответа на POST: число после "id":
+     */
+    private static int parseId(byte[] body) throws IOException {
+        String json = new String(body, StandardCharsets.UTF_8);
+        int start = json.indexOf("\"id\":");
+        if (start < 0) throw new IOException("No id in response: " + json);
+        int position = start + 5;
+        int id = 0;
+        while (position < json.length() && Character.isDigit(json.charAt(position))) {
+            id = id * 10 + json.charAt(position++) - '0';
+        }
+        return id;
+    }
+    
+    /**
+     * Минимальный клиент HTTP/1.1 поверх одного keep-alive сокета
+     * Тело ответа читается целиком: по Content-Length или chunked
+     */
+    private static class HttpConnection implements AutoCloseable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final String host;
+        private final StringBuilder line = new StringBuilder();
+        int status;
+        // false - сервер закрывает соединение после ответа (Connection: close)
+        boolean keepAlive = true;
+        
+        HttpConnection(URI url) throws IOException {
+            int port = url.getPort() > 0 ? url.getPort() : 80;
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(url.getHost(), port), 5000);
+            socket.setSoTimeout(30_000);
+            in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+            out = socket.getOutputStream();
+            host = url.getHost() + ":" + port;
+        }
+        
+        byte[] request(String method, String path, byte[] body) throws IOException {
+            StringBuilder head = new StringBuilder(128);
+            head.append(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: ").append(host).append("\r\n");
+            if (body != null) {
+                head.append("Content-Type: application/json\r\nContent-Length: ").append(body.length).append("\r\n");
+            }
+            head.append("\r\n");
+            byte[] headBytes = head.toString().getBytes(StandardCharsets.US_ASCII);
+            // Запрос уходит одной записью в сокет
+            byte[] request = body == null ? headBytes : concat(headBytes, body);
+            out.write(request);
+            out.flush();
+            return readResponse("HEAD".equals(method));
+        }
+        
+        private byte[] readResponse(boolean headRequest) throws IOException {
+            String statusLine = readLine();
+            if (statusLine.length() < 12) throw new IOException("Bad status line: " + statusLine);
+            status = Integer.parseInt(statusLine.substring(9, 12));
+            long contentLength = -1;
+            boolean chunked = false;
+            boolean close = false;
+            String header;
+            while (!(header = readLine()).isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon < 0) continue;
+                String name = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = header.substring(colon + 1).trim();
+                if (name.equals("content-length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equals("transfer-encoding")) {
+                    chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                } else if (name.equals("connection")) {
+                    close = value.equalsIgnoreCase("close");
+                }
+            }
+            byte[] body;
+            if (headRequest || status == 204 || status == 304) {
+                body = new byte[0];
+            } else if (chunked) {
+                body = readChunked();
+            } else if (contentLength >= 0) {
+                body = in.readNBytes((int) contentLength);
+                if (body.length < contentLength) throw new EOFException("Truncated response body");
+            } else {
+                body = new byte[0];
+            }
+            keepAlive = !close;
+            return body;
+        }
+        
+        private byte[] readChunked() throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            while (true) {
+                String sizeLine = readLine();
+                int semicolon = sizeLine.indexOf(';');
+                int size = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+                if (size == 0) {
+                    // Завершающие заголовки (trailer) до пустой строки
+                    while (!readLine().isEmpty()) {
+                    }
+                    return body.toByteArray();
+                }
+                byte[] chunk = in.readNBytes(size);
+                if (chunk.length < size) throw new EOFException("Truncated chunk");
+                body.write(chunk, 0, chunk.length);
+                readLine();
+            }
+        }
+        
+        private String readLine() throws IOException {
+            line.setLength(0);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) throw new EOFException("Connection closed by server");
+                if (b != '\r') line.append((char) b);
+            }
+            return line.toString();
+        }
+        
+        private static byte[] concat(byte[] a, byte[] b) {
+            byte[] result = new byte[a.length + b.length];
+            System.arraycopy(a, 0, result, 0, a.length);
+            System.arraycopy(b, 0, result, a.length, b.length);
+            return result;
+        }
+        
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Соединение уже закрыто
+            }
+        }
+    }
+}
@@ -0,0 +1,1113 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * HTTP/1.1 сервер на одном селекторе NIO - замена com.sun.net.httpserver.HttpServer (--frontend=nio)
+ *
+ * Все сокеты обслуживает один поток цикла событий: он читает запросы, разбирает их и пишет
+ * ответы через два переиспользуемых direct-буфера, без отдельного потока на соединение
+ * и без временных буферов JDK на каждую запись. Обработчики получают обычный HttpExchange,
+ * поэтому маршруты, фильтры и ответы RestApiServer работают без изменений.
+ *
+ * Соединения keep-alive; поддерживается конвейер (pipelining): запросы, пришедшие подряд,
+ * обрабатываются по одному и ответы уходят в том же порядке. Тело запроса читается целиком
+ * до вызова обработчика; тело больше maxBodyBytes (--max-body) отклоняется с 413, как только
+ * это видно по Content-Length или сумме размеров блоков chunked. Ответ, записанный обработчиком,
+ * собирается в очередь соединения и отправляется циклом событий; поток обработчика,
+ * обогнавший клиента больше чем на MAX_QUEUED_OUTPUT, ждет (нужно для долгих потоков SSE).
+ * Без executor обработчики выполняются прямо в потоке цикла, как у HttpServer в режиме DEFAULT;
+ * тогда при переполнении очереди поток цикла сам дописывает ее в сокет по мере того, как клиент
+ * читает, поэтому длинный потоковый ответ не копится в памяти целиком.
+ *
+ * Соединение закрывается, если IDLE_TIMEOUT_MILLIS от него ничего не приходит между запросами
+ * (включая недописанный запрос) или клиент столько же не забирает ответ.
+ */
+public class NioHttpServer {
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    private static final int RESPONSE_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int MAX_QUEUED_OUTPUT = 1024 * 1024;
+    // Сколько байт следующих запросов конвейера читается, пока текущий еще обрабатывается
+    private static final int MAX_PIPELINED_BYTES = 1024 * 1024;
+    private static final long IDLE_TIMEOUT_MILLIS = 30_000;
+    private static final long IDLE_TIMEOUT_NANOS = IDLE_TIMEOUT_MILLIS * 1_000_000;
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static volatile CachedDate date = new CachedDate(0);
+    
+    private final InetSocketAddress address;
+    private final int backlog;
+    private final int maxBodyBytes;
+    private final List<Context> contexts = new ArrayList<>();
+    private Executor executor;
+    // Буферы принадлежат потоку цикла событий и используются всеми соединениями по очереди
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+    // Соединения, в очередь которых писали другие потоки или чей запрос обработан
+    private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    // Для ожидания записи потоком цикла, когда обработчик выполняется прямо в нем
+    private Selector writeSelector;
+    private long lastSweep = System.nanoTime();
+    private ServerSocketChannel serverChannel;
+    private Thread loop;
+    private volatile boolean running;
+    
+    /**
+     * maxBodyBytes - наибольший размер тела запроса, который читается в память
+     */
+    public NioHttpServer(InetSocketAddress address, int backlog, int maxBodyBytes) {
+        this.address = address;
+        this.backlog = backlog;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+    
+    /**
+     * Обработчик запросов с путями, начинающимися с path; возвращает список его фильтров
+     */
+    public List<Filter> createContext(String path, HttpHandler handler) {
+        Context context = new Context(path, handler);
+        contexts.add(context);
+        return context.filters;
+    }
+    
+    /**
+     * Потоки обработчиков; null - обработчики выполняются в потоке цикла событий
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, backlog);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        loop = new Thread(this::run, "nio-http-loop");
+        loop.setDaemon(true);
+        loop.start();
+    }
+    
+    /**
+     * Останавливает цикл событий и закрывает все соединения
+     */
+    public void stop() {
+        running = false;
+        if (selector == null) return;
+        selector.wakeup();
+        try {
+            loop.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                close((Connection) key.attachment());
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+            if (writeSelector != null) {
+                writeSelector.close();
+            }
+        } catch (IOException e) {
+            // Сервер и так останавливается
+        }
+    }
+    
+    private void run() {
+        while (running) {
+            try {
+                selector.select(1000);
+            } catch (IOException e) {
+                System.err.println("Ошибка селектора: " + e.getMessage());
+                return;
+            }
+            for (SelectionKey key : selector.selectedKeys()) {
+                if (!key.isValid()) continue;
+                if (key.isAcceptable()) {
+                    accept();
+                } else {
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        read(connection);
+                    }
+                    service(connection);
+                }
+            }
+            selector.selectedKeys().clear();
+            Connection connection;
+            while ((connection = ready.poll()) != null) {
+                connection.scheduled.set(false);
+                service(connection);
+            }
+            closeIdle();
+        }
+    }
+    
+    /**
+     * Раз в секунду закрывает соединения, простоявшие дольше IDLE_TIMEOUT_MILLIS:
+     * без запроса в обработке (клиент молчит или не дослал запрос)
+     * или с ответом, который клиент не забирает
+     */
+    private void closeIdle() {
+        long now = System.nanoTime();
+        if (now - lastSweep < 1_000_000_000L) return;
+        lastSweep = now;
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Connection)) continue;
+            Connection connection = (Connection) key.attachment();
+            if (now - connection.lastActivity < IDLE_TIMEOUT_NANOS) continue;
+            boolean waitingForClient;
+            synchronized (connection) {
+                waitingForClient = connection.current == null || !connection.output.isEmpty();
+            }
+            if (waitingForClient) {
+                close(connection);
+            }
+        }
+    }
+    
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                // Ответ уходит одной записью, ждать подтверждения предыдущего пакета незачем
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            }
+        } catch (IOException e) {
+            System.err.println("Ошибка при приеме соединения: " + e.getMessage());
+        }
+    }
+    
+    private void read(Connection connection) {
+        try {
+            readBuffer.clear();
+            int count = connection.channel.read(readBuffer);
+            if (count < 0) {
+                connection.inputClosed = true;
+                return;
+            }
+            connection.lastActivity = System.nanoTime();
+            readBuffer.flip();
+            connection.append(readBuffer);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+    
+    /**
+     * Продвигает соединение: завершает обработанный запрос, запускает следующий
+     * из конвейера, отправляет накопленный ответ и обновляет интересующие события
+     */
+    private void service(Connection connection) {
+        if (connection.closed) return;
+        while (true) {
+            NioExchange current = connection.current;
+            if (current != null) {
+                if (!current.done) break;
+                connection.current = null;
+                // Ожидание следующего запроса keep-alive отсчитывается от конца ответа
+                connection.lastActivity = System.nanoTime();
+                if (!current.keepAlive) connection.closing = true;
+            }
+            if (connection.closing) break;
+            NioExchange next;
+            try {
+                next = connection.parse();
+            } catch (BadRequestException e) {
+                connection.closing = true;
+                connection.enqueueError(e.status, e.getMessage());
+                break;
+            }
+            if (next == null) {
+                if (connection.inputClosed) connection.closing = true;
+                break;
+            }
+            connection.current = next;
+            dispatch(next);
+        }
+        try {
+            boolean drained = flush(connection);
+            if (connection.closing && drained && connection.current == null) {
+                close(connection);
+                return;
+            }
+            int ops = drained ? 0 : SelectionKey.OP_WRITE;
+            if (!connection.inputClosed && !connection.closing
+                    && (connection.current == null || connection.buffered() < MAX_PIPELINED_BYTES)) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (connection.key.interestOps() != ops) {
+                connection.key.interestOps(ops);
+            }
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+    
+    private void dispatch(NioExchange exchange) {
+        Context context = contextFor(exchange.uri.getPath());
+        if (context == null) {
+            exchange.connection.enqueueError(404, "No context found for request");
+            exchange.keepAlive = false;
+            exchange.done = true;
+            return;
+        }
+        exchange.context = context;
+        Runnable task = () -> {
+            try {
+                new Filter.Chain(context.filters, context.handler).doFilter(exchange);
+            } catch (Throwable e) {
+                exchange.abort();
+            }
+        };
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+    
+    private Context contextFor(String path) {
+        Context best = null;
+        for (Context context : contexts) {
+            if (path.startsWith(context.path) && (best == null || context.path.length() > best.path.length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+    
+    /**
+     * Пишет очередь ответа в сокет через общий direct-буфер; true - очередь пуста
+     */
+    private boolean flush(Connection connection) throws IOException {
+        synchronized (connection) {
+            try {
+                while (!connection.output.isEmpty()) {
+                    writeBuffer.clear();
+                    int offset = connection.outputOffset;
+                    for (byte[] chunk : connection.output) {
+                        int length = Math.min(chunk.length - offset, writeBuffer.remaining());
+                        writeBuffer.put(chunk, offset, length);
+                        offset = 0;
+                        if (!writeBuffer.hasRemaining()) break;
+                    }
+                    writeBuffer.flip();
+                    int written = connection.channel.write(writeBuffer);
+                    if (written > 0) {
+                        connection.lastActivity = System.nanoTime();
+                    }
+                    connection.consume(written);
+                    if (writeBuffer.hasRemaining()) return false;
+                }
+                return true;
+            } finally {
+                connection.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Обработчик в потоке цикла обогнал клиента: цикл сам пишет очередь в сокет,
+     * пока в ней не останется не больше MAX_QUEUED_OUTPUT. Остальные соединения в это время
+     * ждут, как и во время любого обработчика в потоке цикла; клиент, не читающий ответ
+     * IDLE_TIMEOUT_MILLIS, отключается
+     */
+    private void drainInline(Connection connection) throws IOException {
+        long deadline = System.nanoTime() + IDLE_TIMEOUT_NANOS;
+        while (true) {
+            synchronized (connection) {
+                if (connection.closed) throw new IOException("Connection closed");
+                if (connection.queuedBytes <= MAX_QUEUED_OUTPUT) return;
+            }
+            try {
+                if (flush(connection)) return;
+            } catch (IOException e) {
+                close(connection);
+                throw e;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                close(connection);
+                throw new IOException("Client is not reading the response");
+            }
+            awaitWritable(connection, remaining / 1_000_000 + 1);
+        }
+    }
+    
+    /**
+     * Ждет не дольше timeoutMillis, пока сокет соединения станет доступен для записи
+     */
+    private void awaitWritable(Connection connection, long timeoutMillis) throws IOException {
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+        }
+        SelectionKey key = connection.channel.register(writeSelector, SelectionKey.OP_WRITE);
+        try {
+            writeSelector.select(timeoutMillis);
+        } finally {
+            key.cancel();
+            // Отмена вступает в силу при следующем выборе; без этого повторная регистрация не пройдет
+            writeSelector.selectNow();
+            writeSelector.selectedKeys().clear();
+        }
+    }
+    
+    private void close(Connection connection) {
+        synchronized (connection) {
+            if (connection.closed) return;
+            connection.closed = true;
+            connection.output.clear();
+            connection.queuedBytes = 0;
+            connection.notifyAll();
+        }
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Соединение уже закрыто
+        }
+    }
+    
+    private static final class Context {
+        final String path;
+        final HttpHandler handler;
+        final List<Filter> filters = new ArrayList<>();
+        
+        Context(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+    }
+    
+    private static final class BadRequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        final int status;
+        
+        BadRequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+    
+    /**
+     * Состояние одного соединения
+     * Входной буфер, разбор и current используются только потоком цикла событий,
+     * очередь ответа - под блокировкой соединения
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        final InetSocketAddress remoteAddress;
+        final InetSocketAddress localAddress;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        SelectionKey key;
+        // Полученные, но еще не разобранные байты: in[start..end)
+        byte[] in = new byte[4096];
+        int start;
+        int end;
+        // Сколько байт от start уже просмотрено в поисках конца заголовков
+        int scanned;
+        boolean continueSent;
+        // Разбор chunked-тела между чтениями: начало следующей строки относительно start (-1 - с начала),
+        // сумма размеров полученных блоков и признак завершающих заголовков
+        int chunkOffset = -1;
+        long chunkTotal;
+        boolean chunkTrailer;
+        NioExchange current;
+        boolean inputClosed;
+        boolean closing;
+        // Время последнего чтения, записи или завершения запроса (System.nanoTime)
+        volatile long lastActivity = System.nanoTime();
+        final ArrayDeque<byte[]> output = new ArrayDeque<>();
+        int outputOffset;
+        long queuedBytes;
+        volatile boolean closed;
+        
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+            this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+        }
+        
+        int buffered() {
+            return end - start;
+        }
+        
+        void append(ByteBuffer buffer) {
+            int count = buffer.remaining();
+            if (end + count > in.length) {
+                if (start > 0) {
+                    System.arraycopy(in, start, in, 0, end - start);
+                    end -= start;
+                    start = 0;
+                }
+                if (end + count > in.length) {
+                    in = Arrays.copyOf(in, Math.max(in.length * 2, end + count));
+                }
+            }
+            buffer.get(in, end, count);
+            end += count;
+        }
+        
+        /**
+         * Разбирает следующий полный запрос из входного буфера; null - запрос пришел не целиком
+         */
+        NioExchange parse() throws BadRequestException {
+            int headerEnd = indexOfHeaderEnd();
+            if (headerEnd < 0) {
+                if (end - start > MAX_HEADER_BYTES) {
+                    throw new BadRequestException(431, "Request header too large");
+                }
+                return null;
+            }
+            String head = new String(in, start, headerEnd - start, StandardCharsets.ISO_8859_1);
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3) {
+                throw new BadRequestException(400, "Malformed request line");
+            }
+            String protocol = requestLine[2];
+            if (!"HTTP/1.1".equals(protocol) && !"HTTP/1.0".equals(protocol)) {
+                throw new BadRequestException(505, "HTTP version not supported");
+            }
+            URI uri;
+            try {
+                uri = new URI(requestLine[1]);
+            } catch (URISyntaxException e) {
+                throw new BadRequestException(400, "Malformed request target");
+            }
+            Headers headers = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new BadRequestException(400, "Malformed header line");
+                }
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            
+            int bodyStart = headerEnd + 4;
+            byte[] body;
+            int next;
+            String transferEncoding = headers.getFirst("Transfer-Encoding");
+            if (transferEncoding != null && "chunked".equalsIgnoreCase(transferEncoding.trim())) {
+                int bodyEnd = chunkedEnd(bodyStart);
+                if (bodyEnd < 0) {
+                    sendContinue(headers);
+                    return null;
+                }
+                body = decodeChunked(bodyStart, bodyEnd);
+                next = bodyEnd;
+            } else {
+                long length = 0;
+                String contentLength = headers.getFirst("Content-Length");
+                if (contentLength != null) {
+                    try {
+                        length = Long.parseLong(contentLength.trim());
+                    } catch (NumberFormatException e) {
+                        throw new BadRequestException(400, "Invalid Content-Length");
+                    }
+                    if (length < 0) throw new BadRequestException(400, "Invalid Content-Length");
+                }
+                if (length > maxBodyBytes) {
+                    throw new BadRequestException(413, "Request body too large");
+                }
+                if (end - bodyStart < length) {
+                    sendContinue(headers);
+                    return null;
+                }
+                body = Arrays.copyOfRange(in, bodyStart, bodyStart + (int) length);
+                next = bodyStart + (int) length;
+            }
+            
+            start = next;
+            scanned = 0;
+            continueSent = false;
+            chunkOffset = -1;
+            chunkTotal = 0;
+            chunkTrailer = false;
+            if (start == end) {
+                start = 0;
+                end = 0;
+            }
+            String connectionHeader = headers.getFirst("Connection");
+            boolean keepAlive = "HTTP/1.1".equals(protocol)
+                    ? !"close".equalsIgnoreCase(connectionHeader)
+                    : "keep-alive".equalsIgnoreCase(connectionHeader);
+            return new NioExchange(this, requestLine[0], uri, protocol, headers, body, keepAlive);
+        }
+        
+        private int indexOfHeaderEnd() {
+            int from = Math.max(start, start + scanned - 3);
+            for (int i = from; i + 3 < end; i++) {
+                if (in[i] == '\r' && in[i + 1] == '\n' && in[i + 2] == '\r' && in[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            scanned = end - start;
+            return -1;
+        }
+        
+        /**
+         * Конец тела с chunked-кодированием, начинающегося с from; -1 - тело пришло не целиком
+         * Разбор продолжается с места, где остановился при прошлом чтении, а не с начала тела
+         */
+        private int chunkedEnd(int from) throws BadRequestException {
+            int position = chunkOffset >= 0 ? start + chunkOffset : from;
+            try {
+                while (true) {
+                    int lineEnd = indexOfLineEnd(position);
+                    if (lineEnd < 0) return -1;
+                    if (chunkTrailer) {
+                        // Завершающие заголовки (trailer) не используются, пропускаем до пустой строки
+                        boolean empty = lineEnd == position;
+                        position = lineEnd + 2;
+                        if (empty) return position;
+                        continue;
+                    }
+                    int size = chunkSize(position, lineEnd);
+                    if (size == 0) {
+                        chunkTrailer = true;
+                        position = lineEnd + 2;
+                        continue;
+                    }
+                    if (chunkTotal + size > maxBodyBytes) {
+                        throw new BadRequestException(413, "Request body too large");
+                    }
+                    // Блок еще не пришел целиком - в следующий раз начнем с его строки размера
+                    if (end - (lineEnd + 2) < size + 2) return -1;
+                    chunkTotal += size;
+                    position = lineEnd + 2 + size + 2;
+                }
+            } finally {
+                // Относительно start: при сдвиге входного буфера абсолютные индексы меняются
+                chunkOffset = position - start;
+            }
+        }
+        
+        private byte[] decodeChunked(int from, int to) throws BadRequestException {
+            byte[] body = new byte[256];
+            int length = 0;
+            int position = from;
+            while (position < to) {
+                int lineEnd = indexOfLineEnd(position);
+                int size = chunkSize(position, lineEnd);
+                position = lineEnd + 2;
+                if (size == 0) break;
+                if (length + size > body.length) {
+                    body = Arrays.copyOf(body, Math.max(body.length * 2, length + size));
+                }
+                System.arraycopy(in, position, body, length, size);
+                length += size;
+                position += size + 2;
+            }
+            return Arrays.copyOf(body, length);
+        }
+        
+        private int indexOfLineEnd(int from) {
+            for (int i = from; i + 1 < end; i++) {
+                if (in[i] == '\r' && in[i + 1] == '\n') return i;
+            }
+            return -1;
+        }
+        
+        private int chunkSize(int from, int to) throws BadRequestException {
+            long size = 0;
+            int digits = 0;
+            for (int i = from; i < to && in[i] != ';'; i++) {
+                int digit = Character.digit(in[i], 16);
+                if (digit < 0 || ++digits > 8) {
+                    throw new BadRequestException(400, "Invalid chunk size");
+                }
+                size = size * 16 + digit;
+            }
+            if (digits == 0 || size > maxBodyBytes) {
+                throw new BadRequestException(digits == 0 ? 400 : 413, "Invalid chunk size");
+            }
+            return (int) size;
+        }
+        
+        private void sendContinue(Headers headers) {
+            if (!continueSent && "100-continue".equalsIgnoreCase(headers.getFirst("Expect"))) {
+                continueSent = true;
+                synchronized (this) {
+                    output.add(CONTINUE);
+                    queuedBytes += CONTINUE.length;
+                }
+            }
+        }
+        
+        /**
+         * Ответ с ошибкой от самого сервера (до вызова обработчика); соединение затем закрывается
+         */
+        void enqueueError(int status, String message) {
+            byte[] body = JsonUtils.errorJson(message).getBytes(StandardCharsets.UTF_8);
+            String head = "HTTP/1.1 " + status + " " + reasonPhrase(status) + "\r\n"
+                    + "Date: " + currentDate() + "\r\n"
+                    + "Content-Type: application/json; charset=UTF-8\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+            synchronized (this) {
+                if (closed) return;
+                output.add(headBytes);
+                output.add(body);
+                queuedBytes += headBytes.length + body.length;
+            }
+        }
+        
+        /**
+         * Ставит байты ответа в очередь отправки
+         * Поток обработчика ждет, пока клиент не заберет часть уже отправленного,
+         * а поток цикла сам дописывает очередь в сокет (drainInline)
+         */
+        void enqueue(byte[] bytes) throws IOException {
+            if (Thread.currentThread() == loop) {
+                boolean full;
+                synchronized (this) {
+                    if (closed) throw new IOException("Connection closed");
+                    output.add(bytes);
+                    queuedBytes += bytes.length;
+                    full = queuedBytes > MAX_QUEUED_OUTPUT;
+                }
+                if (full) {
+                    drainInline(this);
+                }
+                return;
+            }
+            synchronized (this) {
+                if (output.isEmpty()) {
+                    // Ответ долго готовился - время ожидания клиента отсчитывается с этого момента
+                    lastActivity = System.nanoTime();
+                }
+                while (queuedBytes > MAX_QUEUED_OUTPUT && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the client");
+                    }
+                }
+                if (closed) throw new IOException("Connection closed");
+                output.add(bytes);
+                queuedBytes += bytes.length;
+            }
+            wakeUp();
+        }
+        
+        /**
+         * Сообщает циклу событий, что соединение нужно продвинуть
+         * В потоке цикла не нужно: он сам проверит соединение после обработчика
+         */
+        void wakeUp() {
+            if (Thread.currentThread() != loop && scheduled.compareAndSet(false, true)) {
+                ready.add(this);
+                selector.wakeup();
+            }
+        }
+        
+        void consume(int written) {
+            queuedBytes -= written;
+            while (written > 0) {
+                byte[] head = output.peekFirst();
+                int available = head.length - outputOffset;
+                if (written >= available) {
+                    output.pollFirst();
+                    outputOffset = 0;
+                    written -= available;
+                } else {
+                    outputOffset += written;
+                    written = 0;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Запрос и ответ для обработчиков, как у HttpServer
+     */
+    private static final class NioExchange extends HttpExchange {
+        final Connection connection;
+        final String method;
+        final URI uri;
+        final String protocol;
+        final Headers requestHeaders;
+        final Headers responseHeaders = new Headers();
+        final Map<String, Object> attributes = new HashMap<>();
+        private InputStream requestBody;
+        private final ResponseStream responseStream = new ResponseStream();
+        private OutputStream responseBody = responseStream;
+        Context context;
+        boolean keepAlive;
+        int responseCode = -1;
+        volatile boolean done;
+        
+        NioExchange(Connection connection, String method, URI uri, String protocol, Headers requestHeaders,
+                    byte[] body, boolean keepAlive) {
+            this.connection = connection;
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.requestHeaders = requestHeaders;
+            this.requestBody = new ByteArrayInputStream(body);
+            this.keepAlive = keepAlive;
+        }
+        
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+        
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+        
+        @Override
+        public URI getRequestURI() {
+            return uri;
+        }
+        
+        @Override
+        public String getRequestMethod() {
+            return method;
+        }
+        
+        /**
+         * У этого сервера нет объектов HttpContext
+         */
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+        
+        @Override
+        public void close() {
+            try {
+                responseBody.close();
+            } catch (IOException e) {
+                abort();
+            }
+        }
+        
+        @Override
+        public InputStream getRequestBody() {
+            return requestBody;
+        }
+        
+        @Override
+        public OutputStream getResponseBody() {
+            return responseBody;
+        }
+        
+        /**
+         * length > 0 - тело такой длины, 0 - тело произвольной длины (chunked), -1 - без тела
+         */
+        @Override
+        public void sendResponseHeaders(int code, long length) throws IOException {
+            if (responseCode >= 0) throw new IOException("Response headers already sent");
+            responseCode = code;
+            StringBuilder head = new StringBuilder(256);
+            head.append("HTTP/1.1 ").append(code).append(' ').append(reasonPhrase(code)).append("\r\n");
+            head.append("Date: ").append(currentDate()).append("\r\n");
+            for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    head.append(header.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+            boolean noBody = code < 200 || code == 204 || code == 304 || length < 0;
+            if (noBody) {
+                if (code >= 200 && code != 204 && code != 304) head.append("Content-Length: 0\r\n");
+            } else if (length == 0) {
+                head.append("Transfer-Encoding: chunked\r\n");
+            } else {
+                head.append("Content-Length: ").append(length).append("\r\n");
+            }
+            if (!keepAlive) head.append("Connection: close\r\n");
+            head.append("\r\n");
+            responseStream.begin(head.toString().getBytes(StandardCharsets.ISO_8859_1), noBody ? -1 : length);
+            if (noBody) {
+                responseStream.close();
+            }
+        }
+        
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return connection.remoteAddress;
+        }
+        
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+        
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return connection.localAddress;
+        }
+        
+        @Override
+        public String getProtocol() {
+            return protocol;
+        }
+        
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+        
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+        
+        @Override
+        public void setStreams(InputStream in, OutputStream out) {
+            if (in != null) requestBody = in;
+            if (out != null) responseBody = out;
+        }
+        
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+        
+        /**
+         * Обработчик завершился с ошибкой: 500, если ответ еще не начат, и закрытие соединения
+         */
+        void abort() {
+            keepAlive = false;
+            if (done) return;
+            try {
+                if (responseCode < 0) {
+                    sendResponseHeaders(500, -1);
+                    return;
+                }
+            } catch (IOException e) {
+                // Ответ все равно не будет доставлен
+            }
+            finish();
+        }
+        
+        void finish() {
+            done = true;
+            connection.wakeUp();
+        }
+        
+        /**
+         * Тело ответа: заголовки и данные копятся в буфере и уходят в очередь соединения
+         * при заполнении буфера, flush и close. В режиме chunked перед данными каждого блока
+         * резервируется место под его размер (4 шестнадцатеричные цифры с ведущими нулями).
+         */
+        private final class ResponseStream extends OutputStream {
+            private static final int CHUNK_HEADER = 6;
+            private final byte[] buffer = new byte[RESPONSE_BUFFER_SIZE];
+            private int count;
+            private int chunkStart = -1;
+            private boolean started;
+            private boolean chunked;
+            // Сколько байт тела фиксированной длины еще ожидается; -1 - тела нет
+            private long remaining;
+            private boolean closed;
+            
+            void begin(byte[] head, long length) throws IOException {
+                started = true;
+                chunked = length == 0;
+                remaining = length;
+                put(head, 0, head.length);
+            }
+            
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+            
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                if (closed) throw new IOException("Response body already closed");
+                if (!started) throw new IOException("Response headers not sent");
+                if (chunked) {
+                    while (length > 0) {
+                        if (chunkStart < 0) {
+                            if (buffer.length - count < CHUNK_HEADER + 3) emit();
+                            count += CHUNK_HEADER;
+                            chunkStart = count;
+                        }
+                        // 2 байта в конце буфера - под CRLF после данных блока
+                        int part = Math.min(length, buffer.length - count - 2);
+                        System.arraycopy(bytes, offset, buffer, count, part);
+                        count += part;
+                        offset += part;
+                        length -= part;
+                        if (buffer.length - count <= 2) {
+                            endChunk();
+                            emit();
+                        }
+                    }
+                } else {
+                    if (length > remaining) throw new IOException("Response body longer than Content-Length");
+                    remaining -= length;
+                    put(bytes, offset, length);
+                }
+            }
+            
+            @Override
+            public void flush() throws IOException {
+                if (closed || !started) return;
+                if (chunked) endChunk();
+                emit();
+            }
+            
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                try {
+                    if (!started) {
+                        // Обработчик закрыл обмен, не отправив ответ
+                        keepAlive = false;
+                    } else if (chunked) {
+                        endChunk();
+                        put(LAST_CHUNK, 0, LAST_CHUNK.length);
+                    } else if (remaining > 0) {
+                        // Тело короче объявленного: клиент не найдет конец ответа
+                        keepAlive = false;
+                    }
+                    emit();
+                } finally {
+                    finish();
+                }
+            }
+            
+            private void endChunk() {
+                if (chunkStart < 0) return;
+                int size = count - chunkStart;
+                if (size == 0) {
+                    count -= CHUNK_HEADER;
+                } else {
+                    int header = chunkStart - CHUNK_HEADER;
+                    for (int i = 3; i >= 0; i--) {
+                        buffer[header + i] = HEX[size & 0xF];
+                        size >>>= 4;
+                    }
+                    buffer[header + 4] = '\r';
+                    buffer[header + 5] = '\n';
+                    buffer[count++] = '\r';
+                    buffer[count++] = '\n';
+                }
+                chunkStart = -1;
+            }
+            
+            private void put(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    if (count == buffer.length) emit();
+                    int part = Math.min(length, buffer.length - count);
+                    System.arraycopy(bytes, offset, buffer, count, part);
+                    count += part;
+                    offset += part;
+                    length -= part;
+                }
+            }
+            
+            private void emit() throws IOException {
+                if (count == 0) return;
+                connection.enqueue(Arrays.copyOf(buffer, count));
+                count = 0;
+            }
+        }
+    }
+    
+    private static String reasonPhrase(int code) {
+        switch (code) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 207: return "Multi-Status";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 409: return "Conflict";
+            case 412: return "Precondition Failed";
+            case 413: return "Payload Too Large";
+            case 415: return "Unsupported Media Type";
+            case 428: return "Precondition Required";
+            case 429: return "Too Many Requests";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 505: return "HTTP Version Not Supported";
+            default: return "";
+        }
+    }
+    
+    /**
+     * Значение заголовка Date; форматируется не чаще раза в секунду
+     */
+    private static String currentDate() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate cached = date;
+        if (cached.second != second) {
+            cached = new CachedDate(second);
+            date = cached;
+        }
+        return cached.value;
+    }
+    
+    private static final class CachedDate {
+        final long second;
+        final String value;
+        
+        CachedDate(long second) {
+            this.second = second;
+            this.value = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                    ZonedDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneOffset.UTC));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ограничение частоты запросов для каждого клиента (по IP адресу)
+ *
+ * Корзина токенов в виде GCRA: состояние клиента - одно число, "теоретическое время прихода"
+ * следующего запроса, и оно обновляется CAS без блокировок. Запрос пропускается, если это время
+ * опережает текущее не больше чем на burst запросов; иначе клиенту сообщается, сколько ждать.
+ *
+ * Таблица клиентов фиксированного размера (память ограничена при любом числе адресов):
+ * адрес ищется в PROBES соседних ячейках. Корзина, время которой уже прошло, полна токенов
+ * и ничем не отличается от новой, поэтому ее ячейку можно отдать другому клиенту - так
+ * вытесняются неактивные клиенты. Если все ячейки заняты активными клиентами, запрос
+ * пропускается без ограничения (учитывается в getOverflowCount).
+ */
+public class RateLimiter {
+    private static final int PROBES = 8;
+    
+    private static final class Bucket {
+        final InetAddress address;
+        final AtomicLong nextArrival;
+        
+        Bucket(InetAddress address, long now) {
+            this.address = address;
+            this.nextArrival = new AtomicLong(now);
+        }
+    }
+    
+    private final long intervalNanos;
+    // Насколько время следующего запроса может опережать текущее: burst - 1 интервалов
+    private final long toleranceNanos;
+    private final AtomicReferenceArray<Bucket> table;
+    private final int mask;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder overflow = new LongAdder();
+    
+    /**
+     * requestsPerSecond - средняя частота запросов клиента, burst - сколько запросов можно
+     * отправить подряд после паузы, capacity - число отслеживаемых клиентов (округляется до степени 2)
+     */
+    public RateLimiter(double requestsPerSecond, int burst, int capacity) {
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / requestsPerSecond));
+        this.toleranceNanos = (Math.max(1, burst) - 1) * intervalNanos;
+        int size = Integer.highestOneBit(Math.max(PROBES, capacity - 1)) << 1;
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+    
+    /**
+     * Учитывает запрос клиента; 0 - запрос разрешен, иначе через сколько наносекунд можно повторить
+     */
+    public long acquire(InetAddress address) {
+        long now = System.nanoTime();
+        Bucket bucket = bucketFor(address, now);
+        if (bucket == null) {
+            overflow.increment();
+            return 0;
+        }
+        while (true) {
+            long next = bucket.nextArrival.get();
+            long start = Math.max(next, now);
+            long wait = start - now - toleranceNanos;
+            if (wait > 0) {
+                rejected.increment();
+                return wait;
+            }
+            if (bucket.nextArrival.compareAndSet(next, start + intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+    
+    /**
+     * Корзина клиента: найденная или новая в свободной либо неактивной ячейке
+     * null - все ячейки для этого адреса заняты активными клиентами
+     */
+    private Bucket bucketFor(InetAddress address, long now) {
+        int hash = address.hashCode() * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        // Повтор нужен, только если ячейку одновременно заняли для другого клиента
+        for (int attempt = 0; attempt < 2; attempt++) {
+            int freeIndex = -1;
+            Bucket freeBucket = null;
+            for (int i = 0; i < PROBES; i++) {
+                int index = (hash + i) & mask;
+                Bucket bucket = table.get(index);
+                if (bucket != null && bucket.address.equals(address)) {
+                    return bucket;
+                }
+                if (freeIndex < 0 && (bucket == null || bucket.nextArrival.get() <= now)) {
+                    freeIndex = index;
+                    freeBucket = bucket;
+                }
+            }
+            if (freeIndex < 0) return null;
+            Bucket created = new Bucket(address, now);
+            if (table.compareAndSet(freeIndex, freeBucket, created)) {
+                // Одновременный первый запрос того же клиента мог занять другую ячейку;
+                // остается та, что раньше в порядке проб: ее находят и все следующие запросы
+                for (int i = 0; i < PROBES; i++) {
+                    int index = (hash + i) & mask;
+                    if (index == freeIndex) break;
+                    Bucket bucket = table.get(index);
+                    if (bucket != null && bucket.address.equals(address)) {
+                        table.compareAndSet(freeIndex, created, null);
+                        return bucket;
+                    }
+                }
+                return created;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Сколько запросов отклонено с 429
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+    
+    /**
+     * Сколько запросов пропущено без ограничения из-за заполненной таблицы клиентов
+     */
+    public long getOverflowCount() {
+        return overflow.sum();
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Замер времени восстановления TaskService из журнала и из снапшота
+ * Запуск: java -Xmx4g RecoveryBenchmark [число задач, по умолчанию 1000000] [каталог]
+ */
+public class RecoveryBenchmark {
+    
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path dir = args.length > 1 ? Paths.get(args[1]) : Files.createTempDirectory("task-wal");
+        deleteRecursively(dir);
+        
+        // Журнал заполняется напрямую, без ожидания fsync на каждую запись
+        long start = System.nanoTime();
+        try (TaskLog log = new TaskLog(dir, 5, 10_000, 0)) {
+            log.recover(new TaskLog.Replay() {
+                @Override
+                public void base(ColumnarSnapshot snapshot) {
+                }
+                
+                @Override
+                public void put(Task task) {
+                }
+                
+                @Override
+                public void remove(int id) {
+                }
+            });
+            for (int id = 1; id <= count; id++) {
+                log.append(TaskLog.ADD, id, new Task(id, "Задача " + id, "Описание задачи номер " + id, id % 3 == 0));
+            }
+        }
+        System.out.printf("Запись журнала: %,d задач за %,d мс, размер %,d байт%n",
+                count, (System.nanoTime() - start) / 1_000_000, directorySize(dir));
+        
+        // Восстановление из журнала, затем снапшот
+        start = System.nanoTime();
+        TaskService service = TaskService.openPersistent(dir, 5, 1000, 0);
+        System.out.printf("Восстановление из журнала: %,d мс%n", (System.nanoTime() - start) / 1_000_000);
+        writeSnapshot(dir, service);
+        
+        // Восстановление из снапшота: файл только отображается в память
+        start = System.nanoTime();
+        service = TaskService.openPersistent(dir, 5, 1000, 0);
+        System.out.printf("Восстановление из снапшота: %,d мс%n", (System.nanoTime() - start) / 1_000_000);
+        
+        // Чтение задач напрямую из отображенного снапшота
+        start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (service.getTaskById(1 + (int) ((i * 7919L) % count)) != null) found++;
+        }
+        System.out.printf("100 000 чтений по id из снапшота: %,d мс (найдено %,d)%n",
+                (System.nanoTime() - start) / 1_000_000, found);
+        
+        start = System.nanoTime();
+        long listed = 0;
+        for (Task ignored : service.tasks(0, null)) {
+            listed++;
+        }
+        System.out.printf("Полный обход: %,d задач за %,d мс%n", listed, (System.nanoTime() - start) / 1_000_000);
+        service.close();
+        deleteRecursively(dir);
+    }
+    
+    private static void writeSnapshot(Path dir, TaskService service) throws Exception {
+        service.requestSnapshot();
+        // Снапшот пишется потоком журнала; ждем, пока он появится и старые сегменты будут удалены
+        while (countFiles(dir, "tasks-*.log") > 1 || countFiles(dir, "tasks-*.snapshot") == 0) {
+            Thread.sleep(50);
+        }
+        service.close();
+        System.out.printf("Размер снапшота: %,d байт%n", directorySize(dir));
+    }
+    
+    private static long countFiles(Path dir, String glob) throws IOException {
+        long count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+            for (Path ignored : stream) count++;
+        }
+        return count;
+    }
+    
+    private static long directorySize(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+    
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,202 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Поток тела HTTP ответа с отложенной отправкой заголовков
+ *
+ * Первые байты (до порога) накапливаются в буфере: если ответ в него уместился,
+ * он уходит целиком с Content-Length и без сжатия. Если ответ больше порога и клиент
+ * поддерживает сжатие (Accept-Encoding), тело сжимается gzip или deflate
+ * и передается chunked-ответом. Сильный ETag сжатого ответа получает суффикс кодировки
+ * ("5" - "5-gzip"): байты представлений разные, и сильные валидаторы должны различаться.
+ */
+public class ResponseBody extends OutputStream {
+    private static final int DEFAULT_BUFFER = 8 * 1024;
+    
+    private final HttpExchange exchange;
+    private final int status;
+    private final String encoding;
+    private final int limit;
+    private byte[] pending;
+    private int pendingLength;
+    private OutputStream out;
+    private Deflater deflater;
+    private boolean closed;
+    
+    private ResponseBody(HttpExchange exchange, int status, String encoding, int limit) {
+        this.exchange = exchange;
+        this.status = status;
+        this.encoding = encoding;
+        this.limit = limit;
+    }
+    
+    /**
+     * Открывает тело ответа; compressMinBytes - порог сжатия, 0 - без сжатия
+     * Заголовки ответа должны быть заданы до первой записи
+     */
+    public static ResponseBody open(HttpExchange exchange, int status, int compressMinBytes) {
+        String encoding = null;
+        if (compressMinBytes > 0) {
+            encoding = negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        }
+        return new ResponseBody(exchange, status, encoding, compressMinBytes > 0 ? compressMinBytes : DEFAULT_BUFFER);
+    }
+    
+    /**
+     * Отправляет готовое тело: без сжатия - сразу с Content-Length, без копирования в буфер
+     */
+    public static void send(HttpExchange exchange, int status, byte[] body, int compressMinBytes) throws IOException {
+        ResponseBody response = open(exchange, status, compressMinBytes);
+        if (response.encoding != null && body.length >= response.limit) {
+            try (response) {
+                response.write(body, 0, body.length);
+            }
+            return;
+        }
+        response.closed = true;
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+    
+    /**
+     * Выбирает сжатие по заголовку Accept-Encoding: gzip предпочтительнее deflate,
+     * кодировки с q=0 не используются. null - без сжатия
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        boolean deflate = false;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.trim().split(";");
+            String coding = parts[0].trim().toLowerCase();
+            if (parts.length > 1 && isZeroQuality(parts[1])) continue;
+            if (coding.equals("gzip") || coding.equals("*")) return "gzip";
+            if (coding.equals("deflate")) deflate = true;
+        }
+        return deflate ? "deflate" : null;
+    }
+    
+    /**
+     * ETag представления в кодировке encoding: к сильному ETag добавляется суффикс, слабый не меняется
+     */
+    static String codingEtag(String etag, String encoding) {
+        if (etag.startsWith("W/") || etag.length() < 2 || !etag.endsWith("\"")) return etag;
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+    
+    /**
+     * ETag без суффикса кодировки: "5-gzip" - "5"; для сравнения с ETag ресурса
+     */
+    static String identityEtag(String etag) {
+        for (String encoding : new String[] {"gzip", "deflate"}) {
+            String suffix = "-" + encoding + "\"";
+            if (etag.endsWith(suffix)) {
+                return etag.substring(0, etag.length() - suffix.length()) + "\"";
+            }
+        }
+        return etag;
+    }
+    
+    private static boolean isZeroQuality(String parameter) {
+        String value = parameter.trim();
+        if (!value.startsWith("q=")) return false;
+        try {
+            return Double.parseDouble(value.substring(2)) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) throw new IOException("Response body is closed");
+        if (out == null) {
+            if (pendingLength + length < limit) {
+                if (pending == null) pending = new byte[limit];
+                System.arraycopy(bytes, offset, pending, pendingLength, length);
+                pendingLength += length;
+                return;
+            }
+            commit();
+        }
+        out.write(bytes, offset, length);
+    }
+    
+    /**
+     * Отправляет клиенту уже записанное; заголовки при этом уходят сразу
+     */
+    @Override
+    public void flush() throws IOException {
+        if (closed) return;
+        if (out == null) commit();
+        out.flush();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (out == null) {
+                // Ответ уместился в буфер - отправляем с известной длиной
+                exchange.sendResponseHeaders(status, pendingLength == 0 ? -1 : pendingLength);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(pending != null ? pending : new byte[0], 0, pendingLength);
+                }
+            } else {
+                out.close();
+            }
+        } finally {
+            // Deflater, переданный в DeflaterOutputStream, сам не освобождается
+            if (deflater != null) deflater.end();
+        }
+    }
+    
+    private void commit() throws IOException {
+        OutputStream body = exchange.getResponseBody();
+        if (encoding != null) {
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+            String etag = exchange.getResponseHeaders().getFirst("ETag");
+            if (etag != null) {
+                exchange.getResponseHeaders().set("ETag", codingEtag(etag, encoding));
+            }
+            exchange.sendResponseHeaders(status, 0);
+            // Для JSON быстрое сжатие дает почти тот же размер при заметно меньших затратах процессора
+            if (encoding.equals("gzip")) {
+                out = new GzipStream(body);
+            } else {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+                out = new DeflaterOutputStream(body, deflater, 8192, true);
+            }
+        } else {
+            exchange.sendResponseHeaders(status, 0);
+            out = body;
+        }
+        if (pendingLength > 0) {
+            out.write(pending, 0, pendingLength);
+            pendingLength = 0;
+        }
+        pending = null;
+    }
+    
+    /**
+     * GZIPOutputStream с быстрым уровнем сжатия
+     */
+    private static class GzipStream extends GZIPOutputStream {
+        GzipStream(OutputStream out) throws IOException {
+            super(out, 8192, true);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кеш готовых тел ответа GET /api/tasks/{id} (JSON в UTF-8) с ограничением по байтам
+ *
+ * Чтение без блокировок: поиск в ConcurrentIntMap и отметка об обращении. Вытеснение -
+ * алгоритм CLOCK: стрелка обходит кольцо записей, снимает отметку с недавно читанных
+ * и вытесняет первую неотмеченную, поэтому часто читаемые задачи остаются в кеше,
+ * а разово прочитанные уходят первыми. Добавление и вытеснение идут под блокировкой кеша,
+ * это только путь промаха, где ответ все равно кодируется заново.
+ *
+ * Запись о задаче удаляется при любом ее изменении (invalidate вызывается из ленты изменений
+ * хранилища). Место удаленной записи освобождается, когда до нее дойдет стрелка.
+ * Чтобы ответ по версии, прочитанной до изменения, не попал в кеш после invalidate,
+ * ведутся счетчики изменений, разбитые на STAMP_STRIPES полос по id: запись в задачу
+ * мешает кешировать только задачи ее полосы, а не все остальные.
+ */
+public class ResponseCache {
+    // Примерный расход памяти на запись помимо самого тела: объекты записи, ETag и место в таблице
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int MIN_SLOTS = 64;
+    private static final int MAX_SLOTS = 1 << 22;
+    private static final int STAMP_STRIPES = 4096;
+    
+    /**
+     * Закешированный ответ: тело и ETag версии задачи, из которой оно закодировано
+     */
+    public static final class Entry {
+        private final int id;
+        private final String etag;
+        private final byte[] body;
+        private final int size;
+        private volatile boolean referenced;
+        private volatile boolean removed;
+        
+        private Entry(int id, String etag, byte[] body) {
+            this.id = id;
+            this.etag = etag;
+            this.body = body;
+            this.size = body.length + ENTRY_OVERHEAD;
+        }
+        
+        public String getEtag() {
+            return etag;
+        }
+        
+        public byte[] getBody() {
+            return body;
+        }
+    }
+    
+    private final long maxBytes;
+    private final ConcurrentIntMap<Entry> entries = new ConcurrentIntMap<>();
+    private final Entry[] ring;
+    private int hand;
+    private volatile int count;
+    private volatile long bytes;
+    // Счетчики изменений задач по полосам id; см. stamp()
+    private final AtomicLongArray invalidations = new AtomicLongArray(STAMP_STRIPES);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    
+    /**
+     * maxBytes - предел памяти под тела ответов; 0 - кеш выключен
+     */
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.ring = new Entry[(int) Math.min(MAX_SLOTS, Math.max(MIN_SLOTS, maxBytes / (ENTRY_OVERHEAD + 64)))];
+    }
+    
+    /**
+     * Закешированный ответ для задачи или null
+     */
+    public Entry get(int id) {
+        if (maxBytes == 0) return null;
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        // Запись только при смене значения, чтобы не гонять строку кеша между ядрами
+        if (!entry.referenced) entry.referenced = true;
+        hits.increment();
+        return entry;
+    }
+    
+    /**
+     * Отметка, которую нужно получить до чтения задачи из хранилища и передать в put:
+     * если задача успела измениться, ответ по прочитанной версии не попадет в кеш
+     */
+    public long stamp(int id) {
+        return invalidations.get(stripe(id));
+    }
+    
+    /**
+     * Добавляет ответ, если с момента stamp задача (и задачи ее полосы) не изменялась
+     */
+    public void put(int id, String etag, byte[] body, long stamp) {
+        if (maxBytes == 0) return;
+        Entry entry = new Entry(id, etag, body);
+        // Слишком большие ответы вытеснили бы много маленьких
+        if (entry.size > maxBytes / 16) return;
+        synchronized (this) {
+            if (invalidations.get(stripe(id)) != stamp || entries.get(id) != null) return;
+            makeRoom(entry.size);
+            ring[hand] = entry;
+            hand = (hand + 1) % ring.length;
+            count++;
+            bytes += entry.size;
+            entries.put(id, entry);
+        }
+        // Изменение между проверкой и добавлением: invalidate мог не увидеть новую запись
+        if (invalidations.get(stripe(id)) != stamp) {
+            remove(id, entry);
+        }
+    }
+    
+    /**
+     * Убирает ответ для измененной или удаленной задачи
+     */
+    public void invalidate(int id) {
+        invalidations.incrementAndGet(stripe(id));
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            entry.removed = true;
+        }
+    }
+    
+    private static int stripe(int id) {
+        int hash = id * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (STAMP_STRIPES - 1);
+    }
+    
+    private void remove(int id, Entry entry) {
+        if (entries.remove(id, entry)) {
+            entry.removed = true;
+        }
+    }
+    
+    /**
+     * Двигает стрелку, пока под ней не окажется свободная ячейка и в кеше не хватит места
+     */
+    private void makeRoom(int size) {
+        while (true) {
+            Entry entry = ring[hand];
+            if (entry == null) {
+                if (bytes + size <= maxBytes) return;
+            } else if (entry.removed) {
+                free();
+                continue;
+            } else if (entry.referenced) {
+                entry.referenced = false;
+            } else {
+                remove(entry.id, entry);
+                free();
+                evictions.increment();
+                continue;
+            }
+            hand = (hand + 1) % ring.length;
+        }
+    }
+    
+    private void free() {
+        Entry entry = ring[hand];
+        ring[hand] = null;
+        count--;
+        bytes -= entry.size;
+    }
+    
+    public long getHits() {
+        return hits.sum();
+    }
+    
+    public long getMisses() {
+        return misses.sum();
+    }
+    
+    public long getEvictions() {
+        return evictions.sum();
+    }
+    
+    /**
+     * Занятая память, включая еще не освобожденные стрелкой удаленные записи
+     */
+    public long getBytes() {
+        return bytes;
+    }
+    
+    public int getEntryCount() {
+        return count;
+    }
+}
@@ -1,8 +1,17 @@
 import com.sun.net.httpserver.*;
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
 
 /**
  * Простой REST API сервер
@@ -10,52 +19,282 @@ import java.util.List;
  * Домен: Управление задачами (To-Do List)
  */
 public class RestApiServer {
-    private static final int PORT = 8080;
     private static final String CONTEXT = "/api/tasks";
-    private TaskService taskService;
+    private static final String METRICS_PATH = "/metrics";
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int BULK_BATCH = 1000;
+    private static final int RATE_LIMIT_CLIENTS = 65536;
+    private static final Pattern TENANT_NAME = Pattern.compile("[a-z0-9][a-z0-9-]{0,62}");
+    private final ServerConfig config;
+    // Часть ETag списка задач: после перезапуска счетчик изменений начинается заново
+    private final String etagEpoch = Long.toHexString(System.currentTimeMillis());
+    // Первым идет основное хранилище на CONTEXT, дальше - добавленные addTenant
+    private final List<Tenant> tenants = new ArrayList<>();
+    private HttpServer server;
+    private NioHttpServer nioServer;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final RateLimiter rateLimiter;
+    private final AdmissionLimiter admissionLimiter;
     
-    public RestApiServer() {
-        taskService = TaskService.getInstance();
+    static {
+        // HttpServer пишет заголовки и тело ответа в сокет отдельно: без TCP_NODELAY тело ждет
+        // подтверждения заголовков (алгоритм Нейгла и отложенный ACK клиента, около 40 мс на запрос)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
     }
     
-    public void start() throws IOException {
-        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
-        
-        // Создаем контекст для всех методов
-        server.createContext(CONTEXT, this::handleRequest);
+    public RestApiServer() throws IOException {
+        this(new ServerConfig());
+    }
+    
+    public RestApiServer(ServerConfig config) throws IOException {
+        this(config, openStore(config, null));
+    }
+    
+    /**
+     * Сервер с готовым хранилищем на CONTEXT (например, созданным в тестах или другим кодом)
+     * Хранилище закрывается в stop()
+     */
+    public RestApiServer(ServerConfig config, TaskStore store) {
+        this.config = config;
+        tenants.add(new Tenant(CONTEXT, store, config.getResponseCacheBytes()));
+        rateLimiter = config.getRateLimit() > 0
+                ? new RateLimiter(config.getRateLimit(), config.getRateBurst(), RATE_LIMIT_CLIENTS) : null;
+        // В режиме pool время ожидания ограничивает очередь пула, здесь запрос уже дождался потока
+        long admissionWait = config.getExecutionMode() == ServerConfig.ExecutionMode.POOL
+                ? 0 : TimeUnit.MILLISECONDS.toNanos(config.getQueueTargetMillis());
+        admissionLimiter = new AdmissionLimiter(config.getMaxInFlight(), admissionWait);
+    }
+    
+    /**
+     * Хранилище по параметрам запуска; tenant - имя арендатора (его журнал в подкаталоге
+     * data-dir с этим именем) или null для основного хранилища
+     */
+    public static TaskStore openStore(ServerConfig config, String tenant) throws IOException {
+        Path dataDir = config.getDataDir();
+        if (dataDir != null && tenant != null) {
+            checkTenantName(tenant);
+            dataDir = dataDir.resolve(tenant);
+        }
+        if (config.getShards() > 1) {
+            return dataDir != null
+                    ? ShardedTaskService.openPersistent(dataDir, config.getShards(), config.getWalSyncMillis(),
+                            config.getWalBatch(), config.getSnapshotEvery(), config.isSearchIndex())
+                    : ShardedTaskService.inMemory(config.getShards());
+        } else if (dataDir != null) {
+            return TaskService.openPersistent(dataDir, config.getWalSyncMillis(), config.getWalBatch(),
+                    config.getSnapshotEvery(), config.isSearchIndex(), new ChangeFeed());
+        } else if (tenant != null) {
+            return TaskService.inMemory(new ChangeFeed());
+        } else {
+            return TaskService.getInstance();
+        }
+    }
+    
+    /**
+     * Добавляет арендатора: отдельное хранилище по адресу /{name}/api/tasks
+     * со своими задачами, счетчиком id, лентой изменений и кешем ответов
+     * Вызывается до start(); хранилище закрывается в stop()
+     */
+    public synchronized void addTenant(String name, TaskStore store) {
+        if (server != null || nioServer != null) {
+            throw new IllegalStateException("Tenants must be added before the server is started");
+        }
+        checkTenantName(name);
+        String context = "/" + name + CONTEXT;
+        for (Tenant tenant : tenants) {
+            if (tenant.context.equals(context)) {
+                throw new IllegalArgumentException("Арендатор " + name + " уже добавлен");
+            }
+        }
+        tenants.add(new Tenant(context, store, config.getResponseCacheBytes()));
+    }
+    
+    // Имя становится частью пути URL и каталога данных
+    private static void checkTenantName(String name) {
+        if (!TENANT_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Недопустимое имя арендатора: " + name
+                    + " (строчные латинские буквы, цифры и дефис)");
+        }
+    }
+    
+    public synchronized void start() throws IOException {
+        // Создаем контекст для всех методов; метрики собираются фильтром вокруг обработчиков
+        Filter metricsFilter = metrics.filter(this::tenantRouteOf);
+        InetSocketAddress address = new InetSocketAddress(config.getPort());
+        if (config.getFrontEnd() == ServerConfig.FrontEnd.NIO) {
+            nioServer = new NioHttpServer(address, config.getBacklog(), config.getMaxBodyBytes());
+            for (Tenant tenant : tenants) {
+                nioServer.createContext(tenant.context, exchange -> handleRequest(exchange, tenant)).add(metricsFilter);
+            }
+            nioServer.createContext(METRICS_PATH, this::handleMetrics).add(metricsFilter);
+        } else {
+            server = HttpServer.create(address, config.getBacklog());
+            for (Tenant tenant : tenants) {
+                server.createContext(tenant.context, exchange -> handleRequest(exchange, tenant))
+                        .getFilters().add(metricsFilter);
+            }
+            server.createContext(METRICS_PATH, this::handleMetrics).getFilters().add(metricsFilter);
+        }
+        // Показатели хранилищ - суммы по всем арендаторам
+        metrics.gauge("task_store_modifications", "Task additions, updates and deletions since start",
+                () -> sumOverTenants(tenant -> tenant.store.getModCount()));
+        metrics.gauge("task_changes_subscribers", "Open change feed (SSE) streams",
+                () -> sumOverTenants(tenant -> tenant.store.getChanges().getSubscriberCount()));
+        metrics.gauge("task_response_cache_hits", "GET /api/tasks/{id} answered from the response cache",
+                () -> sumOverTenants(tenant -> tenant.responseCache.getHits()));
+        metrics.gauge("task_response_cache_misses", "GET /api/tasks/{id} that had to encode the task",
+                () -> sumOverTenants(tenant -> tenant.responseCache.getMisses()));
+        metrics.gauge("task_response_cache_evictions", "Responses evicted from the cache to stay within its size",
+                () -> sumOverTenants(tenant -> tenant.responseCache.getEvictions()));
+        metrics.gauge("task_response_cache_bytes", "Memory held by cached responses",
+                () -> sumOverTenants(tenant -> tenant.responseCache.getBytes()));
+        metrics.gauge("task_response_cache_entries", "Cached responses",
+                () -> sumOverTenants(tenant -> tenant.responseCache.getEntryCount()));
+        metrics.gauge("http_shed_total", "Requests rejected with 503 because the worker queue was full or too slow",
+                ServerExecutors::getShedCount);
+        metrics.gauge("http_admission_rejected_total", "Requests rejected with 503 because max-inflight requests were running",
+                admissionLimiter::getRejectedCount);
+        if (rateLimiter != null) {
+            metrics.gauge("http_rate_limited_total", "Requests rejected with 429 by the per-client rate limit",
+                    rateLimiter::getRejectedCount);
+            metrics.gauge("http_rate_limit_overflow_total", "Requests let through because the client table was full",
+                    rateLimiter::getOverflowCount);
+        }
+        metrics.gauge("jvm_heap_used_bytes", "Used JVM heap",
+                () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
         
-        server.setExecutor(null);
-        server.start();
+        // null - стандартный поток-диспетчер HttpServer или поток цикла событий NioHttpServer
+        if (nioServer != null) {
+            nioServer.setExecutor(ServerExecutors.create(config));
+            nioServer.start();
+        } else {
+            server.setExecutor(ServerExecutors.create(config));
+            server.start();
+        }
         
         System.out.println("========================================");
         System.out.println("  REST API Server запущен");
         System.out.println("========================================");
-        System.out.println("URL: http://localhost:" + PORT + CONTEXT);
+        for (Tenant tenant : tenants) {
+            System.out.println("URL: http://localhost:" + config.getPort() + tenant.context);
+        }
+        System.out.println("Метрики: http://localhost:" + config.getPort() + METRICS_PATH);
         System.out.println("Методы: GET, POST, PUT, DELETE");
+        System.out.println("HTTP сервер: " + (nioServer != null ? "NIO, один цикл событий" : "com.sun.net.httpserver"));
+        System.out.println("Обработка запросов: " + config);
+        System.out.println("Хранение: " + (config.getDataDir() != null
+                ? "журнал в каталоге " + config.getDataDir().toAbsolutePath() : "только в памяти")
+                + (config.getShards() > 1 ? ", шардов: " + config.getShards() : ""));
         System.out.println("========================================\n");
     }
     
-    private void handleRequest(HttpExchange exchange) throws IOException {
+    /**
+     * Хранилище с собственным адресом: основное на CONTEXT или арендатора на /{имя}/api/tasks
+     */
+    private static final class Tenant {
+        final String context;
+        final String bulkPath;
+        final String changesPath;
+        final TaskStore store;
+        final ResponseCache responseCache;
+        
+        Tenant(String context, TaskStore store, long responseCacheBytes) {
+            this.context = context;
+            this.bulkPath = context + "/_bulk";
+            this.changesPath = context + "/_changes";
+            this.store = store;
+            this.responseCache = new ResponseCache(responseCacheBytes);
+            store.getChanges().addListener(change -> responseCache.invalidate(change.getTask().getId()));
+        }
+    }
+    
+    private long sumOverTenants(ToLongFunction<Tenant> value) {
+        long sum = 0;
+        for (Tenant tenant : tenants) {
+            sum += value.applyAsLong(tenant);
+        }
+        return sum;
+    }
+    
+    private void handleRequest(HttpExchange exchange, Tenant tenant) throws IOException {
         String method = exchange.getRequestMethod();
         
         // Обработка OPTIONS для CORS
         if ("OPTIONS".equals(method)) {
             exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
             exchange.getResponseHeaders().set("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-            exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type, If-Match, If-None-Match");
+            // Браузер может не повторять предварительный запрос сутки
+            exchange.getResponseHeaders().set("Access-Control-Max-Age", "86400");
             exchange.sendResponseHeaders(200, -1);
             exchange.close();
             return;
         }
         
+        // Клиент превысил свою частоту запросов
+        if (rateLimiter != null) {
+            long waitNanos = rateLimiter.acquire(exchange.getRemoteAddress().getAddress());
+            if (waitNanos > 0) {
+                exchange.getResponseHeaders().set("Retry-After",
+                        String.valueOf(Math.max(1, (waitNanos + 999_999_999L) / 1_000_000_000L)));
+                sendResponse(exchange, 429, JsonUtils.errorJson("Too many requests"));
+                return;
+            }
+        }
+        
+        // Пул перегружен - отклоняем запрос, не занимая поток-диспетчер
+        if (ServerExecutors.isShedding()) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendResponse(exchange, 503, JsonUtils.errorJson("Server is overloaded"));
+            return;
+        }
+        
+        // Ограничение одновременных запросов действует в любом режиме и на любом HTTP сервере
+        if (!admissionLimiter.tryAcquire()) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendResponse(exchange, 503, JsonUtils.errorJson("Server is overloaded"));
+            return;
+        }
+        try {
+            route(exchange, tenant, method);
+        } finally {
+            admissionLimiter.release();
+        }
+    }
+    
+    private void route(HttpExchange exchange, Tenant tenant, String method) throws IOException {
         String path = exchange.getRequestURI().getPath();
+        if (path.equals(tenant.bulkPath)) {
+            try {
+                if ("POST".equals(method)) {
+                    handleBulk(exchange, tenant);
+                } else {
+                    sendResponse(exchange, 405, JsonUtils.errorJson("Method Not Allowed"));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(exchange, 500, JsonUtils.errorJson("Internal Server Error: " + e.getMessage()));
+            }
+            return;
+        }
+        
+        if (path.equals(tenant.changesPath)) {
+            if ("GET".equals(method)) {
+                handleChanges(exchange, tenant);
+            } else {
+                sendResponse(exchange, 405, JsonUtils.errorJson("Method Not Allowed"));
+            }
+            return;
+        }
         
-        // Извлекаем ID из пути, если есть
-        String[] pathParts = path.split("/");
+        // Извлекаем ID из пути после адреса хранилища, если есть
+        String[] pathParts = path.substring(tenant.context.length()).split("/");
         Integer id = null;
-        if (pathParts.length > 3) {
+        if (pathParts.length > 1) {
             try {
-                id = Integer.parseInt(pathParts[3]);
+                id = Integer.parseInt(pathParts[1]);
             } catch (NumberFormatException e) {
                 // ID не является числом
             }
@@ -64,16 +303,16 @@ public class RestApiServer {
         try {
             switch (method) {
                 case "GET":
-                    handleGet(exchange, id);
+                    handleGet(exchange, tenant, id);
                     break;
                 case "POST":
-                    handlePost(exchange);
+                    handlePost(exchange, tenant);
                     break;
                 case "PUT":
-                    handlePut(exchange, id);
+                    handlePut(exchange, tenant, id);
                     break;
                 case "DELETE":
-                    handleDelete(exchange, id);
+                    handleDelete(exchange, tenant, id);
                     break;
                 default:
                     sendResponse(exchange, 405, JsonUtils.errorJson("Method Not Allowed"));
@@ -84,45 +323,213 @@ public class RestApiServer {
         }
     }
     
+    /**
+     * GET /api/tasks/_changes - лента изменений задач (text/event-stream)
+     * Продолжение с места обрыва - по заголовку Last-Event-ID, который EventSource
+     * отправляет при переподключении, или по параметру lastEventId
+     * id события включает эпоху ленты: id из прошлого запуска сервера приводит к reset
+     */
+    private void handleChanges(HttpExchange exchange, Tenant tenant) throws IOException {
+        String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        if (lastEventId == null) {
+            lastEventId = parseQuery(exchange.getRequestURI().getRawQuery()).get("lastEventId");
+        }
+        ChangeFeed feed = tenant.store.getChanges();
+        Long after = null;
+        if (lastEventId != null && !lastEventId.isBlank()) {
+            // Чужой, устаревший или испорченный id (-1) - поток начнется с события reset
+            after = feed.parseEventId(lastEventId.trim());
+        }
+        // Поток событий отправляет исполнитель подписчиков, обработчик сразу освобождается
+        if (!EventStream.start(exchange, feed, after)) {
+            exchange.getResponseHeaders().set("Retry-After", "5");
+            sendResponse(exchange, 503, JsonUtils.errorJson("Too many change feed subscribers"));
+        }
+    }
+    
+    /**
+     * GET /metrics - метрики сервера в формате Prometheus
+     */
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, JsonUtils.errorJson("Method Not Allowed"));
+            return;
+        }
+        byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        ResponseBody.send(exchange, 200, body, config.getCompressMinBytes());
+    }
+    
+    /**
+     * Метка маршрута для метрик: шаблон пути вместо конкретного id
+     */
+    static String routeOf(HttpExchange exchange) {
+        String path = exchange.getRequestURI().getPath();
+        String route = routeOf(path, CONTEXT);
+        if (route != null) return route;
+        if (path.equals(METRICS_PATH)) return METRICS_PATH;
+        return "other";
+    }
+    
+    /**
+     * То же с учетом арендаторов: у каждого свои маршруты /{имя}/api/tasks...
+     */
+    private String tenantRouteOf(HttpExchange exchange) {
+        String path = exchange.getRequestURI().getPath();
+        for (Tenant tenant : tenants) {
+            String route = routeOf(path, tenant.context);
+            if (route != null) return route;
+        }
+        if (path.equals(METRICS_PATH)) return METRICS_PATH;
+        return "other";
+    }
+    
+    private static String routeOf(String path, String context) {
+        if (!path.startsWith(context)) return null;
+        if (path.equals(context) || path.equals(context + "/")) return context;
+        if (path.equals(context + "/_bulk")) return context + "/_bulk";
+        if (path.equals(context + "/_changes")) return context + "/_changes";
+        if (path.startsWith(context + "/")) return context + "/{id}";
+        return null;
+    }
+    
     /**
      * GET /api/tasks - получить все задачи
+     * GET /api/tasks?limit=N&cursor=ID&completed=true|false - страница задач по возрастанию id
+     * GET /api/tasks?q=слова - поиск по названию и описанию (все слова, слово* - префикс),
+     * сочетается с limit, cursor и completed
      * GET /api/tasks/{id} - получить задачу по ID
      */
-    private void handleGet(HttpExchange exchange, Integer id) throws IOException {
+    private void handleGet(HttpExchange exchange, Tenant tenant, Integer id) throws IOException {
         if (id == null) {
-            // Получить все задачи
-            List<Task> tasks = taskService.getAllTasks();
-            String response = JsonUtils.toJsonArray(tasks);
-            sendResponse(exchange, 200, response);
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            int cursor;
+            Integer limit;
+            Boolean completed;
+            String search = query.get("q");
+            try {
+                cursor = query.containsKey("cursor") ? Integer.parseInt(query.get("cursor")) : 0;
+                limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : null;
+                completed = parseCompleted(query.get("completed"));
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, 400, JsonUtils.errorJson("Invalid query parameter: " + e.getMessage()));
+                return;
+            }
+            if (limit != null && limit <= 0) {
+                sendResponse(exchange, 400, JsonUtils.errorJson("limit must be positive"));
+                return;
+            }
+            if (search != null && TextIndex.tokenize(search).isEmpty()) {
+                sendResponse(exchange, 400, JsonUtils.errorJson("q must contain at least one word"));
+                return;
+            }
+            
+            // Источник ленивый: здесь только проверяется, доступен ли поиск, обход - ниже
+            Iterable<Task> source;
+            try {
+                source = search != null
+                        ? tenant.store.search(search, cursor, completed) : tenant.store.tasks(cursor, completed);
+            } catch (TaskService.SearchUnavailableException e) {
+                if (e.isBuilding()) {
+                    exchange.getResponseHeaders().set("Retry-After", "5");
+                }
+                sendResponse(exchange, e.isBuilding() ? 503 : 501, JsonUtils.errorJson(e.getMessage()));
+                return;
+            }
+            
+            // Версия коллекции читается до обхода: если с тех пор ничего не менялось, ответ тот же
+            String etag = collectionEtag(tenant, exchange.getRequestURI().getRawQuery());
+            exchange.getResponseHeaders().set("ETag", etag);
+            // По нему маршрутизатор кластера (ClusterRouter) продолжает выдачу id новых задач
+            exchange.getResponseHeaders().set(ClusterRouter.NEXT_ID_HEADER, String.valueOf(tenant.store.getNextId()));
+            if (matchesIfNoneMatch(exchange, etag)) {
+                sendNotModified(exchange);
+                return;
+            }
+            
+            if (limit == null) {
+                // Без limit - все задачи, отдаются потоком без копирования хранилища
+                sendTaskArray(exchange, source);
+                return;
+            }
+            
+            List<Task> page = TaskService.firstPage(source, Math.min(limit, MAX_PAGE_SIZE));
+            if (page.size() == Math.min(limit, MAX_PAGE_SIZE)) {
+                // Страница заполнена - сообщаем курсор для следующей
+                exchange.getResponseHeaders().set("X-Next-Cursor", String.valueOf(page.get(page.size() - 1).getId()));
+            }
+            sendTaskArray(exchange, page);
         } else {
-            // Получить задачу по ID
-            Task task = taskService.getTaskById(id);
+            // Получить задачу по ID: сначала из кеша готовых ответов, без обращения к хранилищу
+            ResponseCache responseCache = tenant.responseCache;
+            ResponseCache.Entry cached = responseCache.get(id);
+            if (cached != null) {
+                exchange.getResponseHeaders().set("ETag", cached.getEtag());
+                if (matchesIfNoneMatch(exchange, cached.getEtag())) {
+                    sendNotModified(exchange);
+                    return;
+                }
+                sendBytes(exchange, 200, cached.getBody());
+                return;
+            }
+            long stamp = responseCache.stamp(id);
+            Task task = tenant.store.getTaskById(id);
             if (task != null) {
-                String response = JsonUtils.toJson(task);
-                sendResponse(exchange, 200, response);
+                String etag = etag(task);
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (matchesIfNoneMatch(exchange, etag)) {
+                    sendNotModified(exchange);
+                    return;
+                }
+                byte[] body = JsonStreamWriter.toJson(task);
+                responseCache.put(id, etag, body, stamp);
+                sendBytes(exchange, 200, body);
             } else {
                 sendResponse(exchange, 404, JsonUtils.errorJson("Task not found"));
             }
         }
     }
     
+    private static Boolean parseCompleted(String value) {
+        if (value == null) return null;
+        if ("true".equals(value)) return Boolean.TRUE;
+        if ("false".equals(value)) return Boolean.FALSE;
+        throw new IllegalArgumentException("completed must be true or false");
+    }
+    
+    /**
+     * Разбирает строку запроса вида a=1&b=2 (значения декодируются из URL)
+     * Используется и ClusterRouter, чтобы параметры понимались так же, как на узлах
+     */
+    static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) return params;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq >= 0 ? pair.substring(0, eq) : pair;
+            String value = eq >= 0 ? pair.substring(eq + 1) : "";
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+    
     /**
      * POST /api/tasks - создать новую задачу
      */
-    private void handlePost(HttpExchange exchange) throws IOException {
-        String requestBody = readRequestBody(exchange);
-        
+    private void handlePost(HttpExchange exchange, Tenant tenant) throws IOException {
         try {
-            Task task = JsonUtils.fromJson(requestBody);
+            Task task = readTask(exchange);
             
             if (task.getTitle() == null || task.getTitle().trim().isEmpty()) {
                 sendResponse(exchange, 400, JsonUtils.errorJson("Title is required"));
                 return;
             }
             
-            Task createdTask = taskService.addTask(task);
-            String response = JsonUtils.toJson(createdTask);
-            sendResponse(exchange, 201, response);
+            Task createdTask = tenant.store.addTask(task);
+            exchange.getResponseHeaders().set("ETag", etag(createdTask));
+            sendBytes(exchange, 201, JsonStreamWriter.toJson(createdTask));
+        } catch (JsonTaskParser.BodyTooLargeException e) {
+            sendResponse(exchange, 413, JsonUtils.errorJson(e.getMessage()));
         } catch (Exception e) {
             sendResponse(exchange, 400, JsonUtils.errorJson("Invalid JSON: " + e.getMessage()));
         }
@@ -130,85 +537,376 @@ public class RestApiServer {
     
     /**
      * PUT /api/tasks/{id} - обновить задачу
+     * С заголовком If-Match задача обновляется, только если ее ETag совпадает (иначе 412)
      */
-    private void handlePut(HttpExchange exchange, Integer id) throws IOException {
+    private void handlePut(HttpExchange exchange, Tenant tenant, Integer id) throws IOException {
         if (id == null) {
             sendResponse(exchange, 400, JsonUtils.errorJson("Task ID is required"));
             return;
         }
         
-        if (!taskService.taskExists(id)) {
-            sendResponse(exchange, 404, JsonUtils.errorJson("Task not found"));
+        // Тело разбирается до обращения к хранилищу: проверка и замена выполняются одной операцией
+        Task task;
+        try {
+            task = readTask(exchange);
+        } catch (JsonTaskParser.BodyTooLargeException e) {
+            sendResponse(exchange, 413, JsonUtils.errorJson(e.getMessage()));
+            return;
+        } catch (Exception e) {
+            sendResponse(exchange, 400, JsonUtils.errorJson("Invalid JSON: " + e.getMessage()));
             return;
         }
         
-        String requestBody = readRequestBody(exchange);
+        if (task.getTitle() == null || task.getTitle().trim().isEmpty()) {
+            sendResponse(exchange, 400, JsonUtils.errorJson("Title is required"));
+            return;
+        }
         
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        Task updatedTask;
         try {
-            Task task = JsonUtils.fromJson(requestBody);
-            
-            if (task.getTitle() == null || task.getTitle().trim().isEmpty()) {
-                sendResponse(exchange, 400, JsonUtils.errorJson("Title is required"));
-                return;
-            }
-            
-            Task updatedTask = taskService.updateTask(id, task);
-            String response = JsonUtils.toJson(updatedTask);
-            sendResponse(exchange, 200, response);
-        } catch (Exception e) {
-            sendResponse(exchange, 400, JsonUtils.errorJson("Invalid JSON: " + e.getMessage()));
+            updatedTask = tenant.store.updateTask(id, task, parseIfMatch(ifMatch));
+        } catch (TaskService.VersionMismatchException e) {
+            sendPreconditionFailed(exchange, e.getCurrent());
+            return;
+        }
+        if (updatedTask == null) {
+            sendNotFound(exchange, ifMatch);
+            return;
         }
+        exchange.getResponseHeaders().set("ETag", etag(updatedTask));
+        sendBytes(exchange, 200, JsonStreamWriter.toJson(updatedTask));
     }
     
     /**
-     * DELETE /api/tasks/{id} - удалить задачу
+     * DELETE /api/tasks/{id} - удалить задачу (с If-Match - только указанную версию)
      */
-    private void handleDelete(HttpExchange exchange, Integer id) throws IOException {
+    private void handleDelete(HttpExchange exchange, Tenant tenant, Integer id) throws IOException {
         if (id == null) {
             sendResponse(exchange, 400, JsonUtils.errorJson("Task ID is required"));
             return;
         }
         
-        if (taskService.deleteTask(id)) {
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        boolean deleted;
+        try {
+            deleted = tenant.store.deleteTask(id, parseIfMatch(ifMatch));
+        } catch (TaskService.VersionMismatchException e) {
+            sendPreconditionFailed(exchange, e.getCurrent());
+            return;
+        }
+        if (deleted) {
             sendResponse(exchange, 200, JsonUtils.messageJson("Task deleted successfully"));
         } else {
-            sendResponse(exchange, 404, JsonUtils.errorJson("Task not found"));
+            sendNotFound(exchange, ifMatch);
+        }
+    }
+    
+    /**
+     * POST /api/tasks/_bulk - пакет операций create/update/delete (JSON массив или NDJSON, см. BulkOperation)
+     * Тело читается потоком, операции выполняются пачками по BULK_BATCH, результаты пишутся
+     * в ответ по мере выполнения в том же формате, что и запрос:
+     * {"index":0,"status":201,"id":4,"version":1} или {"index":1,"status":404,"error":"..."}
+     * Если структура тела нарушена посередине, последним элементом идет {"status":400,"error":"..."}
+     */
+    private void handleBulk(HttpExchange exchange, Tenant tenant) throws IOException {
+        BulkRequestReader reader = new BulkRequestReader(exchange.getRequestBody(), config.getMaxBodyBytes());
+        List<BulkOperation> batch = new ArrayList<>(BULK_BATCH);
+        String failure;
+        try {
+            failure = readBatch(reader, batch);
+        } catch (JsonTaskParser.BodyTooLargeException e) {
+            sendResponse(exchange, 413, JsonUtils.errorJson(e.getMessage()));
+            return;
+        }
+        if (batch.isEmpty() && failure != null) {
+            sendResponse(exchange, 400, JsonUtils.errorJson(failure));
+            return;
+        }
+        
+        boolean array = reader.isArray();
+        setJsonHeaders(exchange);
+        if (!array) {
+            exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=UTF-8");
+        }
+        
+        try (OutputStream os = ResponseBody.open(exchange, 200, config.getCompressMinBytes())) {
+            StringBuilder out = new StringBuilder();
+            int index = 0;
+            if (array) out.append('[');
+            while (true) {
+                tenant.store.applyBulk(batch);
+                for (BulkOperation operation : batch) {
+                    appendSeparator(out, array, index);
+                    appendBulkResult(out, index++, operation);
+                }
+                if (failure != null) {
+                    appendSeparator(out, array, index);
+                    String error = JsonUtils.errorJson(failure);
+                    out.append("{\"status\":400,").append(error, 1, error.length());
+                }
+                if (failure != null || batch.size() < BULK_BATCH) break;
+                
+                // Результаты пачки уходят клиенту, пока читается следующая
+                os.write(out.toString().getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                out.setLength(0);
+                batch.clear();
+                try {
+                    failure = readBatch(reader, batch);
+                } catch (JsonTaskParser.BodyTooLargeException e) {
+                    failure = e.getMessage();
+                }
+            }
+            out.append(array ? "]" : "\n");
+            os.write(out.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    /**
+     * Читает до BULK_BATCH операций и проверяет обязательные поля
+     * Возвращает текст ошибки структуры тела или null
+     */
+    private static String readBatch(BulkRequestReader reader, List<BulkOperation> batch) throws IOException {
+        while (batch.size() < BULK_BATCH) {
+            BulkOperation operation;
+            try {
+                operation = reader.next();
+            } catch (IllegalArgumentException e) {
+                return "Invalid bulk body: " + e.getMessage();
+            }
+            if (operation == null) break;
+            if (operation.getOutcome() == null) {
+                Task task = operation.getTask();
+                if (operation.getType() != BulkOperation.Type.CREATE && task.getId() <= 0) {
+                    operation.fail(BulkOperation.Outcome.INVALID, "Task ID is required");
+                } else if (operation.getType() != BulkOperation.Type.DELETE
+                        && (task.getTitle() == null || task.getTitle().trim().isEmpty())) {
+                    operation.fail(BulkOperation.Outcome.INVALID, "Title is required");
+                }
+            }
+            batch.add(operation);
         }
+        return null;
     }
     
-    private String readRequestBody(HttpExchange exchange) throws IOException {
-        InputStream is = exchange.getRequestBody();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = reader.readLine()) != null) {
-            sb.append(line);
+    private static void appendSeparator(StringBuilder out, boolean array, int index) {
+        if (array) {
+            if (index > 0) out.append(',');
+        } else if (index > 0) {
+            out.append('\n');
         }
-        return sb.toString();
     }
     
-    private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
+    private static void appendBulkResult(StringBuilder out, int index, BulkOperation operation) {
+        int status;
+        switch (operation.getOutcome()) {
+            case CREATED: status = 201; break;
+            case UPDATED: case DELETED: status = 200; break;
+            case NOT_FOUND: status = 404; break;
+            case VERSION_MISMATCH: status = 412; break;
+            default: status = 400;
+        }
+        out.append("{\"index\":").append(index).append(",\"status\":").append(status);
+        Task result = operation.getResult();
+        if (result != null) {
+            out.append(",\"id\":").append(result.getId()).append(",\"version\":").append(result.getVersion());
+        } else if (operation.getOutcome() == BulkOperation.Outcome.DELETED) {
+            out.append(",\"id\":").append(operation.getId());
+        }
+        if (operation.getOutcome() == BulkOperation.Outcome.VERSION_MISMATCH) {
+            out.append(",\"error\":\"Version mismatch\"");
+        } else if (operation.getError() != null) {
+            String error = JsonUtils.errorJson(operation.getError());
+            out.append(',').append(error, 1, error.length() - 1);
+        }
+        out.append('}');
+    }
+    
+    /**
+     * ETag списка задач: эпоха запуска, счетчик изменений хранилища и хеш параметров запроса
+     */
+    private String collectionEtag(Tenant tenant, String rawQuery) {
+        long modCount = tenant.store.getModCount();
+        int queryHash = rawQuery != null ? rawQuery.hashCode() : 0;
+        return "\"" + etagEpoch + "-" + Long.toHexString(modCount) + "-" + Integer.toHexString(queryHash) + "\"";
+    }
+    
+    /**
+     * Проверяет If-None-Match (слабое сравнение, как требует RFC 9110)
+     * ETag сжатого представления ("5-gzip") тоже совпадает; тогда он и уходит в ответе 304
+     */
+    private static boolean matchesIfNoneMatch(HttpExchange exchange, String etag) {
+        String header = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (header == null) return false;
+        if (header.trim().equals("*")) return true;
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals(etag)) return true;
+            if (ResponseBody.identityEtag(tag).equals(etag)) {
+                exchange.getResponseHeaders().set("ETag", tag);
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void sendNotModified(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        exchange.getResponseHeaders().set("Access-Control-Expose-Headers", "X-Next-Cursor, ETag");
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+    }
+    
+    /**
+     * Сильный ETag задачи - ее версия
+     */
+    private static String etag(Task task) {
+        return "\"" + task.getVersion() + "\"";
+    }
+    
+    /**
+     * Условие на версию из заголовка If-Match: "*" - любая, иначе список ETag через запятую
+     * Слабые ETag (W/"...") при If-Match не совпадают ни с чем; ETag сжатого представления
+     * той же версии ("5-gzip") совпадает - это то же состояние задачи
+     */
+    private static LongPredicate parseIfMatch(String header) {
+        if (header == null) return null;
+        String value = header.trim();
+        if ("*".equals(value)) return version -> true;
+        List<Long> versions = new ArrayList<>();
+        for (String tag : value.split(",")) {
+            tag = ResponseBody.identityEtag(tag.trim());
+            if (tag.length() >= 2 && tag.charAt(0) == '"' && tag.charAt(tag.length() - 1) == '"') {
+                try {
+                    versions.add(Long.parseLong(tag.substring(1, tag.length() - 1)));
+                } catch (NumberFormatException e) {
+                    // Чужой ETag - не совпадает ни с одной версией
+                }
+            }
+        }
+        return versions::contains;
+    }
+    
+    private void sendPreconditionFailed(HttpExchange exchange, Task current) throws IOException {
+        exchange.getResponseHeaders().set("ETag", etag(current));
+        sendResponse(exchange, 412, JsonUtils.errorJson("Precondition Failed: task was modified"));
+    }
+    
+    /**
+     * Задачи нет; при If-Match это несработавшее условие (RFC 9110), иначе 404
+     */
+    private void sendNotFound(HttpExchange exchange, String ifMatch) throws IOException {
+        if (ifMatch != null) {
+            sendResponse(exchange, 412, JsonUtils.errorJson("Precondition Failed: task not found"));
+        } else {
+            sendResponse(exchange, 404, JsonUtils.errorJson("Task not found"));
+        }
+    }
+    
+    /**
+     * Разбирает задачу прямо из потока тела запроса с ограничением размера
+     */
+    private Task readTask(HttpExchange exchange) throws IOException {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        long length = contentLength != null ? Long.parseLong(contentLength.trim()) : -1;
+        return JsonTaskParser.parse(exchange.getRequestBody(), length, config.getMaxBodyBytes());
+    }
+    
+    private void setJsonHeaders(HttpExchange exchange) {
         exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        // Разрешенные методы и заголовки нужны только в ответе на OPTIONS
         exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
-        exchange.getResponseHeaders().set("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type");
-        
-        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(statusCode, responseBytes.length);
-        
-        OutputStream os = exchange.getResponseBody();
-        os.write(responseBytes);
-        os.close();
+        exchange.getResponseHeaders().set("Access-Control-Expose-Headers", "X-Next-Cursor, ETag");
+    }
+    
+    /**
+     * Отправляет массив задач chunked-ответом, кодируя задачи
+     * прямо в поток ответа без сборки всего JSON в памяти
+     */
+    private void sendTaskArray(HttpExchange exchange, Iterable<Task> tasks) throws IOException {
+        setJsonHeaders(exchange);
+        try (OutputStream os = ResponseBody.open(exchange, 200, config.getCompressMinBytes())) {
+            JsonStreamWriter.writeTaskArray(os, tasks);
+        }
+    }
+    
+    private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
+        sendBytes(exchange, statusCode, response.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Отправляет готовое тело ответа; большие ответы сжимаются, если клиент это поддерживает
+     */
+    private void sendBytes(HttpExchange exchange, int statusCode, byte[] body) throws IOException {
+        setJsonHeaders(exchange);
+        ResponseBody.send(exchange, statusCode, body, config.getCompressMinBytes());
+    }
+    
+    /**
+     * Останавливает HTTP сервер и сбрасывает журналы задач на диск
+     */
+    public synchronized void stop() throws IOException {
+        if (server != null) {
+            server.stop(1);
+            server = null;
+        }
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer = null;
+        }
+        IOException failure = null;
+        for (Tenant tenant : tenants) {
+            try {
+                tenant.store.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
     }
     
     public static void main(String[] args) {
         try {
-            RestApiServer server = new RestApiServer();
+            ServerConfig config = ServerConfig.fromArgs(args);
+            if (!config.getClusterNodes().isEmpty()) {
+                // Маршрутизатор кластера: задачи хранятся на узлах, сам он состояния не имеет
+                ClusterRouter router = new ClusterRouter(config);
+                router.start();
+                System.out.println("Маршрутизатор работает. Нажмите Enter для остановки...");
+                if (System.in.read() != -1) {
+                    router.stop();
+                }
+                return;
+            }
+            
+            RestApiServer server = new RestApiServer(config);
+            for (String tenant : config.getTenants()) {
+                server.addTenant(tenant, openStore(config, tenant));
+            }
             server.start();
             
+            // Журнал должен быть сброшен на диск и при остановке через Ctrl+C
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.stop();
+                } catch (IOException e) {
+                    System.err.println("Ошибка при остановке сервера: " + e.getMessage());
+                }
+            }));
+            
             System.out.println("Сервер работает. Нажмите Enter для остановки...");
-            System.in.read();
+            if (System.in.read() != -1) {
+                server.stop();
+            }
             
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ошибка в параметрах запуска: " + e.getMessage());
+            System.err.println("Использование: java RestApiServer [--port=8080] [--backlog=0] [--frontend=jdk|nio] [--mode=default|virtual|pool] [--threads=N] [--queue=N] [--queue-target-ms=0] [--max-inflight=1024] [--max-body=bytes]"
+                    + " [--data-dir=path] [--wal-sync-ms=5] [--wal-batch=1000] [--snapshot-every=100000] [--search-index=false] [--compress-min=1024] [--response-cache=16777216]"
+                    + " [--rate-limit=0] [--rate-burst=N]"
+                    + " [--shards=1] [--tenants=name,name,...] [--cluster=host:port,host:port,...]");
         } catch (IOException e) {
             System.err.println("Ошибка запуска сервера: " + e.getMessage());
             e.printStackTrace();
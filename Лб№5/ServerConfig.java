@@ -0,0 +1,311 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Параметры запуска REST API сервера
+ * Задаются аргументами командной строки вида --ключ=значение
+ */
+public class ServerConfig {
+    
+    /**
+     * Режим выполнения обработчиков запросов
+     */
+    public enum ExecutionMode {
+        /** Все запросы обрабатываются одним потоком-диспетчером HttpServer */
+        DEFAULT,
+        /** Отдельный виртуальный поток на каждый запрос */
+        VIRTUAL,
+        /** Ограниченный пул потоков с очередью и ответом 503 при переполнении */
+        POOL
+    }
+    
+    /**
+     * Реализация HTTP сервера
+     */
+    public enum FrontEnd {
+        /** com.sun.net.httpserver.HttpServer из JDK */
+        JDK,
+        /** Собственный сервер на селекторе NIO (NioHttpServer) */
+        NIO
+    }
+    
+    private int port = 8080;
+    private int backlog = 0;
+    private ExecutionMode executionMode = ExecutionMode.DEFAULT;
+    private FrontEnd frontEnd = FrontEnd.JDK;
+    private int poolThreads = Runtime.getRuntime().availableProcessors() * 2;
+    private int queueCapacity = 1024;
+    private long queueTargetMillis = 0;
+    private int maxInFlight = 1024;
+    private double rateLimit = 0;
+    private int rateBurst = 0;
+    private int maxBodyBytes = JsonTaskParser.DEFAULT_MAX_BODY;
+    private Path dataDir;
+    private long walSyncMillis = 5;
+    private int walBatch = 1000;
+    private long snapshotEvery = 100_000;
+    private boolean searchIndex;
+    private int compressMinBytes = 1024;
+    private long responseCacheBytes = 16L * 1024 * 1024;
+    private int shards = 1;
+    private List<String> clusterNodes = new ArrayList<>();
+    private List<String> tenants = new ArrayList<>();
+    
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') == -1) {
+                throw new IllegalArgumentException("Неверный аргумент: " + arg + " (ожидается --ключ=значение)");
+            }
+            int eq = arg.indexOf('=');
+            config.set(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return config;
+    }
+    
+    private void set(String key, String value) {
+        switch (key) {
+            case "port":
+                port = parsePositive(key, value);
+                break;
+            case "backlog":
+                backlog = Integer.parseInt(value);
+                break;
+            case "mode":
+                executionMode = ExecutionMode.valueOf(value.toUpperCase());
+                break;
+            case "frontend":
+                frontEnd = FrontEnd.valueOf(value.toUpperCase());
+                break;
+            case "threads":
+                poolThreads = parsePositive(key, value);
+                break;
+            case "queue":
+                queueCapacity = parsePositive(key, value);
+                break;
+            case "queue-target-ms":
+                queueTargetMillis = Long.parseLong(value);
+                if (queueTargetMillis < 0) {
+                    throw new IllegalArgumentException("Параметр --queue-target-ms не может быть отрицательным");
+                }
+                break;
+            case "max-inflight":
+                maxInFlight = parsePositive(key, value);
+                break;
+            case "rate-limit":
+                rateLimit = Double.parseDouble(value);
+                if (!(rateLimit >= 0)) {
+                    throw new IllegalArgumentException("Параметр --rate-limit не может быть отрицательным");
+                }
+                break;
+            case "rate-burst":
+                rateBurst = parsePositive(key, value);
+                break;
+            case "max-body":
+                maxBodyBytes = parsePositive(key, value);
+                break;
+            case "data-dir":
+                dataDir = Paths.get(value);
+                break;
+            case "wal-sync-ms":
+                walSyncMillis = parsePositive(key, value);
+                break;
+            case "wal-batch":
+                walBatch = parsePositive(key, value);
+                break;
+            case "snapshot-every":
+                snapshotEvery = Long.parseLong(value);
+                break;
+            case "search-index":
+                if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+                    throw new IllegalArgumentException("Параметр --search-index должен быть true или false");
+                }
+                searchIndex = Boolean.parseBoolean(value);
+                break;
+            case "compress-min":
+                compressMinBytes = Integer.parseInt(value);
+                if (compressMinBytes < 0) {
+                    throw new IllegalArgumentException("Параметр --compress-min не может быть отрицательным");
+                }
+                break;
+            case "response-cache":
+                responseCacheBytes = Long.parseLong(value);
+                if (responseCacheBytes < 0) {
+                    throw new IllegalArgumentException("Параметр --response-cache не может быть отрицательным");
+                }
+                break;
+            case "shards":
+                shards = parsePositive(key, value);
+                break;
+            case "tenants":
+                tenants = new ArrayList<>();
+                for (String tenant : value.split(",")) {
+                    tenant = tenant.trim();
+                    if (!tenant.isEmpty()) tenants.add(tenant);
+                }
+                break;
+            case "cluster":
+                clusterNodes = new ArrayList<>();
+                for (String node : value.split(",")) {
+                    node = node.trim();
+                    if (node.isEmpty()) continue;
+                    // host:port или полный адрес узла
+                    clusterNodes.add(node.startsWith("http://") ? node : "http://" + node);
+                }
+                if (clusterNodes.isEmpty()) {
+                    throw new IllegalArgumentException("Параметр --cluster должен содержать адреса узлов");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Неизвестный параметр: --" + key);
+        }
+    }
+    
+    private static int parsePositive(String key, String value) {
+        int result = Integer.parseInt(value);
+        if (result <= 0) {
+            throw new IllegalArgumentException("Параметр --" + key + " должен быть больше 0");
+        }
+        return result;
+    }
+    
+    public int getPort() {
+        return port;
+    }
+    
+    public int getBacklog() {
+        return backlog;
+    }
+    
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+    
+    public FrontEnd getFrontEnd() {
+        return frontEnd;
+    }
+    
+    public int getPoolThreads() {
+        return poolThreads;
+    }
+    
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+    
+    /**
+     * Допустимое время ожидания запроса (мс): в режиме pool - в очереди пула, в остальных -
+     * свободного места среди max-inflight; 0 - отклонять только при полной очереди
+     */
+    public long getQueueTargetMillis() {
+        return queueTargetMillis;
+    }
+    
+    /**
+     * Сколько запросов может обрабатываться одновременно в любом режиме; остальные получают 503
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+    
+    /**
+     * Запросов в секунду с одного IP адреса, 0 - без ограничения
+     */
+    public double getRateLimit() {
+        return rateLimit;
+    }
+    
+    /**
+     * Сколько запросов клиент может отправить подряд; по умолчанию - частота за секунду
+     */
+    public int getRateBurst() {
+        return rateBurst > 0 ? rateBurst : (int) Math.max(1, Math.ceil(rateLimit));
+    }
+    
+    public int getMaxBodyBytes() {
+        return maxBodyBytes;
+    }
+    
+    /**
+     * Каталог журнала задач, null - хранение только в памяти
+     */
+    public Path getDataDir() {
+        return dataDir;
+    }
+    
+    public long getWalSyncMillis() {
+        return walSyncMillis;
+    }
+    
+    public int getWalBatch() {
+        return walBatch;
+    }
+    
+    public long getSnapshotEvery() {
+        return snapshotEvery;
+    }
+    
+    /**
+     * Строить ли поисковый индекс для хранилища с журналом (в памяти он есть всегда)
+     * Индекс строится в фоне после запуска и занимает кучу пропорционально объему задач
+     */
+    public boolean isSearchIndex() {
+        return searchIndex;
+    }
+    
+    /**
+     * Ответы не меньше этого размера сжимаются gzip/deflate, если клиент это поддерживает
+     * 0 - сжатие выключено
+     */
+    public int getCompressMinBytes() {
+        return compressMinBytes;
+    }
+    
+    /**
+     * Предел памяти кеша ответов GET /api/tasks/{id} в байтах, 0 - кеш выключен
+     */
+    public long getResponseCacheBytes() {
+        return responseCacheBytes;
+    }
+    
+    /**
+     * Число шардов хранилища в этом процессе (1 - без разбиения)
+     */
+    public int getShards() {
+        return shards;
+    }
+    
+    /**
+     * Имена дополнительных арендаторов: у каждого свое хранилище по адресу /{имя}/api/tasks
+     */
+    public List<String> getTenants() {
+        return tenants;
+    }
+    
+    /**
+     * Адреса узлов (http://host:port); если заданы, сервер работает маршрутизатором
+     * и не хранит задачи сам
+     */
+    public List<String> getClusterNodes() {
+        return clusterNodes;
+    }
+    
+    @Override
+    public String toString() {
+        String limit = ", не больше " + maxInFlight + " запросов одновременно";
+        switch (executionMode) {
+            case VIRTUAL:
+                return "виртуальный поток на запрос" + limit + waitLimit();
+            case POOL:
+                return "пул из " + poolThreads + " потоков, очередь " + queueCapacity + waitLimit() + limit;
+            default:
+                return "один поток-диспетчер" + limit;
+        }
+    }
+    
+    private String waitLimit() {
+        return queueTargetMillis > 0 ? ", сброс при ожидании больше " + queueTargetMillis + " мс" : "";
+    }
+}
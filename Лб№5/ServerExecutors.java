@@ -0,0 +1,142 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Исполнители для обработки HTTP запросов
+ * Создает исполнитель по режиму из ServerConfig
+ */
+public class ServerExecutors {
+    private static final ThreadLocal<Boolean> SHEDDING = new ThreadLocal<>();
+    private static final LongAdder SHED = new LongAdder();
+    
+    private ServerExecutors() {
+    }
+    
+    /**
+     * Возвращает исполнитель для HttpServer.setExecutor
+     * null означает стандартный поток-диспетчер HttpServer
+     */
+    public static Executor create(ServerConfig config) {
+        switch (config.getExecutionMode()) {
+            case VIRTUAL:
+                return newVirtualThreadExecutor();
+            case POOL:
+                return new SheddingExecutor(config.getPoolThreads(), config.getQueueCapacity(),
+                        TimeUnit.MILLISECONDS.toNanos(config.getQueueTargetMillis()));
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Исполнитель с виртуальным потоком на задачу (Java 21+)
+     * На более старых JVM используется кэширующий пул обычных потоков
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Виртуальные потоки недоступны в этой JVM, используется кэширующий пул потоков");
+            return Executors.newCachedThreadPool(daemonThreads("http-worker"));
+        }
+    }
+    
+    /**
+     * true, если текущий запрос не поместился в очередь пула
+     * и должен быть сразу отклонен с кодом 503
+     */
+    public static boolean isShedding() {
+        return SHEDDING.get() != null;
+    }
+    
+    /**
+     * Сколько запросов отклонено с 503 из-за переполненной очереди или задержки в ней
+     */
+    public static long getShedCount() {
+        return SHED.sum();
+    }
+    
+    private static void runShedding(Runnable command) {
+        SHED.increment();
+        SHEDDING.set(Boolean.TRUE);
+        try {
+            command.run();
+        } finally {
+            SHEDDING.remove();
+        }
+    }
+    
+    static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    /**
+     * Ограниченный пул потоков
+     * Если очередь заполнена, запрос выполняется прямо в потоке-диспетчере
+     * с флагом сброса нагрузки, чтобы обработчик ответил 503 без обработки.
+     *
+     * С targetNanos > 0 сбрасываются и запросы, простоявшие в очереди дольше цели, но только
+     * если задержка не опускалась ниже цели целый INTERVAL_NANOS (как в CoDel): короткий
+     * всплеск очередь переживает, а при постоянной перегрузке обслуживаются только запросы,
+     * дождавшиеся своей очереди за targetNanos, вместо того чтобы задерживать каждый запрос
+     * до таймаута клиента. Ответ 503 дешевый, поэтому очередь быстро сокращается.
+     */
+    private static class SheddingExecutor implements Executor {
+        private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+        private final ThreadPoolExecutor pool;
+        private final long targetNanos;
+        // Момент, с которого задержка выше цели считается постоянной; 0 - задержка в норме
+        private volatile long overloadedFrom;
+        
+        SheddingExecutor(int threads, int queueCapacity, long targetNanos) {
+            pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), daemonThreads("http-worker"),
+                    new ThreadPoolExecutor.AbortPolicy());
+            this.targetNanos = targetNanos;
+        }
+        
+        @Override
+        public void execute(Runnable command) {
+            Runnable task = command;
+            if (targetNanos > 0) {
+                long enqueued = System.nanoTime();
+                task = () -> {
+                    if (overTarget(System.nanoTime() - enqueued)) {
+                        runShedding(command);
+                    } else {
+                        command.run();
+                    }
+                };
+            }
+            try {
+                pool.execute(task);
+            } catch (RejectedExecutionException e) {
+                runShedding(command);
+            }
+        }
+        
+        /**
+         * Решение по времени ожидания запроса в очереди; гонки между потоками здесь безвредны:
+         * в худшем случае состояние перегрузки начнется или закончится на один запрос позже
+         */
+        private boolean overTarget(long waitedNanos) {
+            if (waitedNanos < targetNanos) {
+                overloadedFrom = 0;
+                return false;
+            }
+            long now = System.nanoTime();
+            long from = overloadedFrom;
+            if (from == 0) {
+                overloadedFrom = now + INTERVAL_NANOS;
+                return false;
+            }
+            return now >= from;
+        }
+    }
+}
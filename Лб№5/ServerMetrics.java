@@ -0,0 +1,242 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Метрики HTTP сервера в формате Prometheus
+ *
+ * Фильтр вокруг обработчиков считает запросы по маршруту, методу и коду ответа,
+ * строит гистограммы времени обработки и размеров тел запроса и ответа, ведет число
+ * запросов в обработке. Все счетчики - LongAdder, на пути запроса нет блокировок:
+ * структуры маршрута создаются один раз при первом запросе.
+ */
+public class ServerMetrics {
+    private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE", "OPTIONS", "OTHER"};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    
+    private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final LongAdder inFlight = new LongAdder();
+    
+    private static class Gauge {
+        final String help;
+        final LongSupplier value;
+        
+        Gauge(String help, LongSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+    
+    /**
+     * Метрики одного маршрута; счетчики по методу и коду ответа
+     * хранятся в ConcurrentIntMap с ключом (метод << 16 | код)
+     */
+    private static class RouteMetrics {
+        final ConcurrentIntMap<LongAdder> requests = new ConcurrentIntMap<>(4);
+        final Histogram[] latency = new Histogram[METHODS.length];
+        final Histogram requestBytes = new Histogram();
+        final Histogram responseBytes = new Histogram();
+        
+        RouteMetrics() {
+            for (int i = 0; i < METHODS.length; i++) {
+                latency[i] = new Histogram();
+            }
+        }
+        
+        void countRequest(int method, int status) {
+            int key = method << 16 | (status & 0xFFFF);
+            LongAdder counter = requests.get(key);
+            if (counter == null) {
+                counter = requests.compute(key, (k, current) -> current != null ? current : new LongAdder());
+            }
+            counter.increment();
+        }
+    }
+    
+    /**
+     * Фильтр для контекста HttpServer; router возвращает метку маршрута по запросу
+     * (шаблон пути, а не сам путь, чтобы число меток оставалось ограниченным)
+     */
+    public Filter filter(Function<HttpExchange, String> router) {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                long start = System.nanoTime();
+                CountingInputStream in = new CountingInputStream(exchange.getRequestBody());
+                CountingOutputStream out = new CountingOutputStream(exchange.getResponseBody());
+                exchange.setStreams(in, out);
+                inFlight.increment();
+                try {
+                    chain.doFilter(exchange);
+                } finally {
+                    inFlight.decrement();
+                    String label = router.apply(exchange);
+                    RouteMetrics route = routes.get(label);
+                    if (route == null) {
+                        route = routes.computeIfAbsent(label, key -> new RouteMetrics());
+                    }
+                    int method = methodIndex(exchange.getRequestMethod());
+                    // -1: обработчик не успел отправить ответ (исключение)
+                    int status = exchange.getResponseCode();
+                    route.countRequest(method, status);
+                    route.latency[method].record(System.nanoTime() - start);
+                    route.requestBytes.record(in.count);
+                    route.responseBytes.record(out.count);
+                }
+            }
+            
+            @Override
+            public String description() {
+                return "Request metrics";
+            }
+        };
+    }
+    
+    /**
+     * Регистрирует показатель, значение которого читается при каждом запросе /metrics
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+    
+    /**
+     * Все метрики в текстовом формате Prometheus (version 0.0.4)
+     */
+    public String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        Map<String, RouteMetrics> sorted = new TreeMap<>(routes);
+        
+        header(sb, "http_requests_total", "counter", "HTTP requests by route, method and status code");
+        for (Map.Entry<String, RouteMetrics> entry : sorted.entrySet()) {
+            Map<Integer, Long> counts = new TreeMap<>();
+            entry.getValue().requests.forEach((key, counter) -> counts.put(key, counter.sum()));
+            for (Map.Entry<Integer, Long> count : counts.entrySet()) {
+                int key = count.getKey();
+                sb.append("http_requests_total{route=\"").append(entry.getKey())
+                        .append("\",method=\"").append(METHODS[key >>> 16])
+                        .append("\",status=\"").append((short) key).append("\"} ")
+                        .append(count.getValue()).append('\n');
+            }
+        }
+        
+        header(sb, "http_request_duration_seconds", "summary", "Request handling time, including streaming the response");
+        for (Map.Entry<String, RouteMetrics> entry : sorted.entrySet()) {
+            for (int m = 0; m < METHODS.length; m++) {
+                Histogram histogram = entry.getValue().latency[m];
+                if (histogram.getCount() == 0) continue;
+                String labels = "route=\"" + entry.getKey() + "\",method=\"" + METHODS[m] + "\"";
+                summary(sb, "http_request_duration_seconds", labels, histogram, 1e-9);
+            }
+        }
+        
+        header(sb, "http_request_size_bytes", "summary", "Request body size");
+        for (Map.Entry<String, RouteMetrics> entry : sorted.entrySet()) {
+            summary(sb, "http_request_size_bytes", "route=\"" + entry.getKey() + "\"", entry.getValue().requestBytes, 1);
+        }
+        header(sb, "http_response_size_bytes", "summary", "Response body size as sent (after compression)");
+        for (Map.Entry<String, RouteMetrics> entry : sorted.entrySet()) {
+            summary(sb, "http_response_size_bytes", "route=\"" + entry.getKey() + "\"", entry.getValue().responseBytes, 1);
+        }
+        
+        header(sb, "http_requests_in_flight", "gauge", "Requests currently being handled");
+        sb.append("http_requests_in_flight ").append(inFlight.sum()).append('\n');
+        
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+            header(sb, entry.getKey(), "gauge", entry.getValue().help);
+            sb.append(entry.getKey()).append(' ').append(entry.getValue().value.getAsLong()).append('\n');
+        }
+        return sb.toString();
+    }
+    
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    
+    private static void summary(StringBuilder sb, String name, String labels, Histogram histogram, double scale) {
+        long[] values = histogram.quantiles(QUANTILES);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            sb.append(name).append('{').append(labels).append(",quantile=\"").append(QUANTILES[i]).append("\"} ")
+                    .append(format(values[i] * scale)).append('\n');
+        }
+        sb.append(name).append("_sum{").append(labels).append("} ").append(format(histogram.getSum() * scale)).append('\n');
+        sb.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+    
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15
+                ? Long.toString((long) value) : String.format(Locale.ROOT, "%.9g", value);
+    }
+    
+    private static int methodIndex(String method) {
+        for (int i = 0; i < METHODS.length - 1; i++) {
+            if (METHODS[i].equals(method)) return i;
+        }
+        return METHODS.length - 1;
+    }
+    
+    /**
+     * Счетчики байт тела; поток запроса читает один поток-обработчик, поэтому поле без синхронизации
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+        
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) count += read;
+            return read;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+    
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+        
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            // FilterOutputStream по умолчанию пишет побайтно - передаем массив целиком
+            out.write(bytes, offset, length);
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongPredicate;
+
+/**
+ * Хранилище, распределенное по нескольким TaskService (шардам) в одном процессе
+ *
+ * Шард задачи выбирается консистентным хешированием id (HashRing). У каждого шарда
+ * свои блокировки и, в режиме с журналом, свой журнал в подкаталоге shard-N, поэтому записи
+ * в разные шарды не конкурируют за один журнал и его сброс на диск. Id новых задач выдаются
+ * общим счетчиком, списки собираются слиянием упорядоченных по id списков шардов.
+ * Лента изменений у шардов общая.
+ */
+public class ShardedTaskService implements TaskStore {
+    private final TaskService[] shards;
+    private final HashRing ring;
+    private final AtomicInteger nextId;
+    private final ChangeFeed changes;
+    // Пакетные операции выполняются во всех затронутых шардах параллельно
+    private final ExecutorService bulkExecutor;
+    
+    private ShardedTaskService(TaskService[] shards, ChangeFeed changes) {
+        this.shards = shards;
+        this.changes = changes;
+        this.ring = new HashRing(shards.length);
+        int next = 1;
+        for (TaskService shard : shards) {
+            next = Math.max(next, shard.getNextId());
+        }
+        this.nextId = new AtomicInteger(next);
+        this.bulkExecutor = Executors.newFixedThreadPool(shards.length, ServerExecutors.daemonThreads("shard-bulk"));
+    }
+    
+    /**
+     * count шардов в памяти с примерами задач, как у TaskService.getInstance()
+     */
+    public static ShardedTaskService inMemory(int count) {
+        ChangeFeed changes = new ChangeFeed();
+        TaskService[] shards = new TaskService[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = TaskService.inMemory(changes);
+        }
+        ShardedTaskService service = new ShardedTaskService(shards, changes);
+        for (Task task : TaskService.sampleTasks()) {
+            service.addTask(task);
+        }
+        return service;
+    }
+    
+    /**
+     * count шардов с журналами в подкаталогах dir/shard-0 .. shard-(count-1)
+     * Число шардов нельзя менять между запусками: задачи не переносятся между журналами
+     * searchIndex - каждый шард строит свой поисковый индекс в фоне (см. TaskService)
+     */
+    public static ShardedTaskService openPersistent(Path dir, int count, long syncIntervalMillis, int batchSize,
+                                                    long snapshotEvery, boolean searchIndex) throws IOException {
+        ChangeFeed changes = new ChangeFeed();
+        TaskService[] shards = new TaskService[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                shards[i] = TaskService.openPersistent(dir.resolve("shard-" + i), syncIntervalMillis, batchSize,
+                        snapshotEvery, searchIndex, changes);
+            }
+        } catch (IOException e) {
+            for (TaskService shard : shards) {
+                if (shard != null) shard.close();
+            }
+            throw e;
+        }
+        return new ShardedTaskService(shards, changes);
+    }
+    
+    public int getShardCount() {
+        return shards.length;
+    }
+    
+    @Override
+    public Iterable<Task> tasks(int afterId, Boolean completed) {
+        List<Iterable<Task>> sources = new ArrayList<>(shards.length);
+        for (TaskService shard : shards) {
+            sources.add(shard.tasks(afterId, completed));
+        }
+        return mergeById(sources);
+    }
+    
+    @Override
+    public Iterable<Task> search(String query, int afterId, Boolean completed) {
+        List<Iterable<Task>> sources = new ArrayList<>(shards.length);
+        for (TaskService shard : shards) {
+            sources.add(shard.search(query, afterId, completed));
+        }
+        return mergeById(sources);
+    }
+    
+    @Override
+    public Task getTaskById(int id) {
+        return shardFor(id).getTaskById(id);
+    }
+    
+    @Override
+    public Task addTask(Task task) {
+        if (task.getId() > 0) {
+            reserveId(task.getId());
+        } else {
+            task.setId(nextId.getAndIncrement());
+        }
+        return shardFor(task.getId()).addTask(task);
+    }
+    
+    @Override
+    public Task updateTask(int id, Task task, LongPredicate expectedVersion) {
+        return shardFor(id).updateTask(id, task, expectedVersion);
+    }
+    
+    @Override
+    public boolean deleteTask(int id, LongPredicate expectedVersion) {
+        return shardFor(id).deleteTask(id, expectedVersion);
+    }
+    
+    /**
+     * Id назначаются до разбиения пакета по шардам, затем каждая часть
+     * выполняется своим шардом с одним ожиданием записи журнала на часть
+     */
+    @Override
+    public void applyBulk(List<BulkOperation> operations) {
+        List<List<BulkOperation>> parts = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<>());
+        }
+        int autoIds = 0;
+        for (BulkOperation operation : operations) {
+            if (operation.getOutcome() == null && operation.getType() == BulkOperation.Type.CREATE
+                    && operation.getId() <= 0) {
+                autoIds++;
+            }
+        }
+        int id = autoIds > 0 ? nextId.getAndAdd(autoIds) : 0;
+        for (BulkOperation operation : operations) {
+            if (operation.getOutcome() != null) continue;
+            Task task = operation.getTask();
+            if (operation.getType() == BulkOperation.Type.CREATE) {
+                if (task.getId() > 0) {
+                    reserveId(task.getId());
+                } else {
+                    task.setId(id++);
+                }
+            }
+            parts.get(ring.ownerOf(task.getId())).add(operation);
+        }
+        
+        List<Future<?>> pending = new ArrayList<>();
+        int local = -1;
+        for (int i = 0; i < shards.length; i++) {
+            if (parts.get(i).isEmpty()) continue;
+            if (local < 0) {
+                // Одну часть выполняет текущий поток
+                local = i;
+                continue;
+            }
+            TaskService shard = shards[i];
+            List<BulkOperation> part = parts.get(i);
+            pending.add(bulkExecutor.submit(() -> shard.applyBulk(part)));
+        }
+        if (local >= 0) {
+            shards[local].applyBulk(parts.get(local));
+        }
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while applying bulk operations", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+    
+    /**
+     * Сумма счетчиков шардов: растет при любом изменении в любом шарде
+     */
+    @Override
+    public long getModCount() {
+        long sum = 0;
+        for (TaskService shard : shards) {
+            sum += shard.getModCount();
+        }
+        return sum;
+    }
+    
+    @Override
+    public int getNextId() {
+        return nextId.get();
+    }
+    
+    @Override
+    public ChangeFeed getChanges() {
+        return changes;
+    }
+    
+    public void requestSnapshot() {
+        for (TaskService shard : shards) {
+            shard.requestSnapshot();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        bulkExecutor.shutdown();
+        IOException failure = null;
+        for (TaskService shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+    
+    /**
+     * Слияние нескольких упорядоченных по id последовательностей задач в одну
+     * Задача с одним id встречается только в одном источнике
+     */
+    public static Iterable<Task> mergeById(List<? extends Iterable<Task>> sources) {
+        return () -> {
+            PriorityQueue<PeekingIterator> heads = new PriorityQueue<>(
+                    Math.max(1, sources.size()), (a, b) -> Integer.compare(a.head.getId(), b.head.getId()));
+            for (Iterable<Task> source : sources) {
+                Iterator<Task> iterator = source.iterator();
+                if (iterator.hasNext()) {
+                    heads.add(new PeekingIterator(iterator));
+                }
+            }
+            return new Iterator<Task>() {
+                @Override
+                public boolean hasNext() {
+                    return !heads.isEmpty();
+                }
+                
+                @Override
+                public Task next() {
+                    PeekingIterator first = heads.poll();
+                    if (first == null) throw new NoSuchElementException();
+                    Task result = first.head;
+                    if (first.advance()) {
+                        heads.add(first);
+                    }
+                    return result;
+                }
+            };
+        };
+    }
+    
+    private static class PeekingIterator {
+        final Iterator<Task> iterator;
+        Task head;
+        
+        PeekingIterator(Iterator<Task> iterator) {
+            this.iterator = iterator;
+            this.head = iterator.next();
+        }
+        
+        boolean advance() {
+            if (!iterator.hasNext()) return false;
+            head = iterator.next();
+            return true;
+        }
+    }
+    
+    private TaskService shardFor(int id) {
+        return shards[ring.ownerOf(id)];
+    }
+    
+    private void reserveId(int id) {
+        if (id < Integer.MAX_VALUE) {
+            nextId.accumulateAndGet(id + 1, Math::max);
+        }
+    }
+}
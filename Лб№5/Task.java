@@ -6,6 +6,10 @@ public class Task {
     private String title;
     private String description;
     private boolean completed;
+    // Номер версии, растет при каждом изменении задачи; 0 - задача еще не сохранена
+    private long version;
+    // Кеш JSON представления задачи (см. JsonStreamWriter.toJson), сбрасывается при изменении полей
+    private volatile byte[] json;
     
     public Task() {
     }
@@ -23,6 +27,7 @@ public class Task {
     
     public void setId(int id) {
         this.id = id;
+        json = null;
     }
     
     public String getTitle() {
@@ -31,6 +36,7 @@ public class Task {
     
     public void setTitle(String title) {
         this.title = title;
+        json = null;
     }
     
     public String getDescription() {
@@ -39,6 +45,7 @@ public class Task {
     
     public void setDescription(String description) {
         this.description = description;
+        json = null;
     }
     
     public boolean isCompleted() {
@@ -47,6 +54,23 @@ public class Task {
     
     public void setCompleted(boolean completed) {
         this.completed = completed;
+        json = null;
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    public void setVersion(long version) {
+        this.version = version;
+    }
+    
+    byte[] getCachedJson() {
+        return json;
+    }
+    
+    void setCachedJson(byte[] json) {
+        this.json = json;
     }
     
     @Override
@@ -56,6 +80,7 @@ public class Task {
                 ", title='" + title + '\'' +
                 ", description='" + description + '\'' +
                 ", completed=" + completed +
+                ", version=" + version +
                 '}';
     }
 }
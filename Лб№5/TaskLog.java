@@ -0,0 +1,542 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал упреждающей записи (WAL) для TaskService
+ *
+ * Каждое изменение добавляется в журнал двоичной записью:
+ * [длина int][crc32 int][тип byte][id int][completed byte][title][description][version long],
+ * строки - [длина int, -1 для null][байты UTF-8]. В записях удаления версии нет.
+ *
+ * Групповая фиксация: записи копятся в буфере, поток сброса пишет их в файл
+ * и вызывает fsync не чаще одного раза за syncIntervalMillis (или сразу при
+ * накоплении batchSize записей). Писатели ждут, пока их запись станет надежной.
+ *
+ * Журнал разбит на сегменты tasks-N.log. При создании снапшота поток сброса начинается новый
+ * сегмент N, а отдельный поток сохраняет полное состояние в колоночный снапшот tasks-N.snapshot
+ * (см. ColumnarSnapshot) и удаляет старые сегменты и снапшоты. Одновременно пишется не больше
+ * одного снапшота; fsync нового сегмента в это время не ждет.
+ * Восстановление: снапшот отображается в память, сегменты с номером не меньше
+ * номера снапшота проигрываются поверх него.
+ */
+public class TaskLog implements AutoCloseable {
+    static final byte ADD = 1;
+    static final byte UPDATE = 2;
+    static final byte DELETE = 3;
+    
+    private static final String FILE_PREFIX = "tasks-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final int HEADER_BYTES = 8;
+    private static final int READ_BUFFER_BYTES = 1 << 20;
+    
+    /**
+     * Получатель записей при восстановлении
+     */
+    public interface Replay {
+        /** Снапшот, поверх которого проигрывается журнал */
+        void base(ColumnarSnapshot snapshot);
+        
+        void put(Task task);
+        
+        void remove(int id);
+    }
+    
+    /**
+     * Источник полного состояния для снапшота
+     */
+    public interface SnapshotSource {
+        /** Все задачи по возрастанию id */
+        Iterable<Task> snapshotTasks();
+        
+        /**
+         * Наибольшая версия удаленных задач, включая удаленные до переключения сегмента
+         * Вызывается первым после переключения: к этому моменту все записи старого сегмента
+         * должны быть применены к хранилищу
+         */
+        long versionFloor();
+        
+        /** Снапшот записан и может заменить предыдущий */
+        void snapshotWritten(ColumnarSnapshot snapshot);
+    }
+    
+    private final Path dir;
+    private final long syncIntervalMillis;
+    private final int batchSize;
+    private final long snapshotEvery;
+    
+    private final Object lock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+    private int pendingRecords;
+    private long appendedSeq;
+    private long durableSeq;
+    private long recordsSinceSnapshot;
+    private boolean snapshotRequested;
+    private boolean snapshotInFlight;
+    private boolean closed;
+    private boolean stopped;
+    private IOException failure;
+    
+    private FileChannel channel;
+    private long generation;
+    private SnapshotSource snapshotSource;
+    private Thread flusher;
+    private Thread snapshotter;
+    private final CRC32 crc = new CRC32();
+    
+    public TaskLog(Path dir, long syncIntervalMillis, int batchSize, long snapshotEvery) {
+        this.dir = dir;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.batchSize = batchSize;
+        this.snapshotEvery = snapshotEvery;
+    }
+    
+    /**
+     * Восстанавливает состояние из снапшота и журнала
+     * Возвращает число восстановленных записей журнала
+     */
+    public long recover(Replay replay) throws IOException {
+        Files.createDirectories(dir);
+        long snapshotGeneration = 0;
+        List<Long> snapshots = listFiles(SNAPSHOT_SUFFIX);
+        if (!snapshots.isEmpty()) {
+            snapshotGeneration = snapshots.get(snapshots.size() - 1);
+            replay.base(ColumnarSnapshot.open(snapshotPath(snapshotGeneration)));
+            deleteOlder(SNAPSHOT_SUFFIX, snapshotGeneration);
+        }
+        
+        long replayed = 0;
+        long lastGeneration = snapshotGeneration;
+        for (long segment : listFiles(SEGMENT_SUFFIX)) {
+            if (segment < snapshotGeneration) {
+                // Сегмент уже вошел в снапшот, но не был удален до остановки
+                Files.deleteIfExists(segmentPath(segment));
+                continue;
+            }
+            replayed += replaySegment(segmentPath(segment), replay);
+            lastGeneration = Math.max(lastGeneration, segment);
+        }
+        
+        generation = lastGeneration + 1;
+        channel = openSegment(generation);
+        return replayed;
+    }
+    
+    /**
+     * Запускает поток групповой фиксации
+     */
+    public void start(SnapshotSource source) {
+        this.snapshotSource = source;
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+    
+    /**
+     * Добавляет запись в буфер журнала, возвращает ее порядковый номер
+     * Запись становится надежной после awaitDurable(номер)
+     */
+    public long append(byte type, int id, Task task) throws IOException {
+        byte[] title = null;
+        byte[] description = null;
+        if (task != null) {
+            title = encode(task.getTitle());
+            description = encode(task.getDescription());
+        }
+        int payload = 1 + 4 + 1 + stringBytes(title) + stringBytes(description) + (task != null ? 8 : 0);
+        
+        synchronized (lock) {
+            checkOpen();
+            pending = ensureCapacity(pending, HEADER_BYTES + payload);
+            int start = pending.position();
+            pending.putInt(payload);
+            pending.putInt(0);
+            pending.put(type);
+            pending.putInt(id);
+            pending.put((byte) (task != null && task.isCompleted() ? 1 : 0));
+            putString(pending, title);
+            putString(pending, description);
+            if (task != null) {
+                pending.putLong(task.getVersion());
+            }
+            
+            crc.reset();
+            crc.update(pending.array(), start + HEADER_BYTES, payload);
+            pending.putInt(start + 4, (int) crc.getValue());
+            
+            pendingRecords++;
+            recordsSinceSnapshot++;
+            if (pendingRecords >= batchSize || (snapshotEvery > 0 && recordsSinceSnapshot >= snapshotEvery)) {
+                lock.notifyAll();
+            }
+            return ++appendedSeq;
+        }
+    }
+    
+    /**
+     * Ждет, пока запись с указанным номером будет записана на диск с fsync
+     */
+    public void awaitDurable(long seq) throws IOException {
+        synchronized (lock) {
+            while (durableSeq < seq) {
+                if (failure != null) throw failure;
+                if (stopped) throw new IOException("Task log is closed");
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for log sync", e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Запрашивает создание снапшота в потоке сброса
+     */
+    public void requestSnapshot() {
+        synchronized (lock) {
+            snapshotRequested = true;
+            lock.notifyAll();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            lock.notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+                Thread running;
+                synchronized (lock) {
+                    running = snapshotter;
+                }
+                if (running != null) {
+                    running.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            flushPending();
+        }
+        channel.close();
+    }
+    
+    private void flushLoop() {
+        try {
+            while (true) {
+                boolean snapshot;
+                boolean stop;
+                synchronized (lock) {
+                    long deadline = System.currentTimeMillis() + syncIntervalMillis;
+                    while (!closed && pendingRecords < batchSize && !snapshotDue()) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            if (pendingRecords > 0) break;
+                            deadline = System.currentTimeMillis() + syncIntervalMillis;
+                            wait = syncIntervalMillis;
+                        }
+                        lock.wait(wait);
+                    }
+                    stop = closed;
+                    snapshot = snapshotDue();
+                }
+                // При закрытии дописываем то, что осталось в буфере, и выходим
+                flushPending();
+                if (stop) return;
+                if (snapshot) {
+                    startSnapshot();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (lock) {
+                failure = e;
+                lock.notifyAll();
+            }
+            System.err.println("Ошибка записи журнала задач: " + e.getMessage());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (lock) {
+                stopped = true;
+                lock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Меняет буферы местами под блокировкой, пишет и синхронизирует файл без нее,
+     * чтобы писатели могли продолжать добавлять записи во время fsync
+     */
+    private void flushPending() throws IOException {
+        long seq;
+        FileChannel target;
+        synchronized (lock) {
+            if (pending.position() == 0) return;
+            ByteBuffer full = pending;
+            pending = writing;
+            writing = full;
+            pendingRecords = 0;
+            seq = appendedSeq;
+            target = channel;
+        }
+        writing.flip();
+        while (writing.hasRemaining()) {
+            target.write(writing);
+        }
+        writing.clear();
+        target.force(false);
+        synchronized (lock) {
+            durableSeq = seq;
+            lock.notifyAll();
+        }
+    }
+    
+    /**
+     * Нужен ли снапшот; пока пишется предыдущий, новый не начинается
+     * Вызывается под lock
+     */
+    private boolean snapshotDue() {
+        return !snapshotInFlight
+                && (snapshotRequested || (snapshotEvery > 0 && recordsSinceSnapshot >= snapshotEvery));
+    }
+    
+    /**
+     * Начинает новый сегмент и отдает запись снапшота отдельному потоку
+     */
+    private void startSnapshot() throws IOException {
+        long snapshotGeneration;
+        synchronized (lock) {
+            // Все, что добавлено до переключения, будет видно в хранилище к началу снапшота
+            // (см. SnapshotSource.versionFloor), а более поздние записи попадут в новый сегмент
+            // и будут проиграны поверх снапшота
+            FileChannel previous = channel;
+            flushPendingLocked(previous);
+            snapshotGeneration = generation + 1;
+            channel = openSegment(snapshotGeneration);
+            generation = snapshotGeneration;
+            previous.close();
+            recordsSinceSnapshot = 0;
+            snapshotRequested = false;
+            snapshotInFlight = true;
+            snapshotter = new Thread(() -> writeSnapshot(snapshotGeneration), "wal-snapshot");
+            snapshotter.setDaemon(true);
+            snapshotter.start();
+        }
+    }
+    
+    /**
+     * Сохраняет полное состояние в снапшот и удаляет сегменты, которые в него вошли
+     * Если снапшот не удался, сегменты остаются: восстановление проиграет их поверх предыдущего
+     */
+    private void writeSnapshot(long snapshotGeneration) {
+        long start = System.currentTimeMillis();
+        // Снапшот пишется под временным именем, чтобы недописанный файл не был принят за готовый
+        Path target = snapshotPath(snapshotGeneration);
+        Path temp = dir.resolve(target.getFileName() + ".tmp");
+        try {
+            long versionFloor = snapshotSource.versionFloor();
+            int count = ColumnarSnapshot.write(temp, snapshotGeneration, versionFloor, snapshotSource.snapshotTasks());
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            snapshotSource.snapshotWritten(ColumnarSnapshot.open(target));
+            
+            deleteOlder(SEGMENT_SUFFIX, snapshotGeneration);
+            deleteOlder(SNAPSHOT_SUFFIX, snapshotGeneration);
+            System.out.println("Снапшот задач сохранен: " + count + " задач за " + (System.currentTimeMillis() - start) + " мс");
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ошибка записи снапшота задач: " + e.getMessage());
+            e.printStackTrace();
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Временный файл не мешает восстановлению
+            }
+        } finally {
+            synchronized (lock) {
+                snapshotInFlight = false;
+                snapshotter = null;
+                lock.notifyAll();
+            }
+        }
+    }
+    
+    private void flushPendingLocked(FileChannel target) throws IOException {
+        if (pending.position() == 0) return;
+        pending.flip();
+        while (pending.hasRemaining()) {
+            target.write(pending);
+        }
+        pending.clear();
+        target.force(false);
+        pendingRecords = 0;
+        durableSeq = appendedSeq;
+        lock.notifyAll();
+    }
+    
+    /**
+     * Проигрывает сегмент журнала; поврежденный или недописанный хвост обрезается
+     */
+    private long replaySegment(Path segment, Replay replay) throws IOException {
+        long count = 0;
+        long validBytes = 0;
+        CRC32 check = new CRC32();
+        try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+            buffer.flip();
+            while (true) {
+                buffer = fill(in, buffer, HEADER_BYTES);
+                if (buffer.remaining() < HEADER_BYTES) break;
+                int payload = buffer.getInt();
+                int expectedCrc = buffer.getInt();
+                if (payload < 6 || payload > in.size() - validBytes - HEADER_BYTES) break;
+                buffer = fill(in, buffer, payload);
+                if (buffer.remaining() < payload) break;
+                
+                int start = buffer.position();
+                check.reset();
+                check.update(buffer.array(), buffer.arrayOffset() + start, payload);
+                if ((int) check.getValue() != expectedCrc) break;
+                
+                byte type = buffer.get();
+                int id = buffer.getInt();
+                boolean completed = buffer.get() != 0;
+                if (type == DELETE) {
+                    replay.remove(id);
+                } else {
+                    String title = getString(buffer, buffer.getInt());
+                    String description = getString(buffer, buffer.getInt());
+                    Task task = new Task(id, title, description, completed);
+                    task.setVersion(buffer.getLong());
+                    replay.put(task);
+                }
+                buffer.position(start + payload);
+                validBytes += HEADER_BYTES + payload;
+                count++;
+            }
+            if (in.size() > validBytes) {
+                System.out.println("Журнал " + segment.getFileName() + ": отброшен недописанный хвост "
+                        + (in.size() - validBytes) + " байт");
+                in.truncate(validBytes);
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Гарантирует, что в буфере доступно не меньше required байт (если файл не закончился)
+     */
+    private static ByteBuffer fill(FileChannel in, ByteBuffer buffer, int required) throws IOException {
+        if (buffer.remaining() >= required) return buffer;
+        if (buffer.capacity() < required) {
+            ByteBuffer larger = ByteBuffer.allocate(required);
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < required) {
+            if (in.read(buffer) == -1) break;
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Номера файлов tasks-N с данным расширением по возрастанию
+     */
+    private List<Long> listFiles(String suffix) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, FILE_PREFIX + "*" + suffix)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // Посторонний файл - пропускаем
+                }
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+    
+    /**
+     * Удаляет файлы с номером меньше generation
+     * Снапшот, еще отображенный в память, в Windows удалить нельзя - он будет удален позже
+     */
+    private void deleteOlder(String suffix, long generation) throws IOException {
+        for (long number : listFiles(suffix)) {
+            if (number < generation) {
+                try {
+                    Files.deleteIfExists(dir.resolve(FILE_PREFIX + number + suffix));
+                } catch (IOException e) {
+                    System.out.println("Не удалось удалить " + FILE_PREFIX + number + suffix + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    private Path segmentPath(long segment) {
+        return dir.resolve(FILE_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+    
+    private Path snapshotPath(long generation) {
+        return dir.resolve(FILE_PREFIX + generation + SNAPSHOT_SUFFIX);
+    }
+    
+    private FileChannel openSegment(long segment) throws IOException {
+        return FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+    
+    private void checkOpen() throws IOException {
+        if (failure != null) throw failure;
+        if (closed) throw new IOException("Task log is closed");
+    }
+    
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int extra) {
+        if (buffer.remaining() >= extra) return buffer;
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + extra);
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+    
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static int stringBytes(byte[] value) {
+        return 4 + (value == null ? 0 : value.length);
+    }
+    
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+    }
+    
+    private static String getString(ByteBuffer buffer, int length) {
+        if (length < 0) return null;
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
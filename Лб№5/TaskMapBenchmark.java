@@ -0,0 +1,87 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Сравнение ConcurrentIntMap и ConcurrentHashMap<Integer, Task> как хранилища задач
+ * Память: прирост кучи на N записей (объекты задач общие и в замер не входят).
+ * Скорость: get, смесь get/put и remove+put в 1 и нескольких потоках.
+ * Запуск: java -Xmx4g TaskMapBenchmark [число задач]
+ */
+public class TaskMapBenchmark {
+    private static final long WARMUP_MILLIS = 2000;
+    private static final long MEASURE_MILLIS = 3000;
+    
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        
+        Task[] tasks = new Task[count];
+        for (int i = 0; i < count; i++) {
+            tasks[i] = new Task(i + 1, "Задача " + i, null, false);
+        }
+        
+        System.out.println("Память на " + count + " задач:");
+        ConcurrentIntMap<Task> intMap = measureMemory("ConcurrentIntMap", count, () -> {
+            ConcurrentIntMap<Task> map = new ConcurrentIntMap<>();
+            for (Task task : tasks) {
+                map.put(task.getId(), task);
+            }
+            return map;
+        });
+        Map<Integer, Task> hashMap = measureMemory("ConcurrentHashMap", count, () -> {
+            Map<Integer, Task> map = new ConcurrentHashMap<>();
+            for (Task task : tasks) {
+                map.put(task.getId(), task);
+            }
+            return map;
+        });
+        System.out.println();
+        
+        for (int n : new int[] {1, threads}) {
+            Bench.run("ConcurrentIntMap get", n, WARMUP_MILLIS, MEASURE_MILLIS,
+                    () -> intMap.get(randomId(count)));
+            Bench.run("ConcurrentHashMap get", n, WARMUP_MILLIS, MEASURE_MILLIS,
+                    () -> hashMap.get(randomId(count)));
+            
+            // 90% чтений, 10% записей
+            Bench.run("ConcurrentIntMap get/put 90/10", n, WARMUP_MILLIS, MEASURE_MILLIS, () -> {
+                int id = randomId(count);
+                return ThreadLocalRandom.current().nextInt(10) == 0 ? intMap.put(id, tasks[id - 1]) : intMap.get(id);
+            });
+            Bench.run("ConcurrentHashMap get/put 90/10", n, WARMUP_MILLIS, MEASURE_MILLIS, () -> {
+                int id = randomId(count);
+                return ThreadLocalRandom.current().nextInt(10) == 0 ? hashMap.put(id, tasks[id - 1]) : hashMap.get(id);
+            });
+            
+            Bench.run("ConcurrentIntMap remove+put", n, WARMUP_MILLIS, MEASURE_MILLIS, () -> {
+                int id = randomId(count);
+                intMap.remove(id);
+                return intMap.put(id, tasks[id - 1]);
+            });
+            Bench.run("ConcurrentHashMap remove+put", n, WARMUP_MILLIS, MEASURE_MILLIS, () -> {
+                int id = randomId(count);
+                hashMap.remove(id);
+                return hashMap.put(id, tasks[id - 1]);
+            });
+            System.out.println();
+        }
+    }
+    
+    private interface Builder<T> {
+        T build();
+    }
+    
+    private static <T> T measureMemory(String name, int count, Builder<T> builder) throws InterruptedException {
+        long before = Bench.usedHeap();
+        T map = builder.build();
+        long after = Bench.usedHeap();
+        long bytes = after - before;
+        System.out.printf("  %-20s %,14d байт  %6.1f байт/задачу%n", name, bytes, (double) bytes / count);
+        return map;
+    }
+    
+    private static int randomId(int count) {
+        return ThreadLocalRandom.current().nextInt(count) + 1;
+    }
+}
@@ -1,64 +1,674 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+import java.util.function.UnaryOperator;
 
 /**
  * Сервис для управления задачами
- * Хранит задачи в памяти
+ * Хранит задачи в памяти, в режиме с журналом (TaskLog) - с сохранением на диск
+ *
+ * В режиме с журналом основная масса задач читается из отображенного в память
+ * колоночного снапшота (base), а в куче хранятся только изменения после него:
+ * новые версии задач и метки удаления (TOMBSTONE).
+ *
+ * Поисковый индекс (TextIndex) живет только в куче и не сохраняется на диск. В памяти он
+ * ведется всегда. С журналом - только по запросу (searchIndex, --search-index): индекс
+ * строится фоновым потоком после восстановления, читая каждую задачу из снапшота, и занимает
+ * в куче память пропорционально объему текста, то есть лишает снапшот мгновенного запуска
+ * и работы с данными больше кучи. Пока индекс строится, поиск отвечает SearchUnavailableException.
  */
-public class TaskService {
-    private static TaskService instance;
-    private Map<Integer, Task> tasks;
+public class TaskService implements TaskStore {
+    private static final int LOCK_STRIPES = 64;
+    private static final Task TOMBSTONE = new Task();
+    
+    private ConcurrentIntMap<Task> tasks;
+    private IdIndex ids;
     private AtomicInteger nextId;
+    private TaskLog log;
+    private volatile ColumnarSnapshot base;
+    // null - поиск выключен; изменения индексируются всегда, а поиск разрешен после построения
+    private TextIndex textIndex = new TextIndex();
+    private volatile boolean searchReady = true;
+    private final ChangeFeed changes;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    // Счетчик изменений хранилища, версия коллекции для ETag списка задач
+    private final AtomicLong modCount = new AtomicLong();
+    // Наибольшая версия удаленных задач: задача, созданная заново, продолжает с нее,
+    // чтобы старый ETag не совпал с версией другой задачи (в том числе с тем же id)
+    private final AtomicLong versionFloor = new AtomicLong();
+    
+    /**
+     * Поиск недоступен: индекс выключен или еще строится (building)
+     */
+    public static class SearchUnavailableException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        private final boolean building;
+        
+        public SearchUnavailableException(boolean building) {
+            super(building ? "Search index is being built" : "Search index is disabled (--search-index)");
+            this.building = building;
+        }
+        
+        public boolean isBuilding() {
+            return building;
+        }
+    }
+    
+    /**
+     * Версия задачи не прошла проверку условия (If-Match)
+     */
+    public static class VersionMismatchException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        private final Task current;
+        
+        public VersionMismatchException(Task current) {
+            super("Task version mismatch: current version is " + current.getVersion());
+            this.current = current;
+        }
+        
+        public Task getCurrent() {
+            return current;
+        }
+    }
     
     private TaskService() {
-        tasks = new ConcurrentHashMap<>();
+        this(true, new ChangeFeed());
+    }
+    
+    private TaskService(boolean withSamples, ChangeFeed changes) {
+        this.changes = changes;
+        tasks = new ConcurrentIntMap<>();
+        ids = new IdIndex();
         nextId = new AtomicInteger(1);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
         
-        // Добавляем несколько примеров задач
-        addTask(new Task(1, "Изучить REST API", "Изучить основы REST API и HTTP методы", false));
-        addTask(new Task(2, "Создать проект", "Создать новый проект для лабораторной работы", false));
-        addTask(new Task(3, "Написать документацию", "Написать README для проекта", true));
+        if (withSamples) {
+            // Добавляем несколько примеров задач
+            for (Task task : sampleTasks()) {
+                addTask(task);
+            }
+        }
     }
     
-    public static TaskService getInstance() {
-        if (instance == null) {
-            instance = new TaskService();
+    static List<Task> sampleTasks() {
+        return List.of(
+                new Task(1, "Изучить REST API", "Изучить основы REST API и HTTP методы", false),
+                new Task(2, "Создать проект", "Создать новый проект для лабораторной работы", false),
+                new Task(3, "Написать документацию", "Написать README для проекта", true));
+    }
+    
+    /**
+     * Пустое хранилище в памяти, публикующее изменения в общую ленту (шард ShardedTaskService)
+     */
+    public static TaskService inMemory(ChangeFeed changes) {
+        return new TaskService(false, changes);
+    }
+    
+    /**
+     * Создает сервис с журналом в каталоге dir и восстанавливает из него задачи
+     * syncIntervalMillis и batchSize - параметры групповой фиксации журнала,
+     * snapshotEvery - через сколько записей журнала сохранять снапшот (0 - не сохранять)
+     */
+    public static TaskService openPersistent(Path dir, long syncIntervalMillis, int batchSize,
+                                             long snapshotEvery) throws IOException {
+        return openPersistent(dir, syncIntervalMillis, batchSize, snapshotEvery, false, new ChangeFeed());
+    }
+    
+    /**
+     * То же с поисковым индексом по запросу и общей для нескольких хранилищ лентой изменений
+     * searchIndex - строить индекс в фоне после восстановления (без него поиск выключен)
+     */
+    public static TaskService openPersistent(Path dir, long syncIntervalMillis, int batchSize, long snapshotEvery,
+                                             boolean searchIndex, ChangeFeed changes) throws IOException {
+        TaskService service = new TaskService(false, changes);
+        service.textIndex = searchIndex ? new TextIndex() : null;
+        service.searchReady = false;
+        TaskLog log = new TaskLog(dir, syncIntervalMillis, batchSize, snapshotEvery);
+        
+        long start = System.nanoTime();
+        long replayed = log.recover(new TaskLog.Replay() {
+            @Override
+            public void base(ColumnarSnapshot snapshot) {
+                service.base = snapshot;
+                service.versionFloor.set(snapshot.getVersionFloor());
+                if (snapshot.size() > 0) {
+                    service.reserveId(snapshot.idAt(snapshot.size() - 1));
+                }
+            }
+            
+            @Override
+            public void put(Task task) {
+                service.tasks.put(task.getId(), task);
+                service.ids.add(task.getId());
+                service.reserveId(task.getId());
+            }
+            
+            @Override
+            public void remove(int id) {
+                Task previous = service.getTaskById(id);
+                if (previous != null) {
+                    service.versionFloor.accumulateAndGet(previous.getVersion(), Math::max);
+                }
+                service.tasks.put(id, TOMBSTONE);
+                service.ids.remove(id);
+            }
+        });
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Восстановлено: снапшот " + (service.base != null ? service.base.size() : 0)
+                + " задач, записей журнала " + replayed + " за " + elapsedMillis + " мс");
+        
+        service.log = log;
+        log.start(new TaskLog.SnapshotSource() {
+            @Override
+            public Iterable<Task> snapshotTasks() {
+                return service.tasks(0, null);
+            }
+            
+            @Override
+            public long versionFloor() {
+                service.awaitAppliedWrites();
+                return service.versionFloor.get();
+            }
+            
+            @Override
+            public void snapshotWritten(ColumnarSnapshot snapshot) {
+                service.replaceBase(snapshot);
+            }
+        });
+        if (searchIndex) {
+            Thread builder = new Thread(service::buildSearchIndex, "search-index");
+            builder.setDaemon(true);
+            builder.start();
         }
-        return instance;
+        return service;
+    }
+    
+    /**
+     * Индексирует все задачи, пока запись продолжается: каждая задача читается и индексируется
+     * под блокировкой своего id, а писатели тем временем обновляют индекс как обычно
+     * (повторное добавление слова задачи в индекс ничего не меняет)
+     */
+    private void buildSearchIndex() {
+        long start = System.nanoTime();
+        int indexed = 0;
+        for (Task task : tasks(0, null)) {
+            int id = task.getId();
+            synchronized (lockFor(id)) {
+                Task current = getTaskById(id);
+                if (current != null) {
+                    textIndex.update(id, null, current);
+                    indexed++;
+                }
+            }
+        }
+        searchReady = true;
+        System.out.println("Поисковый индекс: " + indexed + " задач, " + textIndex.termCount()
+                + " слов за " + (System.nanoTime() - start) / 1_000_000 + " мс");
+    }
+    
+    /**
+     * Общее хранилище в памяти с примерами задач
+     * Создается при первом обращении; потокобезопасно без блокировок: класс Holder
+     * инициализируется JVM ровно один раз, даже при одновременных первых запросах
+     */
+    public static TaskService getInstance() {
+        return Holder.INSTANCE;
+    }
+    
+    private static final class Holder {
+        static final TaskService INSTANCE = new TaskService();
     }
     
     public List<Task> getAllTasks() {
-        return new ArrayList<>(tasks.values());
+        List<Task> result = new ArrayList<>(tasks.size());
+        for (Task task : tasks(0, null)) {
+            result.add(task);
+        }
+        return result;
+    }
+    
+    /**
+     * Задачи с id > afterId в порядке возрастания id, не более limit штук
+     * completed == null - без фильтра по статусу
+     */
+    public List<Task> getTasksPage(int afterId, int limit, Boolean completed) {
+        return firstPage(tasks(afterId, completed), limit);
     }
     
+    /**
+     * Первые limit задач из ленивого перебора (tasks или search)
+     */
+    public static List<Task> firstPage(Iterable<Task> source, int limit) {
+        List<Task> page = new ArrayList<>(Math.min(limit, 64));
+        Iterator<Task> iterator = source.iterator();
+        while (page.size() < limit && iterator.hasNext()) {
+            page.add(iterator.next());
+        }
+        return page;
+    }
+    
+    /**
+     * Ленивый перебор задач с id > afterId по возрастанию id без копирования хранилища
+     * Перебор слабо согласован: задачи, измененные во время обхода, могут как попасть, так и не попасть в выдачу
+     */
+    @Override
+    public Iterable<Task> tasks(int afterId, Boolean completed) {
+        return () -> new Iterator<Task>() {
+            private int cursor = afterId;
+            private int nextInMemory = Integer.MIN_VALUE;
+            private boolean memoryDone;
+            private Task next;
+            
+            @Override
+            public boolean hasNext() {
+                while (next == null && cursor != Integer.MAX_VALUE) {
+                    // Следующий id - наименьший из изменений в памяти и из снапшота
+                    if (!memoryDone && nextInMemory <= cursor) {
+                        nextInMemory = ids.nextId(cursor + 1);
+                        memoryDone = nextInMemory < 0;
+                    }
+                    int id = memoryDone ? -1 : nextInMemory;
+                    ColumnarSnapshot snapshot = base;
+                    if (snapshot != null) {
+                        int index = snapshot.lowerBound(cursor + 1);
+                        if (index < snapshot.size() && (id < 0 || snapshot.idAt(index) < id)) {
+                            id = snapshot.idAt(index);
+                        }
+                    }
+                    if (id < 0) {
+                        cursor = Integer.MAX_VALUE;
+                        break;
+                    }
+                    cursor = id;
+                    Task task = getTaskById(id);
+                    if (task != null && (completed == null || task.isCompleted() == completed)) {
+                        next = task;
+                    }
+                }
+                return next != null;
+            }
+            
+            @Override
+            public Task next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Task result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+    
+    /**
+     * Задачи, содержащие все слова запроса (слово* - префикс), с id > afterId по возрастанию id
+     * Совпадения и задачи ищутся лениво по мере обхода: страница не требует всего результата
+     * Индекс выключен или еще строится - SearchUnavailableException
+     */
+    @Override
+    public Iterable<Task> search(String query, int afterId, Boolean completed) {
+        if (textIndex == null || !searchReady) {
+            throw new SearchUnavailableException(textIndex != null);
+        }
+        TextIndex.Query parsed = textIndex.search(query);
+        return () -> new Iterator<Task>() {
+            private final TextIndex.Cursor found = parsed.cursor(afterId);
+            private Task next;
+            
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    int id = found.next();
+                    if (id < 0) break;
+                    Task task = getTaskById(id);
+                    if (task != null && (completed == null || task.isCompleted() == completed)) {
+                        next = task;
+                    }
+                }
+                return next != null;
+            }
+            
+            @Override
+            public Task next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Task result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+    
+    @Override
     public Task getTaskById(int id) {
-        return tasks.get(id);
+        Task task = tasks.get(id);
+        if (task == TOMBSTONE) return null;
+        if (task != null) return task;
+        ColumnarSnapshot snapshot = base;
+        return snapshot != null ? snapshot.find(id) : null;
     }
     
+    @Override
     public Task addTask(Task task) {
-        if (task.getId() == 0) {
+        boolean explicitId = task.getId() > 0;
+        if (!explicitId) {
             task.setId(nextId.getAndIncrement());
+        } else {
+            reserveId(task.getId());
         }
-        tasks.put(task.getId(), task);
+        long seq;
+        synchronized (lockFor(task.getId())) {
+            seq = insertLocked(task, explicitId);
+        }
+        awaitDurable(seq);
         return task;
     }
     
+    /**
+     * Выполняет пакет операций; результат каждой сохраняется в самой операции
+     * Id для новых задач выделяются одним диапазоном, а ожидание записи журнала на диск
+     * одно на весь пакет. Операции, уже отмеченные как ошибочные (outcome != null), пропускаются
+     */
+    @Override
+    public void applyBulk(List<BulkOperation> operations) {
+        int autoIds = 0;
+        for (BulkOperation operation : operations) {
+            if (operation.getOutcome() == null && operation.getType() == BulkOperation.Type.CREATE
+                    && operation.getId() <= 0) {
+                autoIds++;
+            }
+        }
+        int id = autoIds > 0 ? nextId.getAndAdd(autoIds) : 0;
+        
+        long lastSeq = 0;
+        for (BulkOperation operation : operations) {
+            if (operation.getOutcome() != null) continue;
+            Task task = operation.getTask();
+            if (operation.getType() == BulkOperation.Type.CREATE) {
+                boolean explicitId = task.getId() > 0;
+                if (explicitId) {
+                    reserveId(task.getId());
+                } else {
+                    task.setId(id++);
+                }
+                synchronized (lockFor(task.getId())) {
+                    lastSeq = Math.max(lastSeq, insertLocked(task, explicitId));
+                }
+                operation.complete(BulkOperation.Outcome.CREATED, task);
+                continue;
+            }
+            
+            synchronized (lockFor(task.getId())) {
+                Task current = getTaskById(task.getId());
+                if (current == null) {
+                    operation.fail(BulkOperation.Outcome.NOT_FOUND, "Task not found");
+                } else if (operation.getExpectedVersion() != 0 && operation.getExpectedVersion() != current.getVersion()) {
+                    operation.complete(BulkOperation.Outcome.VERSION_MISMATCH, current);
+                } else if (operation.getType() == BulkOperation.Type.UPDATE) {
+                    lastSeq = Math.max(lastSeq, replaceLocked(current, task));
+                    operation.complete(BulkOperation.Outcome.UPDATED, task);
+                } else {
+                    lastSeq = Math.max(lastSeq, removeLocked(current));
+                    operation.complete(BulkOperation.Outcome.DELETED, null);
+                }
+            }
+        }
+        awaitDurable(lastSeq);
+    }
+    
+    /**
+     * Атомарно заменяет существующую задачу результатом remapping (как Map.computeIfPresent)
+     * remapping вызывается под блокировкой id с текущей задачей; вернуть ту же задачу - ничего
+     * не менять, null - удалить задачу. Возвращает новую задачу или null, если задачи нет
+     */
+    public Task computeIfPresent(int id, UnaryOperator<Task> remapping) {
+        long seq;
+        Task updated;
+        synchronized (lockFor(id)) {
+            Task current = getTaskById(id);
+            if (current == null) {
+                return null;
+            }
+            updated = remapping.apply(current);
+            if (updated == current) {
+                return current;
+            }
+            if (updated == null) {
+                seq = removeLocked(current);
+            } else {
+                updated.setId(id);
+                seq = replaceLocked(current, updated);
+            }
+        }
+        awaitDurable(seq);
+        return updated;
+    }
+    
     public Task updateTask(int id, Task task) {
-        if (tasks.containsKey(id)) {
-            task.setId(id);
-            tasks.put(id, task);
+        return updateTask(id, task, null);
+    }
+    
+    /**
+     * Обновляет задачу, если ее текущая версия удовлетворяет expectedVersion (null - любая)
+     * Иначе бросает VersionMismatchException; null - задачи нет
+     */
+    @Override
+    public Task updateTask(int id, Task task, LongPredicate expectedVersion) {
+        return computeIfPresent(id, current -> {
+            if (expectedVersion != null && !expectedVersion.test(current.getVersion())) {
+                throw new VersionMismatchException(current);
+            }
             return task;
-        }
-        return null;
+        });
     }
     
     public boolean deleteTask(int id) {
-        return tasks.remove(id) != null;
+        return deleteTask(id, null);
+    }
+    
+    /**
+     * Удаляет задачу с проверкой версии, как updateTask
+     */
+    @Override
+    public boolean deleteTask(int id, LongPredicate expectedVersion) {
+        long seq;
+        synchronized (lockFor(id)) {
+            Task current = getTaskById(id);
+            if (current == null) {
+                return false;
+            }
+            if (expectedVersion != null && !expectedVersion.test(current.getVersion())) {
+                throw new VersionMismatchException(current);
+            }
+            seq = removeLocked(current);
+        }
+        awaitDurable(seq);
+        return true;
+    }
+    
+    /**
+     * Методы *Locked вызываются под блокировкой id и возвращают номер записи журнала
+     * Изменение сначала добавляется в журнал и только потом применяется и публикуется:
+     * если журнал отказал, хранилище, лента и кеш ответов остаются без изменений
+     */
+    private long insertLocked(Task task, boolean explicitId) {
+        // Задача с заданным id может заменить существующую - версия продолжает ее историю
+        Task previous = explicitId ? getTaskById(task.getId()) : null;
+        task.setVersion((previous != null ? previous.getVersion() : versionFloor.get()) + 1);
+        long seq = appendToLog(TaskLog.ADD, task.getId(), task);
+        tasks.put(task.getId(), task);
+        ids.add(task.getId());
+        index(task.getId(), previous, task);
+        modCount.incrementAndGet();
+        changes.publish(previous != null ? ChangeFeed.Type.UPDATE : ChangeFeed.Type.CREATE, task);
+        return seq;
+    }
+    
+    private long replaceLocked(Task current, Task updated) {
+        updated.setVersion(current.getVersion() + 1);
+        long seq = appendToLog(TaskLog.UPDATE, updated.getId(), updated);
+        tasks.put(updated.getId(), updated);
+        ids.add(updated.getId());
+        index(updated.getId(), current, updated);
+        modCount.incrementAndGet();
+        changes.publish(ChangeFeed.Type.UPDATE, updated);
+        return seq;
+    }
+    
+    private long removeLocked(Task current) {
+        int id = current.getId();
+        long seq = appendToLog(TaskLog.DELETE, id, null);
+        versionFloor.accumulateAndGet(current.getVersion(), Math::max);
+        if (log != null) {
+            // Задача может оказаться в снапшоте, который пишется прямо сейчас,
+            // поэтому удаление отмечается меткой до следующей смены снапшота
+            tasks.put(id, TOMBSTONE);
+        } else {
+            tasks.remove(id);
+        }
+        ids.remove(id);
+        index(id, current, null);
+        modCount.incrementAndGet();
+        changes.publish(ChangeFeed.Type.DELETE, current);
+        return seq;
+    }
+    
+    /**
+     * Число изменений задач с момента запуска; меняется при каждом добавлении, обновлении и удалении
+     * Читается до обхода задач: если счетчик не изменился, не изменилось и содержимое
+     */
+    @Override
+    public long getModCount() {
+        return modCount.get();
+    }
+    
+    @Override
+    public int getNextId() {
+        return nextId.get();
+    }
+    
+    /**
+     * Лента изменений: добавления, обновления и удаления в порядке их выполнения
+     * Изменения при восстановлении из журнала в ленту не попадают
+     */
+    @Override
+    public ChangeFeed getChanges() {
+        return changes;
     }
     
     public boolean taskExists(int id) {
-        return tasks.containsKey(id);
+        Task task = tasks.get(id);
+        if (task != null) return task != TOMBSTONE;
+        ColumnarSnapshot snapshot = base;
+        return snapshot != null && snapshot.contains(id);
+    }
+    
+    /**
+     * Запрашивает сохранение снапшота (в режиме с журналом)
+     */
+    public void requestSnapshot() {
+        if (log != null) {
+            log.requestSnapshot();
+        }
+    }
+    
+    /**
+     * Сбрасывает журнал на диск и закрывает его
+     */
+    @Override
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+    
+    /**
+     * Подменяет снапшот новым и убирает из памяти изменения, которые в него вошли
+     */
+    private void replaceBase(ColumnarSnapshot snapshot) {
+        // Сначала новый снапшот, затем очистка: читатель, не нашедший задачу в памяти, увидит новый снапшот
+        base = snapshot;
+        tasks.forEach((id, ignored) -> {
+            synchronized (lockFor(id)) {
+                Task current = tasks.get(id);
+                if (current == null) return;
+                int index = snapshot.indexOf(id);
+                boolean inSnapshot = current == TOMBSTONE ? index < 0 : index >= 0 && sameContent(current, snapshot.taskAt(index));
+                if (inSnapshot) {
+                    tasks.remove(id, current);
+                    ids.remove(id);
+                }
+            }
+        });
+    }
+    
+    private static boolean sameContent(Task a, Task b) {
+        return a.getId() == b.getId() && a.getVersion() == b.getVersion() && a.isCompleted() == b.isCompleted()
+                && Objects.equals(a.getTitle(), b.getTitle())
+                && Objects.equals(a.getDescription(), b.getDescription());
+    }
+    
+    /**
+     * Следующий автоматически выданный id будет больше id
+     */
+    private void reserveId(int id) {
+        if (id < Integer.MAX_VALUE) {
+            nextId.accumulateAndGet(id + 1, Math::max);
+        }
+    }
+    
+    private void index(int id, Task previous, Task current) {
+        if (textIndex != null) {
+            textIndex.update(id, previous, current);
+        }
+    }
+    
+    /**
+     * Ждет изменения, которые уже записаны в журнал, но еще не применены: запись в журнал
+     * и применение идут под одной блокировкой id, поэтому достаточно по разу занять каждую
+     */
+    private void awaitAppliedWrites() {
+        for (Object lock : locks) {
+            synchronized (lock) {
+                // Только дождаться текущего владельца
+            }
+        }
+    }
+    
+    private Object lockFor(int id) {
+        return locks[id & (LOCK_STRIPES - 1)];
+    }
+    
+    /**
+     * Записывает изменение в журнал под блокировкой id,
+     * чтобы порядок записей по одной задаче совпадал с порядком изменений
+     */
+    private long appendToLog(byte type, int id, Task task) {
+        if (log == null) return 0;
+        try {
+            return log.append(type, id, task);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Вызывается после каждого изменения, когда блокировка id уже отпущена:
+     * будит подписчиков ленты и ждет записи журнала на диск
+     */
+    private void awaitDurable(long seq) {
+        changes.signal();
+        if (seq == 0) return;
+        try {
+            log.awaitDurable(seq);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 }
 
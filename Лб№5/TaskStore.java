@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+/**
+ * Хранилище задач, с которым работает RestApiServer
+ * Реализации: TaskService (одно хранилище) и ShardedTaskService (задачи распределены по нескольким TaskService)
+ */
+public interface TaskStore extends AutoCloseable {
+    
+    /**
+     * Ленивый перебор задач с id > afterId по возрастанию id; completed == null - без фильтра
+     */
+    Iterable<Task> tasks(int afterId, Boolean completed);
+    
+    /**
+     * Задачи, содержащие все слова запроса, по возрастанию id (см. TextIndex)
+     */
+    Iterable<Task> search(String query, int afterId, Boolean completed);
+    
+    Task getTaskById(int id);
+    
+    Task addTask(Task task);
+    
+    /**
+     * Обновляет задачу, если ее версия удовлетворяет expectedVersion (null - любая);
+     * иначе TaskService.VersionMismatchException. null - задачи нет
+     */
+    Task updateTask(int id, Task task, LongPredicate expectedVersion);
+    
+    boolean deleteTask(int id, LongPredicate expectedVersion);
+    
+    /**
+     * Выполняет пакет операций, результат каждой сохраняется в самой операции
+     */
+    void applyBulk(List<BulkOperation> operations);
+    
+    /**
+     * Счетчик изменений: растет при каждом изменении задач
+     */
+    long getModCount();
+    
+    /**
+     * Id, который получит следующая задача без явно заданного id
+     */
+    int getNextId();
+    
+    ChangeFeed getChanges();
+    
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,365 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Инвертированный индекс по словам названия и описания задач
+ *
+ * Слово (в нижнем регистре, буквы и цифры) отображается в отсортированный список id задач -
+ * массив int без упаковки. Словарь хранится в ConcurrentSkipListMap, поэтому поиск по префиксу -
+ * это обход поддиапазона ключей. Запрос - слова через пробел, все должны присутствовать (AND);
+ * слово со звездочкой на конце ("доку*") ищется как префикс.
+ *
+ * Результат не строится целиком: курсор запроса переходит от id к id двоичным поиском по спискам
+ * (пересечение "чехардой", начиная с самого короткого списка), а списки слов префикса
+ * объединяются кучей по текущему id. Страница из limit задач после cursor стоит
+ * O(limit * слов * log N) и не копирует списки.
+ *
+ * Индекс обновляется TaskService под блокировкой id задачи, списки синхронизируются по отдельности.
+ * Курсор слабо согласован, как итераторы ConcurrentSkipListMap: изменения, сделанные во время
+ * обхода, могут быть видны или нет.
+ */
+public class TextIndex {
+    private final ConcurrentSkipListMap<String, PostingList> terms = new ConcurrentSkipListMap<>();
+    
+    /**
+     * Отсортированный список id; пустой список удаляется из словаря и помечается как удаленный,
+     * чтобы параллельное добавление взяло новый
+     *
+     * Удаление не сдвигает массив, а помечает ячейку в dead; список уплотняется одним проходом,
+     * когда помеченных становится больше четверти, поэтому удаление в среднем O(log N)
+     */
+    private static class PostingList {
+        private int[] ids = new int[2];
+        private final BitSet dead = new BitSet();
+        private int size;
+        private int deadCount;
+        private boolean removed;
+        
+        synchronized boolean add(int id) {
+            if (removed) return false;
+            // Новые задачи получают растущие id, поэтому обычно это дописывание в конец
+            int index = size > 0 && ids[size - 1] < id ? size : Arrays.binarySearch(ids, 0, size, id);
+            if (index < 0) {
+                index = -index - 1;
+            } else if (index < size) {
+                if (dead.get(index)) {
+                    dead.clear(index);
+                    deadCount--;
+                }
+                return true;
+            }
+            if (deadCount > 0 && index < size) {
+                // Сдвиг затронул бы метки удаления - проще сначала уплотнить
+                compact();
+                index = -Arrays.binarySearch(ids, 0, size, id) - 1;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+            return true;
+        }
+        
+        /**
+         * Возвращает true, если список опустел и его нужно убрать из словаря
+         */
+        synchronized boolean remove(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0 && !dead.get(index)) {
+                dead.set(index);
+                deadCount++;
+                if (deadCount == size) {
+                    removed = true;
+                    return true;
+                }
+                if (deadCount > size / 4) {
+                    compact();
+                }
+            }
+            return false;
+        }
+        
+        private void compact() {
+            int live = 0;
+            for (int i = 0; i < size; i++) {
+                if (!dead.get(i)) {
+                    ids[live++] = ids[i];
+                }
+            }
+            size = live;
+            dead.clear();
+            deadCount = 0;
+            if (size < ids.length / 4) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+        }
+        
+        /**
+         * Наименьший id >= target или -1
+         */
+        synchronized int ceiling(int target) {
+            int index = Arrays.binarySearch(ids, 0, size, target);
+            if (index < 0) index = -index - 1;
+            if (deadCount > 0) index = dead.nextClearBit(index);
+            return index < size ? ids[index] : -1;
+        }
+        
+        synchronized int size() {
+            return size - deadCount;
+        }
+    }
+    
+    /**
+     * Слово запроса: точное (один список) или префикс (списки всех слов с ним)
+     */
+    private static class QueryTerm {
+        final List<PostingList> lists = new ArrayList<>();
+        long estimatedSize;
+    }
+    
+    /**
+     * Разобранный запрос; курсоры по нему можно открывать сколько угодно раз
+     */
+    public static final class Query {
+        private final QueryTerm[] terms;
+        
+        private Query(QueryTerm[] terms) {
+            this.terms = terms;
+        }
+        
+        /**
+         * Курсор по подходящим id больше afterId
+         */
+        public Cursor cursor(int afterId) {
+            TermCursor[] cursors = new TermCursor[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                cursors[i] = new TermCursor(terms[i].lists);
+            }
+            return new Cursor(cursors, afterId);
+        }
+    }
+    
+    /**
+     * Id задач, содержащих все слова запроса, по возрастанию
+     */
+    public static final class Cursor {
+        private final TermCursor[] terms;
+        private int last;
+        private boolean done;
+        
+        private Cursor(TermCursor[] terms, int afterId) {
+            this.terms = terms;
+            this.last = afterId;
+        }
+        
+        /**
+         * Следующий id или -1, если совпадений больше нет
+         */
+        public int next() {
+            if (done || last == Integer.MAX_VALUE) return -1;
+            int candidate = Math.max(last + 1, 0);
+            int agreed = 0;
+            // Каждое слово по очереди догоняет кандидата; совпадение - когда согласны все
+            for (int t = 0; ; t = (t + 1) % terms.length) {
+                int id = terms[t].advance(candidate);
+                if (id < 0) {
+                    done = true;
+                    return -1;
+                }
+                if (id == candidate) {
+                    agreed++;
+                } else {
+                    candidate = id;
+                    agreed = 1;
+                }
+                if (agreed == terms.length) {
+                    last = candidate;
+                    return candidate;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Объединение списков одного слова запроса: куча списков по их текущему id
+     */
+    private static final class TermCursor {
+        private final PostingList[] lists;
+        private final int[] current;
+        private int heapSize = -1;
+        
+        TermCursor(List<PostingList> lists) {
+            this.lists = lists.toArray(new PostingList[0]);
+            this.current = new int[this.lists.length];
+        }
+        
+        /**
+         * Наименьший id >= target во всех списках или -1
+         */
+        int advance(int target) {
+            if (heapSize < 0) {
+                // Первый вызов: каждый список сразу переходит к target
+                heapSize = 0;
+                for (PostingList list : lists) {
+                    int id = list.ceiling(target);
+                    if (id >= 0) {
+                        lists[heapSize] = list;
+                        current[heapSize++] = id;
+                    }
+                }
+                for (int i = heapSize / 2 - 1; i >= 0; i--) {
+                    siftDown(i);
+                }
+            }
+            while (heapSize > 0 && current[0] < target) {
+                int id = lists[0].ceiling(target);
+                if (id >= 0) {
+                    current[0] = id;
+                } else {
+                    heapSize--;
+                    lists[0] = lists[heapSize];
+                    current[0] = current[heapSize];
+                }
+                siftDown(0);
+            }
+            return heapSize > 0 ? current[0] : -1;
+        }
+        
+        private void siftDown(int index) {
+            while (true) {
+                int smallest = index;
+                int left = 2 * index + 1;
+                int right = left + 1;
+                if (left < heapSize && current[left] < current[smallest]) smallest = left;
+                if (right < heapSize && current[right] < current[smallest]) smallest = right;
+                if (smallest == index) return;
+                int id = current[index];
+                current[index] = current[smallest];
+                current[smallest] = id;
+                PostingList list = lists[index];
+                lists[index] = lists[smallest];
+                lists[smallest] = list;
+                index = smallest;
+            }
+        }
+    }
+    
+    /**
+     * Индексирует задачу; previous - ее предыдущая версия (null для новой задачи)
+     * Обновляются только слова, которые действительно изменились
+     */
+    public void update(int id, Task previous, Task current) {
+        Set<String> oldTerms = previous != null ? termsOf(previous) : Set.of();
+        Set<String> newTerms = current != null ? termsOf(current) : Set.of();
+        for (String term : oldTerms) {
+            if (!newTerms.contains(term)) {
+                removeTerm(term, id);
+            }
+        }
+        for (String term : newTerms) {
+            if (!oldTerms.contains(term)) {
+                addTerm(term, id);
+            }
+        }
+    }
+    
+    /**
+     * Разбирает запрос и находит списки его слов; сами совпадения ищет курсор
+     * Пустой запрос (без слов) - IllegalArgumentException
+     */
+    public Query search(String query) {
+        List<QueryTerm> queryTerms = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            boolean prefix = word.endsWith("*");
+            List<String> tokens = tokenize(word);
+            for (int i = 0; i < tokens.size(); i++) {
+                // "foo-ba*" - последнее слово ищется по префиксу, предыдущие точно
+                queryTerms.add(lookup(tokens.get(i), prefix && i == tokens.size() - 1));
+            }
+        }
+        if (queryTerms.isEmpty()) {
+            throw new IllegalArgumentException("q must contain at least one word");
+        }
+        
+        // Самый короткий список задает шаги курсора, остальные слова только догоняют
+        queryTerms.sort(Comparator.comparingLong(term -> term.estimatedSize));
+        return new Query(queryTerms.toArray(new QueryTerm[0]));
+    }
+    
+    /**
+     * Число различных слов в индексе
+     */
+    public int termCount() {
+        return terms.size();
+    }
+    
+    /**
+     * Разбивает текст на слова: последовательности букв и цифр в нижнем регистре
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) return tokens;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+    
+    private static Set<String> termsOf(Task task) {
+        Set<String> result = new HashSet<>(tokenize(task.getTitle()));
+        result.addAll(tokenize(task.getDescription()));
+        return result;
+    }
+    
+    private void addTerm(String term, int id) {
+        while (true) {
+            PostingList list = terms.computeIfAbsent(term, key -> new PostingList());
+            if (list.add(id)) return;
+            // Список только что опустел и удален из словаря - берем новый
+            terms.remove(term, list);
+        }
+    }
+    
+    private void removeTerm(String term, int id) {
+        PostingList list = terms.get(term);
+        if (list != null && list.remove(id)) {
+            terms.remove(term, list);
+        }
+    }
+    
+    private QueryTerm lookup(String token, boolean prefix) {
+        QueryTerm term = new QueryTerm();
+        if (prefix) {
+            ConcurrentNavigableMap<String, PostingList> range = terms.subMap(token, true, token + Character.MAX_VALUE, false);
+            for (Map.Entry<String, PostingList> entry : range.entrySet()) {
+                term.lists.add(entry.getValue());
+                term.estimatedSize += entry.getValue().size();
+            }
+        } else {
+            PostingList list = terms.get(token);
+            if (list != null) {
+                term.lists.add(list);
+                term.estimatedSize = list.size();
+            }
+        }
+        return term;
+    }
+}
@@ -10,17 +10,15 @@ echo   URL: http://localhost:8080/api/tasks
 echo ========================================
 echo.
 
-if not exist *.class (
-    echo Компиляция Java файлов...
-    javac *.java
-    if %errorlevel% neq 0 (
-        echo ОШИБКА: Не удалось скомпилировать файлы!
-        pause
-        exit /b 1
-    )
-    echo ✓ Компиляция завершена
-    echo.
+echo Компиляция Java файлов...
+javac -encoding UTF-8 *.java
+if %errorlevel% neq 0 (
+    echo ОШИБКА: Не удалось скомпилировать файлы!
+    pause
+    exit /b 1
 )
+echo ✓ Компиляция завершена
+echo.
 
 echo Запуск REST API сервера...
 echo.
@@ -29,10 +27,13 @@ echo   http://localhost:8080/api/tasks
 echo.
 echo Методы: GET, POST, PUT, DELETE
 echo.
+echo Параметры запуска (необязательно):
+echo   --mode=default^|virtual^|pool  --threads=N  --queue=N  --backlog=N  --port=N
+echo.
 echo Нажмите Enter для остановки сервера...
 echo.
 
-java RestApiServer
+java RestApiServer %*
 
 pause
 